@@ -0,0 +1,116 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Backend;
+import model.DataArray;
+import model.Layout;
+import model.Precision;
+
+/**
+* Benchmarks the per-step hot paths of DataArray over a range of grid sizes
+* and emitter densities. The backend, precision and layout can be changed
+* from the command line, e.g. -p precision=FLOAT.
+* @author Graf
+*
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class DiffusionBenchmark {
+    
+    // Constants.
+    public static final long SEED = 42;
+    
+    @Param({"256", "1024", "4096", "8192"})
+    public int size;
+    
+    @Param({"0", "0.01", "0.1", "0.5"})
+    public double emitterDensity;
+    
+    @Param({"1"})
+    public int threads;
+    
+    @Param({"SCALAR"})
+    public Backend backend;
+    
+    @Param({"DOUBLE"})
+    public Precision precision;
+    
+    @Param({"PLANAR"})
+    public Layout layout;
+    
+    private DataArray dataArray;
+    
+    @Setup(Level.Trial)
+    public void setup() {
+        dataArray = createScene(size, emitterDensity, threads, backend,
+                precision, layout);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataArray.close();
+    }
+    
+    /**
+    * Build a grid of random colors with randomly placed emitters.
+    * @param size The width and height of the grid.
+    * @param emitterDensity The fraction of cells that are emitters.
+    * @param threads The number of diffusion threads.
+    * @param backend The way interior cells are computed.
+    * @param precision The number format of the color values.
+    * @param layout The arrangement of the color values in memory.
+    * @return The initialized DataArray.
+    */
+    static DataArray createScene(int size, double emitterDensity, int threads,
+            Backend backend, Precision precision, Layout layout) {
+        DataArray da = new DataArray(size, size, .99, threads, backend,
+                precision, layout);
+        Random random = new Random(SEED);
+        for (int i = 0; i < size * size; i++) {
+            da.setCell(i, random.nextDouble(), random.nextDouble(),
+                    random.nextDouble(), random.nextDouble() < emitterDensity);
+        }
+        return da;
+    }
+    
+    @Benchmark
+    public void diffuse() {
+        dataArray.diffuse();
+    }
+    
+    @Benchmark
+    public void swapArrays() {
+        dataArray.swapArrays();
+    }
+    
+    @Benchmark
+    public void step() {
+        dataArray.diffuse();
+        dataArray.swapArrays();
+    }
+    
+    @Benchmark
+    public void clear() {
+        dataArray.clear();
+    }
+}
@@ -0,0 +1,59 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.DataArray;
+
+/**
+* Benchmarks brush strokes on a DataArray with varied brush sizes. Each
+* invocation draws at the next point of a diagonal sweep so strokes do not
+* always hit the same cache lines.
+* @author Graf
+*
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DrawBenchmark {
+    
+    @Param({"1024"})
+    public int size;
+    
+    @Param({"2", "16", "64", "256"})
+    public int brushSize;
+    
+    private DataArray dataArray;
+    private int position;
+    
+    @Setup
+    public void setup() {
+        dataArray = new DataArray(size, size, .99);
+    }
+    
+    @Benchmark
+    public void draw() {
+        position = (position + 7) % size;
+        dataArray.draw(position, position, brushSize, .2, .4, .8, false);
+    }
+    
+    @Benchmark
+    public void drawEmitter() {
+        position = (position + 7) % size;
+        dataArray.draw(position, position, brushSize, .8, .4, .2, true);
+    }
+}
@@ -0,0 +1,69 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Backend;
+import model.DataArray;
+import model.Layout;
+import model.Precision;
+
+/**
+* Compares jumpAhead with stepping, without emitters and with one small
+* cluster of emitters. With emitters, jumpAhead steps the region the
+* emitters reach on its own, or falls back to stepping everything when
+* that costs less. A 1023-cell side has power-of-two sine transforms, a
+* 1024-cell side needs Bluestein's algorithm.
+* @author Graf
+*
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class JumpAheadBenchmark {
+    
+    @Param({"1023", "1024"})
+    public int size;
+    
+    @Param({"32", "200", "1000"})
+    public int steps;
+    
+    @Param({"false", "true"})
+    public boolean emitters;
+    
+    private DataArray dataArray;
+    
+    @Setup(Level.Invocation)
+    public void setup() {
+        dataArray = DiffusionBenchmark.createScene(size, 0, 1,
+                Backend.SCALAR, Precision.DOUBLE, Layout.PLANAR);
+        if (emitters) {
+            dataArray.draw(size / 4, size / 4, 16, 1, 1, 1, true);
+        }
+    }
+    
+    @Benchmark
+    public void jumpAhead() {
+        dataArray.jumpAhead(steps);
+    }
+    
+    @Benchmark
+    public void step() {
+        dataArray.step(steps);
+    }
+}
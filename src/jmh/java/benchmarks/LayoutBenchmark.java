@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Backend;
+import model.DataArray;
+import model.Layout;
+import model.Precision;
+
+/**
+* Compares a full step for each memory layout.
+* @author Graf
+*
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class LayoutBenchmark {
+    
+    @Param({"1024", "4096"})
+    public int size;
+    
+    @Param({"PLANAR", "INTERLEAVED"})
+    public Layout layout;
+    
+    private DataArray dataArray;
+    
+    @Setup
+    public void setup() {
+        dataArray = DiffusionBenchmark.createScene(size, .01, 1,
+                Backend.SCALAR, Precision.DOUBLE, layout);
+    }
+    
+    @Benchmark
+    public void step() {
+        dataArray.diffuse();
+        dataArray.swapArrays();
+    }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Backend;
+import model.DataArray;
+import model.Layout;
+import model.Precision;
+
+/**
+* Benchmarks the pixel conversion ImageHandler.drawImage does every frame.
+* The upload to the WritableImage needs a running JavaFX toolkit, so only
+* the conversion into the ARGB buffer is measured.
+* @author Graf
+*
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class RenderBenchmark {
+    
+    @Param({"256", "1024", "4096", "8192"})
+    public int size;
+    
+    @Param({"DOUBLE", "FLOAT", "FIXED16"})
+    public Precision precision;
+    
+    private DataArray dataArray;
+    private int[] argb;
+    
+    @Setup
+    public void setup() {
+        dataArray = DiffusionBenchmark.createScene(size, 0, 1, Backend.SCALAR,
+                precision, Layout.PLANAR);
+        argb = new int[size * size];
+    }
+    
+    @Benchmark
+    public int[] toArgb() {
+        dataArray.toArgb(argb);
+        return argb;
+    }
+}
@@ -0,0 +1,559 @@
+package batch;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import export.FrameExporter;
+import export.PipeExporter;
+import export.PngSequenceExporter;
+import distributed.Coordinator;
+import distributed.LocalCluster;
+import model.Backend;
+import model.Checkpoint;
+import model.DataArray;
+import model.Ensemble;
+import model.Layout;
+import model.Precision;
+
+/**
+* Runs a simulation from the command line without starting the JavaFX
+* toolkit. The initial state and the emitters are read from images,
+* snapshots are written as PNG files, and timing statistics are printed
+* when the run finishes.
+* @author Graf
+*
+*/
+public class BatchRunner {
+    
+    // Constants.
+    public static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: BatchRunner [options]",
+            "  --width <n>           Width of the simulation area.",
+            "  --height <n>          Height of the simulation area.",
+            "  --diffuse <percent>   Color a cell diffuses per step. (.99)",
+            "  --steps <n>           Number of steps to run. (1000)",
+            "  --threads <n>         Diffusion threads. (all processors)",
+            "  --backend <name>      SCALAR or LANES. (SCALAR)",
+            "  --precision <name>    DOUBLE, FLOAT or FIXED16. (DOUBLE)",
+            "  --layout <name>       PLANAR or INTERLEAVED. (PLANAR)",
+            "  --sparse <epsilon>    Skip 32x32 tiles changing by at most epsilon.",
+            "  --temporal <depth>    Steps per pass over memory. (1)",
+            "  --converge <residual> Stop once no cell changes by more than this.",
+            "  --steady <residual>   Solve for the steady state instead of stepping.",
+            "  --workers <n>         Split the rows among n worker JVMs on this",
+            "                        machine, each using --threads threads.",
+            "  --sweep <values>      Run one member per diffuse percent from the",
+            "                        same scene and write each final frame.",
+            "                        Values are a,b,c or from:to:count.",
+            "  --mapped <file>       Keep the planes in a memory-mapped file,",
+            "                        resuming the simulation stored in it.",
+            "  --initial <image>     Image with the initial colors.",
+            "  --emitters <image>    Image whose opaque pixels are emitters.",
+            "  --snapshot-every <n>  Export a frame every n steps. (never)",
+            "  --encoder <command>   Pipe frames as raw BGRA to this command",
+            "                        instead of writing PNG files. (every step)",
+            "  --queue-depth <n>     Frames waiting to be encoded. (8)",
+            "  --checkpoint-every <n> Save checkpoint.ckpt every n steps. (never)",
+            "  --resume <file>       Continue the simulation in a checkpoint.",
+            "  --out <dir>           Directory for snapshots. (snapshots)");
+    public static final int DEFAULT_SIZE = 512;
+    public static final int MAX_CYCLES = 200;
+    public static final int DEFAULT_QUEUE_DEPTH = 8;
+    
+    // Instance variables.
+    private int width;
+    private int height;
+    private double diffPercent = .99;
+    private int steps = 1000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Backend backend = Backend.SCALAR;
+    private Precision precision = Precision.DOUBLE;
+    private Layout layout = Layout.PLANAR;
+    private double sparseEpsilon = -1;
+    private int temporalDepth = 1;
+    private int workers;
+    private double[] sweep;
+    private double convergence;
+    private double steadyTolerance;
+    private File mapped;
+    private File initial;
+    private File emitters;
+    private int snapshotEvery;
+    private int checkpointEvery;
+    private String encoder;
+    private int queueDepth = DEFAULT_QUEUE_DEPTH;
+    private File resume;
+    private long firstStep;
+    private File outDir = new File("snapshots");
+    
+    /**
+    * Create a runner from command line arguments.
+    * @param args The arguments, as described by USAGE.
+    * @return The configured runner.
+    * @throws IllegalArgumentException If an argument is not recognized or
+    * not valid.
+    */
+    public static BatchRunner parse(String[] args) {
+        BatchRunner runner = new BatchRunner();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--width":
+                    runner.width = positive(option, Integer.parseInt(value));
+                    break;
+                    case "--height":
+                    runner.height = positive(option, Integer.parseInt(value));
+                    break;
+                    case "--diffuse":
+                    runner.diffPercent = Double.parseDouble(value);
+                    break;
+                    case "--steps":
+                    runner.steps = positive(option, Integer.parseInt(value));
+                    break;
+                    case "--threads":
+                    runner.threads = positive(option, Integer.parseInt(value));
+                    break;
+                    case "--backend":
+                    runner.backend = Backend.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                    case "--precision":
+                    runner.precision = Precision.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                    case "--layout":
+                    runner.layout = Layout.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                    case "--sparse":
+                    runner.sparseEpsilon = Double.parseDouble(value);
+                    break;
+                    case "--temporal":
+                    runner.temporalDepth = positive(option, Integer.parseInt(value));
+                    break;
+                    case "--workers":
+                    runner.workers = positive(option, Integer.parseInt(value));
+                    break;
+                    case "--sweep":
+                    runner.sweep = values(value);
+                    break;
+                    case "--converge":
+                    runner.convergence = Double.parseDouble(value);
+                    break;
+                    case "--steady":
+                    runner.steadyTolerance = Double.parseDouble(value);
+                    break;
+                    case "--mapped":
+                    runner.mapped = new File(value);
+                    break;
+                    case "--initial":
+                    runner.initial = new File(value);
+                    break;
+                    case "--emitters":
+                    runner.emitters = new File(value);
+                    break;
+                    case "--snapshot-every":
+                    runner.snapshotEvery = positive(option, Integer.parseInt(value));
+                    break;
+                    case "--checkpoint-every":
+                    runner.checkpointEvery = positive(option, Integer.parseInt(value));
+                    break;
+                    case "--encoder":
+                    runner.encoder = value;
+                    break;
+                    case "--queue-depth":
+                    runner.queueDepth = positive(option, Integer.parseInt(value));
+                    break;
+                    case "--resume":
+                    runner.resume = new File(value);
+                    break;
+                    case "--out":
+                    runner.outDir = new File(value);
+                    break;
+                    default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException(
+                        "Invalid value for " + option + ": " + value);
+            }
+        }
+        return runner;
+    }
+    
+    // Parse a list of values, or an evenly spaced range from:to:count.
+    private static double[] values(String value) {
+        String[] range = value.split(":");
+        if (range.length == 3) {
+            return Ensemble.range(Double.parseDouble(range[0]),
+                    Double.parseDouble(range[1]),
+                    positive("--sweep", Integer.parseInt(range[2])));
+        }
+        String[] list = value.split(",");
+        double[] values = new double[list.length];
+        for (int i = 0; i < list.length; i++) {
+            values[i] = Double.parseDouble(list[i]);
+        }
+        return values;
+    }
+    
+    // Reject values that must be positive.
+    private static int positive(String option, int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException(
+                    option + " must be a positive integer.");
+        }
+        return value;
+    }
+    
+    /**
+    * Build the DataArray described by the arguments. When resuming, the
+    * checkpoint's size, diffuse percent and storage settings are used.
+    * Otherwise, if no size was given, the size of the initial image, then
+    * the emitter image, is used.
+    * @return The initialized simulation.
+    * @throws IOException If an image cannot be read.
+    */
+    public DataArray createDataArray() throws IOException {
+        
+        Checkpoint checkpoint = resume != null ? Checkpoint.read(resume) : null;
+        if (checkpoint != null) {
+            width = checkpoint.getWidth();
+            height = checkpoint.getHeight();
+            diffPercent = checkpoint.getDiffusePercent();
+            precision = checkpoint.getPrecision();
+            firstStep = checkpoint.getStep();
+        }
+        
+        BufferedImage initialImage = read(initial);
+        BufferedImage emitterImage = read(emitters);
+        BufferedImage sizeSource = initialImage != null ? initialImage : emitterImage;
+        if (width == 0) {
+            width = sizeSource != null ? sizeSource.getWidth() : DEFAULT_SIZE;
+        }
+        if (height == 0) {
+            height = sizeSource != null ? sizeSource.getHeight() : DEFAULT_SIZE;
+        }
+        
+        DataArray da;
+        if (mapped != null) {
+            if (precision != Precision.DOUBLE || layout != Layout.PLANAR) {
+                throw new IllegalArgumentException(
+                        "--mapped requires DOUBLE precision and the PLANAR layout.");
+            }
+            da = new DataArray(width, height, diffPercent, threads, mapped);
+            if (checkpoint != null) {
+                checkpoint.restoreInto(da);
+            }
+        } else if (checkpoint != null) {
+            da = checkpoint.restore(threads);
+        } else {
+            da = new DataArray(width, height, diffPercent, threads,
+                    backend, precision, layout);
+        }
+        if (initialImage != null) {
+            apply(da, initialImage, false);
+        }
+        if (emitterImage != null) {
+            apply(da, emitterImage, true);
+        }
+        if (sparseEpsilon >= 0) {
+            da.setSparseTracking(true, sparseEpsilon);
+        }
+        da.setTemporalBlocking(temporalDepth);
+        da.setConvergenceThreshold(convergence);
+        return da;
+    }
+    
+    // Read an image, or return null if no file was given.
+    private BufferedImage read(File file) throws IOException {
+        if (file == null) {
+            return null;
+        }
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+        return image;
+    }
+    
+    /* Copy an image into the simulation. For emitter images only opaque
+    * pixels are copied, and they become emitters.
+    */
+    private void apply(DataArray da, BufferedImage image, boolean emit) {
+        if (image.getWidth() != width || image.getHeight() != height) {
+            throw new IllegalArgumentException(String.format(
+                    "Image is %dx%d but the simulation is %dx%d.",
+                    image.getWidth(), image.getHeight(), width, height));
+        }
+        int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+        for (int i = 0; i < argb.length; i++) {
+            int p = argb[i];
+            if (emit && (p >>> 24) != 0xFF) {
+                continue;
+            }
+            da.setCell(i, ((p >> 16) & 0xFF) / 255.0,
+                    ((p >> 8) & 0xFF) / 255.0, (p & 0xFF) / 255.0, emit);
+        }
+    }
+    
+    /**
+    * Run the simulation, writing snapshots and printing statistics.
+    * @throws IOException If an image cannot be read or written.
+    */
+    public void run() throws IOException {
+        
+        if (workers > 0 && (convergence > 0 || steadyTolerance > 0
+                || sparseEpsilon >= 0 || mapped != null)) {
+            throw new IllegalArgumentException("--workers cannot be combined "
+                    + "with --converge, --steady, --sparse or --mapped.");
+        }
+        if (sweep != null && (workers > 0 || steadyTolerance > 0
+                || mapped != null || encoder != null || snapshotEvery > 0
+                || checkpointEvery > 0)) {
+            throw new IllegalArgumentException("--sweep cannot be combined "
+                    + "with --workers, --steady, --mapped, --encoder, "
+                    + "--snapshot-every or --checkpoint-every.");
+        }
+        try (DataArray da = createDataArray()) {
+            if (sweep != null) {
+                runSweep(da);
+            } else {
+                simulate(da);
+            }
+        }
+    }
+    
+    // Run one simulation, writing its snapshots and statistics.
+    private void simulate(DataArray da) throws IOException {
+        
+        // Video encoders get every step unless told otherwise.
+        if (encoder != null && snapshotEvery == 0) {
+            snapshotEvery = 1;
+        }
+        boolean writes = snapshotEvery > 0 || checkpointEvery > 0
+                || steadyTolerance > 0;
+        if (writes && !outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Cannot create " + outDir);
+        }
+        
+        if (steadyTolerance > 0) {
+            int[] argb = new int[width * height];
+            BufferedImage frame = new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_RGB);
+            long t = System.nanoTime();
+            int cycles = da.solveSteadyState(steadyTolerance, MAX_CYCLES);
+            long solveNanos = System.nanoTime() - t;
+            File file = writeSnapshot(da, argb, frame, "steady.png");
+            System.out.println(String.format(Locale.ROOT,
+                    "%dx%d steady state in %d V-cycles, %.3f s: %s",
+                    width, height, cycles, solveNanos / 1e9, file));
+            da.flush();
+            return;
+        }
+        
+        LocalCluster cluster = null;
+        Coordinator coordinator = null;
+        if (workers > 0) {
+            cluster = new LocalCluster(workers, threads);
+            coordinator = cluster.getCoordinator();
+            try {
+                coordinator.start(da);
+            } catch (IOException | RuntimeException e) {
+                cluster.close();
+                throw e;
+            }
+        }
+        
+        long stepNanos = 0;
+        long start = System.nanoTime();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        CompletableFuture<Void> saving = CompletableFuture.completedFuture(null);
+        File checkpointFile = new File(outDir, "checkpoint.ckpt");
+        FrameExporter exporter = snapshotEvery > 0 ? createExporter() : null;
+        
+        // Advance to each snapshot or checkpoint in one call so steps can be
+        // blocked.
+        int step = 0;
+        try {
+            while (step < steps && !da.isConverged()) {
+                int count = Math.min(nextStop(step, snapshotEvery),
+                        nextStop(step, checkpointEvery));
+                long t = System.nanoTime();
+                if (coordinator != null) {
+                    int run = Math.min(count, steps - step);
+                    coordinator.step(run);
+                    step += run;
+                } else {
+                    step += da.step(Math.min(count, steps - step));
+                }
+                stepNanos += System.nanoTime() - t;
+                long absolute = firstStep + step;
+                
+                // The workers hold the state, so gather it before writing.
+                boolean exports = exporter != null
+                        && (step % snapshotEvery == 0 || da.isConverged());
+                boolean saves = checkpointEvery > 0
+                        && step % checkpointEvery == 0;
+                if (coordinator != null && (exports || saves)) {
+                    coordinator.gather(da);
+                }
+                
+                if (exports) {
+                    exporter.export(da, absolute);
+                }
+                
+                // At most one checkpoint is waiting to be written, so slow
+                // disks hold back the simulation instead of filling memory.
+                if (saves) {
+                    saving.join();
+                    saving = Checkpoint.capture(da)
+                            .writeAsync(checkpointFile, true, writer);
+                }
+            }
+            saving.join();
+            if (coordinator != null) {
+                coordinator.gather(da);
+            }
+        } finally {
+            writer.shutdown();
+            if (cluster != null) {
+                cluster.close();
+            }
+            if (exporter != null) {
+                exporter.close();
+            }
+        }
+        da.flush();
+        if (exporter != null) {
+            System.out.println(String.format("exported %d frames to %s",
+                    exporter.getExportedFrames(),
+                    encoder != null ? encoder : outDir.getPath()));
+        }
+        
+        long total = System.nanoTime() - start;
+        double cells = (double)width * height * step;
+        System.out.println(String.format(Locale.ROOT,
+                "%dx%d %s %s %s, %d threads, %d steps",
+                width, height, precision, layout, backend, threads, step));
+        if (workers > 0) {
+            System.out.println(String.format("%d workers", workers));
+        }
+        if (da.isConverged()) {
+            System.out.println(String.format(Locale.ROOT,
+                    "converged at step %d, residual %.3g",
+                    step, da.getResidual()));
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "stepping %.3f s, %.1f steps/s, %.3f ns/cell",
+                stepNanos / 1e9, step / (stepNanos / 1e9), stepNanos / cells));
+        System.out.println(String.format(Locale.ROOT,
+                "total %.3f s including snapshots", total / 1e9));
+    }
+    
+    /* Run one member per diffuse percent of the sweep from the same scene,
+    * then write the final frame and statistics of each member.
+    */
+    private void runSweep(DataArray scene) throws IOException {
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Cannot create " + outDir);
+        }
+        try (Ensemble ensemble = new Ensemble(scene, sweep, threads)) {
+            ensemble.setConvergenceThreshold(convergence);
+            for (int i = 0; i < ensemble.getSize(); i++) {
+                DataArray member = ensemble.getMember(i);
+                if (sparseEpsilon >= 0) {
+                    member.setSparseTracking(true, sparseEpsilon);
+                }
+                member.setTemporalBlocking(temporalDepth);
+            }
+            
+            long t = System.nanoTime();
+            int step = ensemble.step(steps);
+            long wallNanos = System.nanoTime() - t;
+            
+            int[] argb = new int[width * height];
+            BufferedImage frame = new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_RGB);
+            long memberNanos = 0;
+            for (int i = 0; i < ensemble.getSize(); i++) {
+                long nanos = ensemble.getStepNanos(i);
+                long run = ensemble.getStepsRun(i);
+                memberNanos += nanos;
+                String name = String.format(Locale.ROOT, "member-%03d.png", i);
+                writeSnapshot(ensemble.getMember(i), argb, frame, name);
+                String converged = ensemble.getConvergedStep(i) < 0 ? ""
+                        : String.format(Locale.ROOT, ", converged at %d",
+                                ensemble.getConvergedStep(i));
+                System.out.println(String.format(Locale.ROOT,
+                        "%s diffuse %.4f: %d steps, %.3f s, %.3f ns/cell%s",
+                        name, ensemble.getDiffusePercent(i), run, nanos / 1e9,
+                        nanos / ((double)width * height * Math.max(1, run)),
+                        converged));
+            }
+            System.out.println(String.format(Locale.ROOT,
+                    "%dx%d, %d members, %d threads, at most %d steps",
+                    width, height, ensemble.getSize(), threads, step));
+            System.out.println(String.format(Locale.ROOT,
+                    "wall %.3f s, member time %.3f s",
+                    wallNanos / 1e9, memberNanos / 1e9));
+        }
+    }
+    
+    /* Create the exporter for snapshots. The encoder command is split at
+    * spaces, so its arguments cannot contain spaces.
+    */
+    private FrameExporter createExporter() throws IOException {
+        if (encoder != null) {
+            return new PipeExporter(Arrays.asList(encoder.trim().split("\\s+")),
+                    width, height, queueDepth);
+        }
+        return new PngSequenceExporter(outDir,
+                PngSequenceExporter.DEFAULT_PATTERN, width, height, queueDepth,
+                Math.max(1, threads / 2));
+    }
+    
+    // Number of steps from step to the next multiple of every.
+    private int nextStop(int step, int every) {
+        return every > 0 ? every - step % every : Integer.MAX_VALUE;
+    }
+    
+    // Write the current state as a PNG file in the output directory.
+    private File writeSnapshot(DataArray da, int[] argb, BufferedImage frame,
+            String name) throws IOException {
+        da.toArgb(argb);
+        frame.setRGB(0, 0, width, height, argb, 0, width);
+        File file = new File(outDir, name);
+        ImageIO.write(frame, "png", file);
+        return file;
+    }
+    
+    /**
+    * Entry point.
+    * @param args The arguments, as described by USAGE.
+    */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        try {
+            parse(args).run();
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
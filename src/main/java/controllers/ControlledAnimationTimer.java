@@ -1,15 +1,25 @@
 package controllers;
 
+import java.io.IOException;
 import java.util.LinkedList;
+import java.util.function.BooleanSupplier;
 
 import javafx.animation.AnimationTimer;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.SimpleIntegerProperty;
+import export.FrameExporter;
+import model.DataArray;
 
 /**
 * Extension of JavaFX's AnimationTimer. It allows the user to determine the
 * number of steps to run as well as Runnable tasks to execute when the timer
-* starts and stops.
+* starts and stops. The steps can either run on the JavaFX Application
+* Thread or on a background SimulationThread whose progress the timer
+* follows. On the Application Thread the timer can run several steps per
+* pulse, either a fixed number or as many as fit in a frame-time budget,
+* and render once after them. The timer stops early once the simulation
+* converges, and records the step at which it did. Steps can be recorded
+* with a FrameExporter.
 *
 * @author Graf
 *
@@ -19,7 +29,17 @@ public class ControlledAnimationTimer extends AnimationTimer{
     // Instance variables
     private IntegerProperty currStepProperty;
     private IntegerProperty maxStepsProperty;
+    private IntegerProperty convergedStepProperty;
+    private BooleanSupplier convergenceCheck;
+    private FrameExporter exporter;
+    private DataArray exportSource;
+    private int exportEvery;
+    private IOException exportFailure;
     private Runnable function;
+    private Runnable renderFunction;
+    private SimulationThread simulation;
+    private int stepsPerPulse;
+    private long frameBudget;
     private boolean running;
     private LinkedList<Runnable> onFinishTasks;
     private LinkedList<Runnable> onStartTasks;
@@ -31,8 +51,10 @@ public class ControlledAnimationTimer extends AnimationTimer{
     public ControlledAnimationTimer(int max) {
         currStepProperty = new SimpleIntegerProperty();
         maxStepsProperty = new SimpleIntegerProperty(max);
+        convergedStepProperty = new SimpleIntegerProperty(-1);
         onFinishTasks = new LinkedList<>();
         onStartTasks = new LinkedList<>();
+        stepsPerPulse = 1;
     }
     
     /**
@@ -72,6 +94,95 @@ public class ControlledAnimationTimer extends AnimationTimer{
         function = r;
     }
     
+    /**
+    * Set the function that draws the simulation once per pulse, after all
+    * of the pulse's steps have run.
+    * @param r The Runnable task to execute, or null if the step function
+    * draws by itself.
+    */
+    public void setRenderFunction(Runnable r) {
+        renderFunction = r;
+    }
+    
+    /**
+    * Set the test for convergence, checked after each step the timer runs
+    * itself. The timer stops as soon as the test passes. With a
+    * SimulationThread, the thread does the test instead.
+    * @param check Returns true once the simulation has converged, or null
+    * to always run to the maximum number of steps.
+    */
+    public void setConvergenceCheck(BooleanSupplier check) {
+        convergenceCheck = check;
+    }
+    
+    /**
+    * Record frames of the simulation as it steps. With a SimulationThread,
+    * the thread records them instead.
+    * @param exp The exporter that receives the frames, or null to stop
+    * recording.
+    * @param da The simulation the steps advance.
+    * @param every Record a frame every this many steps.
+    */
+    public void setExporter(FrameExporter exp, DataArray da, int every) {
+        exporter = exp;
+        exportSource = da;
+        exportEvery = Math.max(1, every);
+        exportFailure = null;
+        if (simulation != null) {
+            simulation.setExporter(exp, every);
+        }
+    }
+    
+    /**
+    * Getter for the reason recording stopped the timer.
+    * @return The exporter's failure, or null if recording did not fail.
+    */
+    public IOException getExportFailure() {
+        return simulation != null ? simulation.getExportFailure()
+                : exportFailure;
+    }
+    
+    /**
+    * Run a fixed number of steps per pulse. This turns off the frame-time
+    * budget.
+    * @param k The number of steps per pulse.
+    */
+    public void setStepsPerPulse(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException(
+                    "Steps per pulse must be a positive integer.");
+        }
+        stepsPerPulse = k;
+        frameBudget = 0;
+    }
+    
+    /**
+    * Getter for the number of steps the next pulse will run.
+    * @return The steps per pulse.
+    */
+    public int getStepsPerPulse() {
+        return stepsPerPulse;
+    }
+    
+    /**
+    * Adapt the number of steps per pulse so that stepping takes about the
+    * given time each pulse.
+    * @param nanos The time to spend stepping per pulse, or 0 to keep the
+    * steps per pulse fixed.
+    */
+    public void setFrameBudget(long nanos) {
+        frameBudget = Math.max(0, nanos);
+    }
+    
+    /**
+    * Run the steps on a background thread instead of the function. The
+    * timer then only follows the thread's progress.
+    * @param sim The thread that steps the simulation.
+    */
+    public void setSimulation(SimulationThread sim) {
+        simulation = sim;
+    }
+    
     /**
     * Determines if Timer is currently running.
     * @return True if Timer is running.
@@ -104,19 +215,81 @@ public class ControlledAnimationTimer extends AnimationTimer{
         return maxStepsProperty;
     }
     
+    /**
+     * Getter for the step at which the last run converged.
+     * @return Reference to converged step IntegerProperty, -1 if the run
+     * has not converged.
+     */
+    public IntegerProperty ConvergedStepProperty() {
+        return convergedStepProperty;
+    }
+    
     @Override
     public void handle(long now) {
-        if (function != null) {
-            if (currStepProperty.intValue() 
-                    < maxStepsProperty.intValue()) {
-                function.run();
-                currStepProperty.set(currStepProperty.intValue() + 1);;
+        if (simulation != null) {
+            currStepProperty.set(simulation.getCurrentStep());
+            if (!simulation.isRunning()) {
+                stop();
+            }
+        } else if (function != null) {
+            int remaining = maxStepsProperty.intValue()
+                    - currStepProperty.intValue();
+            if (remaining > 0) {
+                int k = Math.min(stepsPerPulse, remaining);
+                boolean converged = false;
+                long start = System.nanoTime();
+                int ran = 0;
+                while (ran < k && !converged && exportFailure == null) {
+                    function.run();
+                    ran++;
+                    converged = convergenceCheck != null
+                            && convergenceCheck.getAsBoolean();
+                    record(currStepProperty.intValue() + ran);
+                }
+                long elapsed = System.nanoTime() - start;
+                currStepProperty.set(currStepProperty.intValue() + ran);
+                if (renderFunction != null) {
+                    renderFunction.run();
+                }
+                adaptStepsPerPulse(ran, elapsed);
+                if (converged) {
+                    convergedStepProperty.set(currStepProperty.intValue());
+                    stop();
+                } else if (exportFailure != null) {
+                    stop();
+                }
             } else {
                 stop();
             }
         }
     }
     
+    // Hand the frame of a step to the exporter, if this step is recorded.
+    private void record(int step) {
+        if (exporter == null || step % exportEvery != 0) {
+            return;
+        }
+        try {
+            exporter.export(exportSource, step);
+        } catch (IOException ioe) {
+            exportFailure = ioe;
+            exporter = null;
+        }
+    }
+    
+    /* Fit the next pulse's steps into the frame budget, based on the cost
+    * per step of this pulse. Growth is capped at doubling per pulse so a
+    * single fast pulse cannot overshoot the budget.
+    */
+    private void adaptStepsPerPulse(int steps, long elapsed) {
+        if (frameBudget <= 0) {
+            return;
+        }
+        double perStep = Math.max(1, elapsed / (double)steps);
+        long fit = (long)(frameBudget / perStep);
+        stepsPerPulse = (int)Math.max(1, Math.min(fit, 2L * stepsPerPulse));
+    }
+    
     @Override
     public void start() {
         reset();
@@ -126,6 +299,9 @@ public class ControlledAnimationTimer extends AnimationTimer{
         for (Runnable task : onStartTasks) {
             task.run();
         }
+        if (simulation != null) {
+            simulation.start(maxStepsProperty.intValue());
+        }
         super.start();
     }
     
@@ -133,6 +309,10 @@ public class ControlledAnimationTimer extends AnimationTimer{
     public void stop() {
         super.stop();
         running = false;
+        if (simulation != null) {
+            simulation.stop();
+            convergedStepProperty.set(simulation.getConvergedStep());
+        }
         
         // Run any on finish tasks.
         for (Runnable task : onFinishTasks) {
@@ -143,5 +323,6 @@ public class ControlledAnimationTimer extends AnimationTimer{
     // Reset the counter and StringProperty.
     private void reset() {
         currStepProperty.set(0);
+        convergedStepProperty.set(-1);
     }
 }
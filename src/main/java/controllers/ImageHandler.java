@@ -1,16 +1,24 @@
 package controllers;
 
+import java.io.File;
+import java.nio.IntBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import javafx.animation.AnimationTimer;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.scene.control.Slider;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.PixelWriter;
 import javafx.scene.image.WritableImage;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Rectangle;
+import model.Checkpoint;
 import model.DataArray;
 
 /**
@@ -22,10 +30,14 @@ public class ImageHandler {
     
     // Instance variables.
     private PixelWriter pixelWriter;
+    private PixelFormat<IntBuffer> pixelFormat;
+    private int[] pixels;
     private int width;
     private int height;
     private DataArray dataArray;
     private Rectangle square;
+    private SimulationThread simulation;
+    private AnimationTimer presenter;
     
     /**
     * Constructor.
@@ -43,6 +55,8 @@ public class ImageHandler {
         // Create the image.
         WritableImage writableImage = new WritableImage(width, height);
         this.pixelWriter = writableImage.getPixelWriter();
+        this.pixelFormat = PixelFormat.getIntArgbPreInstance();
+        this.pixels = new int[width * height];
         ObjectProperty<Image> imageProperty = new SimpleObjectProperty<Image>(writableImage);
         Bindings.bindBidirectional(iv.imageProperty(), imageProperty);
         
@@ -61,33 +75,66 @@ public class ImageHandler {
     }
     
     /**
-    * Advance the simulation one step.
+    * Hand the DataArray over to a background simulation thread. From now on
+    * drawing and clearing are queued to that thread, and the image shows
+    * the latest frame it has published on every pulse.
+    * @param sim The thread that owns the DataArray.
+    */
+    public void setSimulation(SimulationThread sim) {
+        if (presenter != null) {
+            presenter.stop();
+        }
+        simulation = sim;
+        presenter = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                present();
+            }
+        };
+        presenter.start();
+    }
+    
+    // Show the latest frame published by the simulation thread.
+    private void present() {
+        TripleBuffer frames = simulation.getFrames();
+        if (frames.acquire()) {
+            pixelWriter.setPixels(0, 0, width, height, pixelFormat,
+                    frames.getFrontBuffer(), 0, width);
+        }
+    }
+    
+    /**
+    * Advance the simulation one step on the calling thread.
     */
     public void step() {
+        advance();
+        drawImage();
+    }
+    
+    /**
+    * Advance the simulation one step on the calling thread without
+    * updating the image.
+    */
+    public void advance() {
         dataArray.diffuse();
         dataArray.swapArrays();
+    }
+    
+    /**
+    * Update the image to show the current state of the simulation.
+    */
+    public void render() {
         drawImage();
     }
     
-    // Set the ImageView pixels according to values in the DataArray.
+    /* Set the ImageView pixels according to values in the DataArray. The
+    * pixels are opaque, so premultiplied ARGB is the same as plain ARGB and
+    * the image can take the whole buffer in one call.
+    */
     private void drawImage() {
-        
-        double[] red = dataArray.getCurrentRed();
-        double[] green = dataArray.getCurrentGreen();
-        double[] blue = dataArray.getCurrentBlue();
-        
-        int index;
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                
-                index = x + (y * width);
-                
-                int rp = (int)(red[index] * 255);
-                int gp = (int)(green[index] * 255);
-                int bp = (int)(blue[index] * 255);
-                pixelWriter.setColor(x, y, Color.rgb(rp, gp, bp));
-            }
-        }
+        dataArray.toArgb(pixels);
+        pixelWriter.setPixels(0, 0, width, height, pixelFormat, pixels, 0,
+                width);
     }
     
     /**
@@ -112,10 +159,18 @@ public class ImageHandler {
     */
     public void draw(int x, int y, int brushSize, Color c, boolean isEmitter ) {
         
+        // The simulation thread shows the change in its next frame.
+        if (simulation != null) {
+            simulation.submit(() -> dataArray.draw(x, y, brushSize,
+                    c.getRed(), c.getGreen(), c.getBlue(), isEmitter));
+            return;
+        }
+        
         int sidelen = brushSize / 2;
         
         // Set backing array data.
-        dataArray.draw(x, y, brushSize, c, isEmitter);
+        dataArray.draw(x, y, brushSize, c.getRed(), c.getGreen(), c.getBlue(),
+                isEmitter);
         
         // Apply changes to image immediately.
         for (int j = y - sidelen; j < y + sidelen; j++) {
@@ -135,6 +190,11 @@ public class ImageHandler {
     */
     public void clear() {
         
+        if (simulation != null) {
+            simulation.submit(() -> dataArray.clear());
+            return;
+        }
+        
         // Clear backing array.
         dataArray.clear();
         
@@ -142,6 +202,58 @@ public class ImageHandler {
         drawImage();
     }
     
+    /**
+    * Set the largest change per step at which a run stops early.
+    * @param threshold The convergence threshold, or 0 to always run every
+    * step.
+    */
+    public void setConvergenceThreshold(double threshold) {
+        if (simulation != null) {
+            simulation.submit(() -> dataArray.setConvergenceThreshold(threshold));
+            return;
+        }
+        dataArray.setConvergenceThreshold(threshold);
+    }
+    
+    /**
+    * Save the simulation to a checkpoint file. The state is copied between
+    * steps and written on the executor, so the simulation keeps running
+    * while the file is written.
+    * @param file The file to write.
+    * @param executor The executor that writes the file.
+    * @return A future that completes once the file is written.
+    */
+    public CompletableFuture<Void> saveCheckpoint(File file,
+            Executor executor) {
+        CompletableFuture<Checkpoint> captured;
+        if (simulation != null) {
+            captured = simulation.call(() -> Checkpoint.capture(dataArray));
+        } else {
+            captured = CompletableFuture.completedFuture(
+                    Checkpoint.capture(dataArray));
+        }
+        return captured.thenCompose(cp -> cp.writeAsync(file, true, executor));
+    }
+    
+    /**
+    * Replace the colors and emitters of the simulation with a checkpoint's.
+    * @param cp The checkpoint to load, of the same size as the simulation.
+    * @throws IllegalArgumentException If the sizes differ.
+    */
+    public void loadCheckpoint(Checkpoint cp) {
+        if (cp.getWidth() != width || cp.getHeight() != height) {
+            throw new IllegalArgumentException(String.format(
+                    "Checkpoint is %dx%d but the simulation is %dx%d.",
+                    cp.getWidth(), cp.getHeight(), width, height));
+        }
+        if (simulation != null) {
+            simulation.submit(() -> cp.restoreInto(dataArray));
+            return;
+        }
+        cp.restoreInto(dataArray);
+        drawImage();
+    }
+    
     // Set the brush preview square to the specified  length.
     private void setSquareLength(double len) {
         square.setHeight(len);
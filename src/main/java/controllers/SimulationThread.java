@@ -0,0 +1,302 @@
+package controllers;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import export.FrameExporter;
+import model.DataArray;
+
+/**
+* Steps a DataArray on a background thread so a heavy simulation never
+* blocks the JavaFX Application Thread and is not limited to the pulse
+* rate. Completed frames are published through a TripleBuffer that the
+* GUI samples for display. Every change to the DataArray, such as drawing,
+* must be submitted as a command so it runs on the simulation thread
+* between steps. A command that throws is reported to the failure
+* handler and does not stop the thread.
+* @author Graf
+*
+*/
+public class SimulationThread {
+    
+    // Constants.
+    public static final long FRAME_INTERVAL_NANOS = 1_000_000_000L / 120;
+    
+    // Instance variables.
+    private final DataArray dataArray;
+    private final TripleBuffer frames;
+    private final BlockingQueue<Runnable> commands;
+    private final Thread thread;
+    private volatile boolean running;
+    private volatile boolean shutdown;
+    private volatile int currStep;
+    private volatile int maxSteps;
+    private volatile int convergedStep = -1;
+    private volatile double targetRate;
+    private volatile IOException exportFailure;
+    private volatile Consumer<RuntimeException> failureHandler;
+    private FrameExporter exporter;
+    private int exportEvery;
+    
+    /**
+    * Constructor. The thread starts immediately and waits for commands.
+    * @param da The DataArray model this thread owns.
+    */
+    public SimulationThread(DataArray da) {
+        dataArray = da;
+        frames = new TripleBuffer(da.getWidth() * da.getHeight());
+        commands = new LinkedBlockingQueue<>();
+        thread = new Thread(this::loop, "simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+    * Queue a task to run on the simulation thread before the next step.
+    * @param command The task to run.
+    */
+    public void submit(Runnable command) {
+        commands.add(command);
+    }
+    
+    /**
+    * Queue a task that computes a value on the simulation thread before
+    * the next step.
+    * @param task The task to run.
+    * @return A future that completes with the task's value, or with the
+    * exception it threw.
+    */
+    public <T> CompletableFuture<T> call(Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        submit(() -> {
+            try {
+                result.complete(task.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+    
+    /**
+    * Set what is told about commands and steps that threw. It is called
+    * on the simulation thread. A failed step also stops the run.
+    * @param handler Receives the exception, or null to ignore failures.
+    */
+    public void setFailureHandler(Consumer<RuntimeException> handler) {
+        failureHandler = handler;
+    }
+    
+    /**
+    * Start stepping from step 0.
+    * @param max The number of steps to run.
+    */
+    public void start(int max) {
+        synchronized (this) {
+            currStep = 0;
+            maxSteps = max;
+            convergedStep = -1;
+            running = true;
+        }
+        
+        // Wake the thread if it is waiting for commands.
+        submit(() -> { });
+    }
+    
+    /**
+    * Stop stepping. Queued commands still run.
+    */
+    public synchronized void stop() {
+        running = false;
+    }
+    
+    /**
+    * Stop the thread permanently. The thread closes the DataArray before
+    * it ends.
+    */
+    public void shutdown() {
+        shutdown = true;
+        thread.interrupt();
+    }
+    
+    /**
+    * Limit how fast the simulation steps.
+    * @param stepsPerSecond The desired rate, or 0 to step as fast as
+    * possible.
+    */
+    public void setTargetRate(double stepsPerSecond) {
+        targetRate = stepsPerSecond;
+    }
+    
+    /**
+    * Record frames while stepping. The change is queued like any other
+    * command, so steps before it are recorded by the previous exporter and
+    * steps after it by the new one.
+    * @param exp The exporter that receives the frames, or null to stop
+    * recording.
+    * @param every Record a frame every this many steps.
+    */
+    public void setExporter(FrameExporter exp, int every) {
+        submit(() -> {
+            exporter = exp;
+            exportEvery = Math.max(1, every);
+            exportFailure = null;
+        });
+    }
+    
+    /**
+    * Getter for the reason recording stopped the simulation.
+    * @return The exporter's failure, or null if recording did not fail.
+    */
+    public IOException getExportFailure() {
+        return exportFailure;
+    }
+    
+    /**
+    * Determines if the simulation is currently stepping.
+    * @return True if the simulation is stepping.
+    */
+    public boolean isRunning() {
+        return running;
+    }
+    
+    /**
+    * Getter for the number of steps run since the last start.
+    * @return The current step.
+    */
+    public int getCurrentStep() {
+        return currStep;
+    }
+    
+    /**
+    * Getter for the step at which the last run converged. Runs stop early
+    * once the DataArray reports that it converged.
+    * @return The converged step, or -1 if the run did not converge.
+    */
+    public int getConvergedStep() {
+        return convergedStep;
+    }
+    
+    /**
+    * Getter for the frames published by this thread.
+    * @return The TripleBuffer the GUI should sample.
+    */
+    public TripleBuffer getFrames() {
+        return frames;
+    }
+    
+    // Apply commands and step until shut down.
+    private void loop() {
+        publishFrame();
+        long lastFrame = System.nanoTime();
+        long nextStep = lastFrame;
+        
+        try {
+            while (!shutdown) {
+                
+                // Sleep until there is something to do while stopped.
+                Runnable command = running ? commands.poll() : commands.take();
+                boolean changed = false;
+                while (command != null) {
+                    try {
+                        command.run();
+                    } catch (RuntimeException e) {
+                        fail(e);
+                    }
+                    changed = true;
+                    command = commands.poll();
+                }
+                
+                if (!running) {
+                    if (changed) {
+                        publishFrame();
+                    }
+                    continue;
+                }
+                
+                if (finished()) {
+                    publishFrame();
+                    continue;
+                }
+                
+                // Hold back to the target rate.
+                double rate = targetRate;
+                if (rate > 0) {
+                    long period = (long)(1e9 / rate);
+                    long wait = nextStep - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    nextStep = Math.max(nextStep, System.nanoTime()) + period;
+                }
+                
+                try {
+                    dataArray.diffuse();
+                    dataArray.swapArrays();
+                } catch (RuntimeException e) {
+                    stop();
+                    fail(e);
+                    publishFrame();
+                    continue;
+                }
+                boolean converged = dataArray.isConverged();
+                synchronized (this) {
+                    currStep++;
+                    if (converged) {
+                        convergedStep = currStep;
+                        running = false;
+                    }
+                }
+                
+                // A failing exporter stops the run instead of losing frames.
+                if (exporter != null && currStep % exportEvery == 0) {
+                    try {
+                        exporter.export(dataArray, currStep);
+                    } catch (IOException ioe) {
+                        exportFailure = ioe;
+                        exporter = null;
+                        stop();
+                    }
+                }
+                
+                // Rendering every step would waste time on frames nobody sees.
+                long now = System.nanoTime();
+                if (changed || converged || currStep >= maxSteps
+                        || now - lastFrame >= FRAME_INTERVAL_NANOS) {
+                    publishFrame();
+                    lastFrame = now;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shut down.
+        }
+        dataArray.close();
+    }
+    
+    // Tell the failure handler about an exception.
+    private void fail(RuntimeException e) {
+        Consumer<RuntimeException> handler = failureHandler;
+        if (handler != null) {
+            handler.accept(e);
+        }
+    }
+    
+    // Stop stepping once the last step has run.
+    private synchronized boolean finished() {
+        if (currStep >= maxSteps) {
+            running = false;
+        }
+        return !running;
+    }
+    
+    // Render the current state into the back buffer and publish it.
+    private void publishFrame() {
+        dataArray.toArgb(frames.getBackBuffer());
+        frames.publish(currStep);
+    }
+}
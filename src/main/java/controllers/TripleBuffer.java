@@ -0,0 +1,90 @@
+package controllers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Lock-free triple buffer of ARGB frames. One producer thread renders into
+* the back buffer and publishes it, and one consumer thread takes the most
+* recently published frame. Neither side ever waits for the other: the
+* producer always has a free buffer to render into, and the consumer always
+* has a complete frame to display.
+* @author Graf
+*
+*/
+public class TripleBuffer {
+    
+    // Constants.
+    private static final int INDEX_MASK = 0x3;
+    private static final int FRESH = 0x4;
+    
+    // Instance variables.
+    private final int[][] buffers;
+    private final int[] steps;
+    private final AtomicInteger middle;
+    private int back;
+    private int front;
+    
+    /**
+    * Constructor.
+    * @param size The number of pixels in a frame.
+    */
+    public TripleBuffer(int size) {
+        buffers = new int[][] { new int[size], new int[size], new int[size] };
+        steps = new int[3];
+        back = 0;
+        front = 1;
+        middle = new AtomicInteger(2);
+    }
+    
+    /**
+    * Getter for the buffer the producer renders into. Only the producer
+    * thread may call this.
+    * @return The back buffer.
+    */
+    public int[] getBackBuffer() {
+        return buffers[back];
+    }
+    
+    /**
+    * Publish the back buffer as the latest frame and take a free buffer to
+    * render the next frame into. Only the producer thread may call this.
+    * @param step The simulation step the frame shows.
+    */
+    public void publish(int step) {
+        steps[back] = step;
+        int old = middle.getAndSet(back | FRESH);
+        back = old & INDEX_MASK;
+    }
+    
+    /**
+    * Take the latest published frame, if there is one the consumer has not
+    * seen yet. Only the consumer thread may call this.
+    * @return True if the front buffer now holds a new frame.
+    */
+    public boolean acquire() {
+        if ((middle.get() & FRESH) == 0) {
+            return false;
+        }
+        int old = middle.getAndSet(front);
+        front = old & INDEX_MASK;
+        return true;
+    }
+    
+    /**
+    * Getter for the frame the consumer displays. Only the consumer thread
+    * may call this.
+    * @return The front buffer.
+    */
+    public int[] getFrontBuffer() {
+        return buffers[front];
+    }
+    
+    /**
+    * Getter for the step shown by the front buffer. Only the consumer
+    * thread may call this.
+    * @return The simulation step of the front buffer.
+    */
+    public int getFrontStep() {
+        return steps[front];
+    }
+}
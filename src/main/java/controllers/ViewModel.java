@@ -1,9 +1,17 @@
 package controllers;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import controllers.mouse.MouseBehavior;
+import export.FrameExporter;
+import export.PngSequenceExporter;
+import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.IntegerProperty;
 import javafx.event.ActionEvent;
@@ -21,6 +29,9 @@ import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Text;
+import javafx.stage.DirectoryChooser;
+import javafx.stage.FileChooser;
+import model.Checkpoint;
 import model.DataArray;
 
 /**
@@ -33,6 +44,10 @@ public class ViewModel implements Initializable {
     // Constants.
     public static final double DIFFUSE_PERCENT = .99;
     public static final int INITIAL_NUM_STEPS = 100;
+    public static final boolean BACKGROUND_SIMULATION = true;
+    public static final long FRAME_BUDGET_NANOS = 12_000_000L;
+    public static final double CONVERGENCE_THRESHOLD = 0;
+    public static final int RECORD_QUEUE_DEPTH = 8;
     
     //Instance variables.
     @FXML
@@ -52,6 +67,14 @@ public class ViewModel implements Initializable {
     @FXML
     private Button hideButton;
     @FXML
+    private Button saveButton;
+    @FXML
+    private Button loadButton;
+    @FXML
+    private Button recordButton;
+    @FXML
+    private Button convergeButton;
+    @FXML
     private ImageView imageView;
     @FXML
     private ColorPicker colorPicker;
@@ -67,6 +90,11 @@ public class ViewModel implements Initializable {
     private MouseBehavior mouseBehavior;
     private ProgramState programState;
     private ControlledAnimationTimer counter;
+    private SimulationThread simulation;
+    private ExecutorService backgroundIo;
+    private FileChooser checkpointChooser;
+    private FrameExporter recorder;
+    private double convergenceThreshold = CONVERGENCE_THRESHOLD;
     
     // This is called when the Controller is finished being created.
     public void initialize(URL location, ResourceBundle resources) {
@@ -77,7 +105,9 @@ public class ViewModel implements Initializable {
         // Create the model.
         dataArray = new DataArray((int)imageView.getFitWidth(),
                 (int)imageView.getFitHeight(),
-                DIFFUSE_PERCENT);
+                DIFFUSE_PERCENT,
+                Runtime.getRuntime().availableProcessors());
+        dataArray.setConvergenceThreshold(convergenceThreshold);
         
         // Create ImageHandler.
         imageHandler = new ImageHandler(imageView, dataArray, anchorPane, slider);
@@ -93,24 +123,78 @@ public class ViewModel implements Initializable {
         
         // Setup animation.
         counter = new ControlledAnimationTimer(INITIAL_NUM_STEPS);
-        counter.setFunction(() -> imageHandler.step());
+        if (BACKGROUND_SIMULATION) {
+            simulation = new SimulationThread(dataArray);
+            simulation.setFailureHandler(e -> Platform.runLater(
+                    () -> showError("Simulation Error", e.getMessage() != null
+                            ? e.getMessage() : e.toString())));
+            imageHandler.setSimulation(simulation);
+            counter.setSimulation(simulation);
+        } else {
+            counter.setFunction(() -> imageHandler.advance());
+            counter.setRenderFunction(() -> imageHandler.render());
+            counter.setFrameBudget(FRAME_BUDGET_NANOS);
+            counter.setConvergenceCheck(dataArray::isConverged);
+        }
+        
+        // Checkpoints and recordings are finished off the Application Thread.
+        backgroundIo = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "background-io");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointChooser = new FileChooser();
+        checkpointChooser.getExtensionFilters().add(
+                new FileChooser.ExtensionFilter("Checkpoints", "*.ckpt"));
         
         // Update GUI when animation starts/stops.
         counter.addOnStartTask(() -> runButton.setText("Stop"));
         counter.addOnFinishTask(() -> runButton.setText("Run"));
+        counter.addOnFinishTask(() -> {
+            if (recorder != null && counter.getExportFailure() != null) {
+                stopRecording();
+                showError("Recording Failed",
+                        counter.getExportFailure().getMessage());
+            }
+        });
         
         // Bind progress bar with text to the counter.
         IntegerProperty cs = counter.CurrStepProperty();
         IntegerProperty ms = counter.MaxStepsProperty();
-        barText.textProperty().bind(Bindings.concat(cs, "/", ms));
+        IntegerProperty conv = counter.ConvergedStepProperty();
+        barText.textProperty().bind(Bindings.when(conv.greaterThanOrEqualTo(0))
+                .then(Bindings.concat("Converged at ", conv))
+                .otherwise(Bindings.concat(cs, "/", ms)));
         barText.textProperty().addListener(e -> 
             progressBar.setProgress(cs.doubleValue() / ms.doubleValue())
         );
     }
     
-    // Kills the program.
+    // Finishes the recording and any checkpoint being saved, then kills
+    // the program. Encoder and I/O threads are daemons, so exiting first
+    // would drop their queued frames and files.
     @FXML
     public void handleExitButton(ActionEvent event) {
+        if (counter.isRunning()) {
+            counter.stop();
+        }
+        if (recorder != null) {
+            stopRecording();
+        }
+        
+        // Commands queued before this one hand their work to backgroundIo.
+        if (simulation != null) {
+            simulation.call(() -> null).join();
+            simulation.shutdown();
+        } else {
+            dataArray.close();
+        }
+        backgroundIo.shutdown();
+        try {
+            backgroundIo.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
         System.exit(0);
     }
     
@@ -142,6 +226,95 @@ public class ViewModel implements Initializable {
         imageHandler.clear();
     }
     
+    // Saves the simulation to a checkpoint file while it keeps running.
+    @FXML
+    public void handleSaveButton(ActionEvent event) {
+        File file = checkpointChooser.showSaveDialog(
+                anchorPane.getScene().getWindow());
+        if (file == null) {
+            return;
+        }
+        imageHandler.saveCheckpoint(file, backgroundIo).exceptionally(e -> {
+                    Platform.runLater(() -> showError("Save Failed",
+                            e.getCause() != null ? e.getCause().getMessage()
+                                    : e.getMessage()));
+                    return null;
+                });
+    }
+    
+    // Replaces the simulation with one from a checkpoint file.
+    @FXML
+    public void handleLoadButton(ActionEvent event) {
+        File file = checkpointChooser.showOpenDialog(
+                anchorPane.getScene().getWindow());
+        if (file == null) {
+            return;
+        }
+        try {
+            imageHandler.loadCheckpoint(Checkpoint.read(file));
+        } catch (IOException | IllegalArgumentException e) {
+            showError("Load Failed", e.getMessage());
+        }
+    }
+    
+    // Starts or stops recording every step as a PNG file.
+    @FXML
+    public void handleRecordButton(ActionEvent event) {
+        if (recorder != null) {
+            stopRecording();
+            return;
+        }
+        DirectoryChooser chooser = new DirectoryChooser();
+        chooser.setTitle("Record Frames To");
+        File dir = chooser.showDialog(anchorPane.getScene().getWindow());
+        if (dir == null) {
+            return;
+        }
+        try {
+            recorder = new PngSequenceExporter(dir,
+                    PngSequenceExporter.DEFAULT_PATTERN, dataArray.getWidth(),
+                    dataArray.getHeight(), RECORD_QUEUE_DEPTH,
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        } catch (IOException e) {
+            showError("Recording Failed", e.getMessage());
+            return;
+        }
+        counter.setExporter(recorder, dataArray, 1);
+        recordButton.setText("Stop Rec");
+    }
+    
+    // Stop handing frames to the recorder and finish it in the background.
+    private void stopRecording() {
+        FrameExporter done = recorder;
+        recorder = null;
+        counter.setExporter(null, dataArray, 1);
+        recordButton.setText("Record");
+        Runnable finish = () -> backgroundIo.execute(() -> {
+            try {
+                done.close();
+            } catch (IOException e) {
+                Platform.runLater(() -> showError("Recording Failed",
+                        e.getMessage()));
+            }
+        });
+        
+        // The simulation thread may still be exporting a frame.
+        if (simulation != null) {
+            simulation.submit(finish);
+        } else {
+            finish.run();
+        }
+    }
+    
+    // Tell the user that something went wrong.
+    private void showError(String title, String message) {
+        Alert alert = new Alert(AlertType.ERROR);
+        alert.setTitle(title);
+        alert.setHeaderText(null);
+        alert.setContentText(message);
+        alert.showAndWait();
+    }
+    
     // Allows user to set the number of simulation steps.
     @FXML
     public void handleNumStepsButton(ActionEvent event) {
@@ -167,7 +340,40 @@ public class ViewModel implements Initializable {
                 alert.setTitle("Incorrect Input");
                 alert.setHeaderText(null);
                 alert.setContentText("Input must be a positive integer.");
-
+                
+                alert.showAndWait();
+            }
+        });
+    }
+    
+    // Allows user to set the change per step at which a run stops early.
+    @FXML
+    public void handleConvergeButton(ActionEvent event) {
+        
+        // Prompt the user.
+        TextInputDialog tid = new TextInputDialog(
+                Double.toString(convergenceThreshold));
+        tid.setHeaderText(null);
+        tid.setContentText("Enter the largest change per step at which a "
+                + "run stops, or 0 to run every step.");
+        Optional<String> result = tid.showAndWait();
+        
+        // Handle the input.
+        result.ifPresent(input -> {
+            try {
+                double threshold = Double.parseDouble(input);
+                if (threshold >= 0 && !Double.isInfinite(threshold)) {
+                    convergenceThreshold = threshold;
+                    imageHandler.setConvergenceThreshold(threshold);
+                } else {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException nfe) {
+                Alert alert = new Alert(AlertType.INFORMATION);
+                alert.setTitle("Incorrect Input");
+                alert.setHeaderText(null);
+                alert.setContentText("Input must be a non-negative number.");
+                
                 alert.showAndWait();
             }
         });
@@ -196,7 +402,11 @@ public class ViewModel implements Initializable {
         assert addColorButton != null : "fx:id=\"addColorButton\" was not injected: check your FXML file 'View.fxml'.";
         assert clearButton != null : "fx:id=\"clearButton\" was not injected: check your FXML file 'View.fxml'.";
         assert numStepsButton != null : "fx:id=\"numStepsButton\" was not injected: check your FXML file 'View.fxml'.";
+        assert convergeButton != null : "fx:id=\"convergeButton\" was not injected: check your FXML file 'View.fxml'.";
         assert hideButton != null : "fx:id=\"hideButton\" was not injected: check your FXML file 'View.fxml'.";
+        assert saveButton != null : "fx:id=\"saveButton\" was not injected: check your FXML file 'View.fxml'.";
+        assert loadButton != null : "fx:id=\"loadButton\" was not injected: check your FXML file 'View.fxml'.";
+        assert recordButton != null : "fx:id=\"recordButton\" was not injected: check your FXML file 'View.fxml'.";
         assert barText != null : "fx:id=\"barText\" was not injected: check your FXML file 'View.fxml'.";
         assert imageView != null : "fx:id=\"imageView\" was not injected: check your FXML file 'View.fxml'.";
         assert colorPicker != null : "fx:id=\"colorPicker\" was not injected: check your FXML file 'View.fxml'.";
@@ -0,0 +1,272 @@
+package distributed;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import model.DataArray;
+import model.Layout;
+import model.Precision;
+
+/**
+* Splits a simulation into horizontal strips, one per worker, and drives
+* the workers in lock step. Workers connect to the coordinator's port,
+* receive their rows and emitters, and then talk to the workers owning the
+* strips above and below them directly, exchanging one halo row each way
+* per step. The coordinator only sends commands and gathers frames, so it
+* never sees the halo traffic.
+* <p>
+* Worker k owns rows k * height / workers up to (k + 1) * height / workers
+* and computes them exactly like a single DataArray would, so a
+* distributed run matches a single-node run bit for bit. Only planar
+* DOUBLE scenes on the heap that use the original eight-neighbor stencil
+* with an absorbing boundary and have no animated sources can be split;
+* sparse tracking and convergence thresholds are not carried over to the
+* workers.
+* @author Graf
+*
+*/
+public class Coordinator implements AutoCloseable {
+    
+    // Constants.
+    static final long MAGIC = 0x44494646444E4F44L;
+    static final int STEP = 1;
+    static final int ARGB = 2;
+    static final int STATE = 3;
+    static final int STOP = 4;
+    static final int READY = 0x52454459;
+    public static final int ACCEPT_TIMEOUT_MS = 60000;
+    
+    // Instance variables.
+    private final ServerSocket server;
+    private final int workers;
+    private final Link[] links;
+    private int width;
+    private int height;
+    private int[] starts;
+    private double[] rgb = new double[0];
+    private long steps;
+    
+    /**
+    * Constructor. Opens the port workers connect to.
+    * @param port The port to listen on, or 0 for any free port.
+    * @param workers The number of workers to wait for.
+    * @throws IOException If the port cannot be opened.
+    */
+    public Coordinator(int port, int workers) throws IOException {
+        if (workers < 1) {
+            throw new IllegalArgumentException(
+                    "At least one worker is needed.");
+        }
+        this.workers = workers;
+        server = new ServerSocket(port);
+        server.setSoTimeout(ACCEPT_TIMEOUT_MS);
+        links = new Link[workers];
+    }
+    
+    /**
+    * Getter for the port workers connect to.
+    * @return The local port of the coordinator.
+    */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+    
+    /**
+    * Getter for the number of workers.
+    * @return The number of strips the simulation is split into.
+    */
+    public int getWorkerCount() {
+        return workers;
+    }
+    
+    /**
+    * Getter for the step count of the strips.
+    * @return The step count of the scene at start plus the steps every
+    * worker has advanced since.
+    */
+    public long getStepCount() {
+        return steps;
+    }
+    
+    /**
+    * Wait for every worker to connect and hand each its strip of a
+    * simulation. Workers are ranked in the order they connect. Returns
+    * once every worker is connected to its neighbors.
+    * @param scene The simulation holding the initial colors and emitters.
+    * It is only read.
+    * @throws IOException If a worker does not connect in time or a
+    * connection fails.
+    * @throws UnsupportedOperationException If the scene uses a setting the
+    * workers do not reproduce.
+    */
+    public void start(DataArray scene) throws IOException {
+        if (scene.getKernel() != null) {
+            throw new UnsupportedOperationException(
+                    "Distributed runs only support the default stencil.");
+        }
+        if (scene.getPrecision() != Precision.DOUBLE) {
+            throw new UnsupportedOperationException(
+                    "Distributed runs only support DOUBLE precision.");
+        }
+        if (scene.getLayout() == Layout.INTERLEAVED) {
+            throw new UnsupportedOperationException(
+                    "Distributed runs do not support the INTERLEAVED layout.");
+        }
+        if (scene.getSourceCellCount() > 0) {
+            throw new UnsupportedOperationException(
+                    "Distributed runs do not support animated sources.");
+        }
+        if (scene.isMapped()) {
+            throw new UnsupportedOperationException(
+                    "Distributed runs do not support memory-mapped scenes.");
+        }
+        width = scene.getWidth();
+        height = scene.getHeight();
+        if (height < workers) {
+            throw new IllegalArgumentException(
+                    "Every worker needs at least one row.");
+        }
+        starts = new int[workers + 1];
+        for (int k = 0; k <= workers; k++) {
+            starts[k] = (int)((long)k * height / workers);
+        }
+        
+        int[] peerPorts = new int[workers];
+        for (int k = 0; k < workers; k++) {
+            Socket socket = server.accept();
+            links[k] = new Link(socket);
+            if (links[k].in().readLong() != MAGIC) {
+                throw new IOException("Unexpected connection from "
+                        + socket.getRemoteSocketAddress());
+            }
+            peerPorts[k] = links[k].in().readInt();
+        }
+        
+        double[] row = new double[3 * width];
+        for (int k = 0; k < workers; k++) {
+            DataOutputStream out = links[k].out();
+            out.writeInt(k);
+            out.writeInt(workers);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(starts[k]);
+            out.writeInt(starts[k + 1]);
+            out.writeDouble(scene.getDiffusePercent());
+            if (k > 0) {
+                InetAddress up = links[k - 1].getSocket().getInetAddress();
+                out.writeUTF(up.getHostAddress());
+                out.writeInt(peerPorts[k - 1]);
+            } else {
+                out.writeUTF("");
+                out.writeInt(-1);
+            }
+            
+            // The strip plus a halo row on each side that has a neighbor.
+            int first = Math.max(0, starts[k] - 1);
+            int last = Math.min(height, starts[k + 1] + 1);
+            for (int y = first; y < last; y++) {
+                scene.getRow(y, row);
+                links[k].writeDoubles(row, 0, row.length);
+                for (int x = 0; x < width; x++) {
+                    out.writeBoolean(scene.isEmitter(y * width + x));
+                }
+            }
+            links[k].flush();
+        }
+        awaitReady();
+        steps = scene.getStepCount();
+    }
+    
+    /**
+    * Advance every strip by several steps. Each step is one diffuse and one
+    * swap, preceded by the halo exchange.
+    * @param count The number of steps.
+    * @throws IOException If a connection fails.
+    */
+    public void step(int count) throws IOException {
+        for (Link link : links) {
+            link.out().writeInt(STEP);
+            link.out().writeInt(count);
+            link.flush();
+        }
+        awaitReady();
+        steps += count;
+    }
+    
+    /**
+    * Gather the current colors of every strip as ARGB pixels.
+    * @param argb Destination with at least width * height elements.
+    * @throws IOException If a connection fails.
+    */
+    public void gatherArgb(int[] argb) throws IOException {
+        for (Link link : links) {
+            link.out().writeInt(ARGB);
+            link.flush();
+        }
+        for (int k = 0; k < workers; k++) {
+            links[k].readInts(argb, starts[k] * width,
+                    (starts[k + 1] - starts[k]) * width);
+        }
+    }
+    
+    /**
+    * Gather the current colors of every strip into a simulation of the
+    * same size, for export or checkpoints. Its emitters are kept and its
+    * step count is set to the step count of the strips.
+    * @param into The simulation to copy the colors into.
+    * @throws IOException If a connection fails.
+    */
+    public void gather(DataArray into) throws IOException {
+        if (into.getWidth() != width || into.getHeight() != height) {
+            throw new IllegalArgumentException(
+                    "The simulation does not match the distributed size.");
+        }
+        for (Link link : links) {
+            link.out().writeInt(STATE);
+            link.flush();
+        }
+        if (rgb.length != 3 * width) {
+            rgb = new double[3 * width];
+        }
+        for (int k = 0; k < workers; k++) {
+            for (int y = starts[k]; y < starts[k + 1]; y++) {
+                links[k].readDoubles(rgb, 0, rgb.length);
+                into.setRow(y, rgb);
+            }
+        }
+        into.setStepCount(steps);
+    }
+    
+    // Wait for every worker to report that it finished its command.
+    private void awaitReady() throws IOException {
+        for (Link link : links) {
+            if (link.in().readInt() != READY) {
+                throw new IOException("Worker out of step.");
+            }
+        }
+    }
+    
+    /**
+    * Tell every worker to stop and close all connections.
+    * @throws IOException If a connection cannot be closed.
+    */
+    @Override
+    public void close() throws IOException {
+        for (Link link : links) {
+            if (link == null) {
+                continue;
+            }
+            try {
+                link.out().writeInt(STOP);
+                link.flush();
+            } catch (IOException ioe) {
+                // The worker is gone already.
+            }
+            link.close();
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,149 @@
+package distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+* A socket connection with buffered streams and bulk transfer of double and
+* int arrays. Arrays are copied through one byte buffer per link, so
+* sending a row costs one copy and one write instead of a write per value.
+* All values are little-endian.
+* @author Graf
+*
+*/
+class Link implements AutoCloseable {
+    
+    // Constants.
+    static final int BUFFER_BYTES = 1 << 16;
+    
+    // Instance variables.
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private ByteBuffer buffer = ByteBuffer.allocate(0)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    
+    /**
+    * Constructor.
+    * @param socket A connected socket. Closing the link closes it.
+    * @throws IOException If the streams of the socket cannot be opened.
+    */
+    Link(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream(), BUFFER_BYTES));
+        out = new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream(), BUFFER_BYTES));
+    }
+    
+    /**
+    * Getter for the socket.
+    * @return The socket the link was made with.
+    */
+    Socket getSocket() {
+        return socket;
+    }
+    
+    /**
+    * Getter for the input stream.
+    * @return The buffered stream reading from the socket.
+    */
+    DataInputStream in() {
+        return in;
+    }
+    
+    /**
+    * Getter for the output stream. Call flush to send what was written.
+    * @return The buffered stream writing to the socket.
+    */
+    DataOutputStream out() {
+        return out;
+    }
+    
+    /**
+    * Send everything written so far.
+    * @throws IOException If the connection fails.
+    */
+    void flush() throws IOException {
+        out.flush();
+    }
+    
+    /**
+    * Write part of a double array.
+    * @param values The source array.
+    * @param offset The first element to write.
+    * @param length The number of elements to write.
+    * @throws IOException If the connection fails.
+    */
+    void writeDoubles(double[] values, int offset, int length)
+            throws IOException {
+        ByteBuffer bytes = buffer(length * Double.BYTES);
+        bytes.asDoubleBuffer().put(values, offset, length);
+        out.write(bytes.array(), 0, length * Double.BYTES);
+    }
+    
+    /**
+    * Read part of a double array.
+    * @param values The destination array.
+    * @param offset The first element to read into.
+    * @param length The number of elements to read.
+    * @throws IOException If the connection fails or closes early.
+    */
+    void readDoubles(double[] values, int offset, int length)
+            throws IOException {
+        ByteBuffer bytes = buffer(length * Double.BYTES);
+        in.readFully(bytes.array(), 0, length * Double.BYTES);
+        bytes.asDoubleBuffer().get(values, offset, length);
+    }
+    
+    /**
+    * Write part of an int array.
+    * @param values The source array.
+    * @param offset The first element to write.
+    * @param length The number of elements to write.
+    * @throws IOException If the connection fails.
+    */
+    void writeInts(int[] values, int offset, int length) throws IOException {
+        ByteBuffer bytes = buffer(length * Integer.BYTES);
+        bytes.asIntBuffer().put(values, offset, length);
+        out.write(bytes.array(), 0, length * Integer.BYTES);
+    }
+    
+    /**
+    * Read part of an int array.
+    * @param values The destination array.
+    * @param offset The first element to read into.
+    * @param length The number of elements to read.
+    * @throws IOException If the connection fails or closes early.
+    */
+    void readInts(int[] values, int offset, int length) throws IOException {
+        ByteBuffer bytes = buffer(length * Integer.BYTES);
+        in.readFully(bytes.array(), 0, length * Integer.BYTES);
+        bytes.asIntBuffer().get(values, offset, length);
+    }
+    
+    // The transfer buffer, grown to hold at least a number of bytes.
+    private ByteBuffer buffer(int bytes) {
+        if (buffer.capacity() < bytes) {
+            buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+        return buffer;
+    }
+    
+    /**
+    * Close the connection.
+    * @throws IOException If the socket cannot be closed.
+    */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,80 @@
+package distributed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+* A coordinator with its workers running as separate JVMs on this machine,
+* started with the same class path as the current JVM. This runs
+* distributed simulations and their tests without any cluster setup.
+* @author Graf
+*
+*/
+public class LocalCluster implements AutoCloseable {
+    
+    // Constants.
+    public static final int EXIT_TIMEOUT_MS = 10000;
+    
+    // Instance variables.
+    private final Coordinator coordinator;
+    private final List<Process> processes = new ArrayList<>();
+    
+    /**
+    * Constructor. Starts the worker processes, which connect to the
+    * coordinator once it is started.
+    * @param workers The number of worker processes.
+    * @param threads The number of threads diffusing each strip.
+    * @throws IOException If a process cannot be started.
+    */
+    public LocalCluster(int workers, int threads) throws IOException {
+        coordinator = new Coordinator(0, workers);
+        String java = System.getProperty("java.home") + File.separator
+                + "bin" + File.separator + "java";
+        try {
+            for (int k = 0; k < workers; k++) {
+                processes.add(new ProcessBuilder(java, "-cp",
+                        System.getProperty("java.class.path"),
+                        Worker.class.getName(), "localhost",
+                        Integer.toString(coordinator.getPort()),
+                        Integer.toString(threads)).inheritIO().start());
+            }
+        } catch (IOException ioe) {
+            close();
+            throw ioe;
+        }
+    }
+    
+    /**
+    * Getter for the coordinator driving the workers.
+    * @return The coordinator, to be started with a simulation.
+    */
+    public Coordinator getCoordinator() {
+        return coordinator;
+    }
+    
+    /**
+    * Stop the workers and wait for their processes to exit. Processes that
+    * do not exit in time are killed.
+    * @throws IOException If a connection cannot be closed.
+    */
+    @Override
+    public void close() throws IOException {
+        try {
+            coordinator.close();
+        } finally {
+            for (Process process : processes) {
+                try {
+                    if (!process.waitFor(EXIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                        process.destroyForcibly();
+                    }
+                } catch (InterruptedException ie) {
+                    process.destroyForcibly();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
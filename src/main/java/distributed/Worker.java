@@ -0,0 +1,244 @@
+package distributed;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import model.DataArray;
+
+/**
+* Steps one strip of a distributed simulation. The worker keeps its rows
+* plus one halo row on each side that has a neighbor in a DataArray of its
+* own. Before every step it sends its first and last rows to the workers
+* above and below and receives their edge rows into its halos, so the rows
+* it owns see exactly the neighbors they would in a single DataArray. The
+* halo rows are diffused too, but are overwritten before they are read.
+* <p>
+* Even and odd ranks send and receive in opposite orders, so a row that
+* does not fit in the socket buffers never leaves two neighbors both
+* waiting to send.
+* @author Graf
+*
+*/
+public class Worker {
+    
+    // Instance variables.
+    private final String host;
+    private final int port;
+    private final int threads;
+    private int rank;
+    private int workers;
+    private int width;
+    private int start;
+    private int end;
+    private int first;
+    private String upHost;
+    private int upPort;
+    private DataArray da;
+    private Link up;
+    private Link down;
+    private double[] row;
+    
+    /**
+    * Constructor.
+    * @param host The host of the coordinator.
+    * @param port The port of the coordinator.
+    * @param threads The number of threads diffusing the strip.
+    */
+    public Worker(String host, int port, int threads) {
+        this.host = host;
+        this.port = port;
+        this.threads = threads;
+    }
+    
+    /**
+    * Connect to the coordinator and run its commands until it says stop or
+    * disconnects.
+    * @throws IOException If a connection fails.
+    */
+    public void run() throws IOException {
+        try (ServerSocket peers = new ServerSocket(0);
+                Link coordinator = new Link(new Socket(host, port))) {
+            peers.setSoTimeout(Coordinator.ACCEPT_TIMEOUT_MS);
+            coordinator.out().writeLong(Coordinator.MAGIC);
+            coordinator.out().writeInt(peers.getLocalPort());
+            coordinator.flush();
+            receiveStrip(coordinator);
+            
+            // Connecting succeeds before the worker above accepts, so
+            // connecting up first and accepting down second cannot stall.
+            if (rank > 0) {
+                up = new Link(new Socket(upHost, upPort));
+            }
+            if (rank < workers - 1) {
+                down = new Link(peers.accept());
+            }
+            ready(coordinator);
+            serve(coordinator);
+        } finally {
+            if (da != null) {
+                da.close();
+            }
+            if (up != null) {
+                up.close();
+            }
+            if (down != null) {
+                down.close();
+            }
+        }
+    }
+    
+    // Read the layout of the strip, where its neighbors are and its rows.
+    private void receiveStrip(Link coordinator) throws IOException {
+        DataInputStream in = coordinator.in();
+        rank = in.readInt();
+        workers = in.readInt();
+        width = in.readInt();
+        int height = in.readInt();
+        start = in.readInt();
+        end = in.readInt();
+        double diffPercent = in.readDouble();
+        upHost = in.readUTF();
+        upPort = in.readInt();
+        first = Math.max(0, start - 1);
+        int last = Math.min(height, end + 1);
+        
+        da = new DataArray(width, last - first, diffPercent, threads);
+        row = new double[3 * width];
+        double[] rgb = new double[3 * width];
+        for (int y = 0; y < last - first; y++) {
+            coordinator.readDoubles(rgb, 0, rgb.length);
+            for (int x = 0; x < width; x++) {
+                da.setCell(y * width + x, rgb[3 * x], rgb[3 * x + 1],
+                        rgb[3 * x + 2], in.readBoolean());
+            }
+        }
+    }
+    
+    // Run commands until the coordinator says stop or disconnects.
+    private void serve(Link coordinator) throws IOException {
+        DataInputStream in = coordinator.in();
+        int[] argb = null;
+        while (true) {
+            int command;
+            try {
+                command = in.readInt();
+            } catch (IOException ioe) {
+                return;
+            }
+            switch (command) {
+                case Coordinator.STEP:
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    exchangeHalos();
+                    da.diffuse();
+                    da.swapArrays();
+                }
+                ready(coordinator);
+                break;
+                case Coordinator.ARGB:
+                if (argb == null) {
+                    argb = new int[width * da.getHeight()];
+                }
+                da.toArgb(argb);
+                coordinator.writeInts(argb, (start - first) * width,
+                        (end - start) * width);
+                coordinator.flush();
+                break;
+                case Coordinator.STATE:
+                for (int y = start; y < end; y++) {
+                    da.getRow(y - first, row);
+                    coordinator.writeDoubles(row, 0, row.length);
+                }
+                coordinator.flush();
+                break;
+                case Coordinator.STOP:
+                return;
+                default:
+                throw new IOException("Unknown command " + command);
+            }
+        }
+    }
+    
+    /* Send the edge rows to the neighbors and receive their edge rows into
+    * the halos. Rows flow down first, then up.
+    */
+    private void exchangeHalos() throws IOException {
+        boolean even = (rank & 1) == 0;
+        if (even) {
+            sendDown();
+            receiveUp();
+            sendUp();
+            receiveDown();
+        } else {
+            receiveUp();
+            sendDown();
+            receiveDown();
+            sendUp();
+        }
+    }
+    
+    // Send the last owned row to the worker below.
+    private void sendDown() throws IOException {
+        if (down != null) {
+            da.getRow(end - 1 - first, row);
+            down.writeDoubles(row, 0, row.length);
+            down.flush();
+        }
+    }
+    
+    // Send the first owned row to the worker above.
+    private void sendUp() throws IOException {
+        if (up != null) {
+            da.getRow(start - first, row);
+            up.writeDoubles(row, 0, row.length);
+            up.flush();
+        }
+    }
+    
+    // Receive the halo row above from the worker above.
+    private void receiveUp() throws IOException {
+        if (up != null) {
+            up.readDoubles(row, 0, row.length);
+            da.setRow(start - 1 - first, row);
+        }
+    }
+    
+    // Receive the halo row below from the worker below.
+    private void receiveDown() throws IOException {
+        if (down != null) {
+            down.readDoubles(row, 0, row.length);
+            da.setRow(end - first, row);
+        }
+    }
+    
+    // Tell the coordinator the last command finished.
+    private static void ready(Link coordinator) throws IOException {
+        DataOutputStream out = coordinator.out();
+        out.writeInt(Coordinator.READY);
+        coordinator.flush();
+    }
+    
+    /**
+    * Entry point for a worker process.
+    * @param args The host and port of the coordinator, and optionally the
+    * number of threads diffusing the strip.
+    */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: Worker <host> <port> [threads]");
+            System.exit(2);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        try {
+            new Worker(args[0], Integer.parseInt(args[1]), threads).run();
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
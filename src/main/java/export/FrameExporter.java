@@ -0,0 +1,185 @@
+package export;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import model.DataArray;
+
+/**
+* Records frames of a simulation on background threads. Each frame is
+* converted to ARGB on the calling thread, into one of a fixed number of
+* buffers, and then encoded by a subclass on a worker thread. The number
+* of buffers is the queue depth: the caller only waits when that many
+* frames are still being encoded, and memory use stays bounded however
+* slow the encoder is.
+* @author Graf
+*
+*/
+public abstract class FrameExporter implements AutoCloseable {
+    
+    // Instance variables.
+    private final int width;
+    private final int height;
+    private final BlockingQueue<int[]> free;
+    private final ExecutorService encoders;
+    private final AtomicInteger exported;
+    private volatile IOException failure;
+    private volatile boolean closed;
+    
+    /**
+    * Constructor.
+    * @param width The width of the frames.
+    * @param height The height of the frames.
+    * @param queueDepth The most frames waiting to be encoded at once.
+    * @param threads The number of encoding threads. Encoders that must see
+    * frames in order need exactly 1.
+    * @param name The name of the encoding threads.
+    */
+    protected FrameExporter(int width, int height, int queueDepth, int threads,
+            String name) {
+        if (queueDepth < 1 || threads < 1) {
+            throw new IllegalArgumentException(
+                    "Queue depth and threads must be positive integers.");
+        }
+        this.width = width;
+        this.height = height;
+        free = new ArrayBlockingQueue<>(queueDepth);
+        for (int i = 0; i < queueDepth; i++) {
+            free.add(new int[width * height]);
+        }
+        encoders = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+        exported = new AtomicInteger();
+    }
+    
+    /**
+    * Queue the current state of a simulation as the next frame. Waits only
+    * while the queue is full. Frames given after close are ignored.
+    * @param da The simulation, of the same size as the frames.
+    * @param step The step the frame shows.
+    * @throws IOException If encoding an earlier frame failed.
+    */
+    public void export(DataArray da, long step) throws IOException {
+        checkFailure();
+        if (closed) {
+            return;
+        }
+        int[] argb;
+        try {
+            argb = free.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the encoder.");
+        }
+        da.toArgb(argb);
+        try {
+            encoders.execute(() -> {
+                try {
+                    if (failure == null) {
+                        encode(argb, step);
+                        exported.incrementAndGet();
+                    }
+                } catch (IOException ioe) {
+                    failure = ioe;
+                } finally {
+                    free.add(argb);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            
+            // Closed while this frame was converted.
+            free.add(argb);
+        }
+    }
+    
+    /**
+    * Encode one frame. Called on an encoding thread.
+    * @param argb The frame's opaque ARGB pixels in row-major order. The
+    * array is reused once this returns.
+    * @param step The step the frame shows.
+    * @throws IOException If the frame cannot be encoded.
+    */
+    protected abstract void encode(int[] argb, long step) throws IOException;
+    
+    /**
+    * Finish the output once every frame is encoded. Does nothing unless
+    * overridden.
+    * @throws IOException If the output cannot be finished.
+    */
+    protected void finish() throws IOException {
+    }
+    
+    /**
+    * Wait for all queued frames to be encoded and finish the output.
+    * @throws IOException If encoding any frame or finishing failed.
+    */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        encoders.shutdown();
+        try {
+            while (!encoders.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Keep waiting; frames are still being encoded.
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the encoder.");
+        }
+        
+        // The output is finished even after a failure, so no encoder
+        // process is left waiting for more input.
+        try {
+            finish();
+        } catch (IOException ioe) {
+            if (failure == null) {
+                throw ioe;
+            }
+        }
+        checkFailure();
+    }
+    
+    // Rethrow the first encoding failure on the caller's thread.
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("Frame export failed: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+    * Getter for the number of frames encoded so far.
+    * @return The number of frames.
+    */
+    public int getExportedFrames() {
+        return exported.get();
+    }
+    
+    /**
+    * Getter for the width of the frames.
+    * @return The width.
+    */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+    * Getter for the height of the frames.
+    * @return The height.
+    */
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,76 @@
+package export;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.List;
+
+/**
+* Streams raw frames to the standard input of an external encoder, such
+* as ffmpeg. Each pixel is written as four bytes in the order blue, green,
+* red, alpha, which ffmpeg reads with "-f rawvideo -pix_fmt bgra -s
+* WIDTHxHEIGHT -i -". Frames are written in order by a single thread.
+* @author Graf
+*
+*/
+public class PipeExporter extends FrameExporter {
+    
+    // Instance variables.
+    private final Process process;
+    private final OutputStream stdin;
+    private final ByteBuffer bytes;
+    private final IntBuffer pixels;
+    
+    /**
+    * Constructor. Starts the encoder process. Its own output goes to the
+    * output of this program.
+    * @param command The encoder's command line.
+    * @param width The width of the frames.
+    * @param height The height of the frames.
+    * @param queueDepth The most frames waiting to be written at once.
+    * @throws IOException If the encoder cannot be started.
+    */
+    public PipeExporter(List<String> command, int width, int height,
+            int queueDepth) throws IOException {
+        super(width, height, queueDepth, 1, "pipe-exporter");
+        process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        stdin = new BufferedOutputStream(process.getOutputStream(), 1 << 16);
+        bytes = ByteBuffer.allocate(width * height * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        pixels = bytes.asIntBuffer();
+    }
+    
+    @Override
+    protected void encode(int[] argb, long step) throws IOException {
+        
+        // A little-endian ARGB int is the bytes B, G, R, A.
+        pixels.clear();
+        pixels.put(argb);
+        stdin.write(bytes.array());
+    }
+    
+    /**
+    * Close the encoder's input and wait for it to exit.
+    * @throws IOException If the encoder exits with an error.
+    */
+    @Override
+    protected void finish() throws IOException {
+        stdin.close();
+        try {
+            int status = process.waitFor();
+            if (status != 0) {
+                throw new IOException("Encoder exited with status " + status);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the encoder.");
+        }
+    }
+}
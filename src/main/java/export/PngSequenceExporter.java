@@ -0,0 +1,56 @@
+package export;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+* Writes each frame as a numbered PNG file. PNG compression is the slow
+* part, so several frames are compressed at once.
+* @author Graf
+*
+*/
+public class PngSequenceExporter extends FrameExporter {
+    
+    // Constants.
+    public static final String DEFAULT_PATTERN = "frame-%06d.png";
+    
+    // Instance variables.
+    private final File directory;
+    private final String pattern;
+    private final ThreadLocal<BufferedImage> images;
+    
+    /**
+    * Constructor.
+    * @param directory The directory for the files, created if missing.
+    * @param pattern The file name format, given the step as a long.
+    * @param width The width of the frames.
+    * @param height The height of the frames.
+    * @param queueDepth The most frames waiting to be encoded at once.
+    * @param threads The number of frames compressed at once.
+    * @throws IOException If the directory cannot be created.
+    */
+    public PngSequenceExporter(File directory, String pattern, int width,
+            int height, int queueDepth, int threads) throws IOException {
+        super(width, height, queueDepth, threads, "png-exporter");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.pattern = pattern;
+        images = ThreadLocal.withInitial(() -> new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB));
+    }
+    
+    @Override
+    protected void encode(int[] argb, long step) throws IOException {
+        BufferedImage image = images.get();
+        image.setRGB(0, 0, getWidth(), getHeight(), argb, 0, getWidth());
+        File file = new File(directory, String.format(pattern, step));
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("No PNG writer available.");
+        }
+    }
+}
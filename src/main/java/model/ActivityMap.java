@@ -0,0 +1,183 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+* Tracks which square tiles of a simulation are still changing so that idle
+* tiles can be skipped. A tile is diffused in a step if it or any of its
+* eight neighboring tiles changed by more than epsilon in the previous step,
+* or if it was drawn on. When a tile stops being diffused its current values
+* are copied into the next planes, so both planes agree and skipping the
+* tile leaves it exactly as it was. With an epsilon of 0 only tiles that
+* would not change at all are skipped, so the result is exact.
+* @author Graf
+*
+*/
+class ActivityMap {
+    
+    // Constants.
+    static final int TILE_SIZE = 32;
+    
+    // Instance variables.
+    private final DoublePlanes planes;
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final double epsilon;
+    private final double[] change;
+    private boolean[] active;
+    private boolean[] nextActive;
+    
+    /**
+    * Constructor. Every tile starts active.
+    * @param planes The planes being diffused.
+    * @param width The width of the simulation area.
+    * @param height The height of the simulation area.
+    * @param epsilon The largest change per step a tile may have and still
+    * be considered idle.
+    */
+    ActivityMap(DoublePlanes planes, int width, int height, double epsilon) {
+        this.planes = planes;
+        this.width = width;
+        this.height = height;
+        this.epsilon = epsilon;
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        change = new double[tilesX * tilesY];
+        active = new boolean[tilesX * tilesY];
+        nextActive = new boolean[tilesX * tilesY];
+        Arrays.fill(active, true);
+    }
+    
+    /**
+    * Getter for the number of rows of tiles.
+    * @return The number of tile rows.
+    */
+    int getTileRows() {
+        return tilesY;
+    }
+    
+    /**
+    * Diffuse the active tiles in the tile rows [startRow, endRow). Disjoint
+    * bands of tile rows may run concurrently.
+    * @param startRow The first tile row.
+    * @param endRow One past the last tile row.
+    * @param emitters The cells whose color is constant, already indexed.
+    */
+    void diffuseTileRows(int startRow, int endRow, EmitterMask emitters) {
+        for (int ty = startRow; ty < endRow; ty++) {
+            int y0 = ty * TILE_SIZE;
+            int y1 = Math.min(y0 + TILE_SIZE, height);
+            for (int tx = 0; tx < tilesX; tx++) {
+                int t = ty * tilesX + tx;
+                if (active[t]) {
+                    int x0 = tx * TILE_SIZE;
+                    int x1 = Math.min(x0 + TILE_SIZE, width);
+                    change[t] = planes.diffuseTile(x0, y0, x1, y1, emitters);
+                } else {
+                    change[t] = 0;
+                }
+            }
+        }
+    }
+    
+    /**
+    * Decide which tiles to diffuse in the next step. Must be called after
+    * the planes have been swapped.
+    */
+    void update() {
+        Arrays.fill(nextActive, false);
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                if (change[ty * tilesX + tx] > epsilon) {
+                    activateAround(nextActive, tx, ty);
+                }
+            }
+        }
+        
+        // Tiles going idle must hold the same values in both planes.
+        for (int t = 0; t < active.length; t++) {
+            if (active[t] && !nextActive[t]) {
+                int tx = t % tilesX;
+                int ty = t / tilesX;
+                planes.copyTile(tx * TILE_SIZE, ty * TILE_SIZE,
+                        Math.min((tx + 1) * TILE_SIZE, width),
+                        Math.min((ty + 1) * TILE_SIZE, height));
+            }
+        }
+        
+        boolean[] temp = active;
+        active = nextActive;
+        nextActive = temp;
+    }
+    
+    /**
+    * Make the tiles covering the rectangle [x0, x1) x [y0, y1), and their
+    * neighbors, active for the next step.
+    * @param x0 The first column.
+    * @param y0 The first row.
+    * @param x1 One past the last column.
+    * @param y1 One past the last row.
+    */
+    void touch(int x0, int y0, int x1, int y1) {
+        int tx1 = Math.min((x1 - 1) / TILE_SIZE, tilesX - 1);
+        int ty1 = Math.min((y1 - 1) / TILE_SIZE, tilesY - 1);
+        for (int ty = Math.max(y0 / TILE_SIZE, 0); ty <= ty1; ty++) {
+            for (int tx = Math.max(x0 / TILE_SIZE, 0); tx <= tx1; tx++) {
+                activateAround(active, tx, ty);
+            }
+        }
+    }
+    
+    /**
+    * Make every tile active for the next step.
+    */
+    void touchAll() {
+        Arrays.fill(active, true);
+    }
+    
+    /**
+    * Getter for the number of tiles that will be diffused in the next step.
+    * @return The number of active tiles.
+    */
+    int getActiveTileCount() {
+        int count = 0;
+        for (boolean a : active) {
+            if (a) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+    * Getter for the largest change of any cell in the last step. Idle tiles
+    * count as unchanged.
+    * @return The largest change of any channel of any cell.
+    */
+    double getMaxChange() {
+        double max = 0;
+        for (double c : change) {
+            max = Math.max(max, c);
+        }
+        return max;
+    }
+    
+    /**
+    * Getter for the total number of tiles.
+    * @return The number of tiles.
+    */
+    int getTileCount() {
+        return active.length;
+    }
+    
+    // Mark a tile and its eight neighbors.
+    private void activateAround(boolean[] mask, int tx, int ty) {
+        for (int y = Math.max(ty - 1, 0); y <= Math.min(ty + 1, tilesY - 1); y++) {
+            for (int x = Math.max(tx - 1, 0); x <= Math.min(tx + 1, tilesX - 1); x++) {
+                mask[y * tilesX + x] = true;
+            }
+        }
+    }
+}
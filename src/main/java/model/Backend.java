@@ -0,0 +1,22 @@
+package model;
+
+/**
+* Labels for the ways a DataArray can compute its interior cells.
+* <p>
+* SCALAR accumulates each neighbor one at a time and is the reference
+* implementation. LANES sums each column of three cells once per row and
+* then combines the sums in straight-line, branch-free loops that the JIT
+* compiles to SIMD instructions. Because the additions are reordered, LANES
+* results may differ from SCALAR by up to {@link #LANES_ULP_TOLERANCE} ulps
+* of 1.0 per step.
+* @author Graf
+*
+*/
+public enum Backend {
+    SCALAR, LANES;
+    
+    /**
+    * Maximum difference per step, in ulps of 1.0, between LANES and SCALAR.
+    */
+    public static final int LANES_ULP_TOLERANCE = 16;
+}
@@ -0,0 +1,16 @@
+package model;
+
+/**
+* Labels for what lies beyond the edges of a DataArray.
+* <p>
+* ABSORBING treats cells outside the grid as 0, so color diffusing past an
+* edge is lost. This is the original behavior. REFLECTING mirrors the grid
+* at its edges, so no color is lost. PERIODIC wraps each edge around to the
+* opposite one, so the grid tiles seamlessly. FIXED holds the cells outside
+* the grid at a constant color.
+* @author Graf
+*
+*/
+public enum Boundary {
+    ABSORBING, REFLECTING, PERIODIC, FIXED
+}
@@ -0,0 +1,622 @@
+package model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+* A saved copy of the state of a simulation that can be written to a file
+* and restored later, including its emitters. Capturing copies the state,
+* so a checkpoint can be written on another thread while the simulation
+* keeps running. The copy holds the colors in the simulation's precision
+* and the emitters as bits, the same as the file. Animated sources are
+* code rather than data and are not stored, so simulations with source
+* cells cannot be captured.
+* <p>
+* The file starts with a fixed-size header holding the size of the
+* simulation, the amount it diffuses, the step count, how it stores
+* colors, and whether the rest of the file is compressed with deflate. A
+* stencil section follows, which holds the kernel and boundary of a
+* simulation built with a custom kernel, or a single 0 byte. The red, green
+* and blue planes follow in the simulation's precision, then one bit per
+* cell for the emitter mask. All values are little-endian.
+* Files are written to a temporary file that replaces the target once it
+* is complete, so a crash during a save never damages the previous
+* checkpoint.
+* @author Graf
+*
+*/
+public class Checkpoint {
+    
+    // Constants.
+    public static final long MAGIC = 0x44494646434B5031L;
+    public static final int VERSION = 2;
+    static final int HEADER_BYTES = 40;
+    static final int STENCIL_BYTES = 55;
+    static final int MAX_RADIUS = 1 << 10;
+    static final int BUFFER_BYTES = 1 << 16;
+    
+    // Instance variables.
+    private final int width;
+    private final int height;
+    private final double diffPercent;
+    private final long step;
+    private final Precision precision;
+    private final Layout layout;
+    private final Backend backend;
+    private Kernel kernel;
+    private Boundary boundary = Boundary.ABSORBING;
+    private final double[] boundaryColor = new double[3];
+    private final double[][] doubles;
+    private final float[][] floats;
+    private final char[][] fixed;
+    private final byte[] emitterBits;
+    
+    // Creates an empty checkpoint to be filled by capture or read.
+    private Checkpoint(int width, int height, double diffPercent, long step,
+            Precision precision, Layout layout, Backend backend) {
+        this.width = width;
+        this.height = height;
+        this.diffPercent = diffPercent;
+        this.step = step;
+        this.precision = precision;
+        this.layout = layout;
+        this.backend = backend;
+        
+        // Only the planes of the stored precision are allocated.
+        int cells = width * height;
+        doubles = precision == Precision.DOUBLE ? new double[3][cells] : null;
+        floats = precision == Precision.FLOAT ? new float[3][cells] : null;
+        fixed = precision == Precision.FIXED16 ? new char[3][cells] : null;
+        emitterBits = new byte[(int)((cells + 7L) / 8)];
+    }
+    
+    /**
+    * Copy the current state of a simulation. This must run on the thread
+    * that steps the simulation, between steps.
+    * @param da The simulation to copy, including its step count, kernel
+    * and boundary.
+    * @return The checkpoint.
+    * @throws UnsupportedOperationException If cells are driven by sources.
+    */
+    public static Checkpoint capture(DataArray da) {
+        if (da.getSourceCellCount() > 0) {
+            throw new UnsupportedOperationException(
+                    "Checkpoints do not support animated sources.");
+        }
+        Checkpoint cp = new Checkpoint(da.getWidth(), da.getHeight(),
+                da.getDiffusePercent(), da.getStepCount(), da.getPrecision(),
+                da.getLayout(), da.getBackend());
+        cp.kernel = da.getKernel();
+        cp.boundary = da.getBoundary();
+        for (int c = 0; c < 3; c++) {
+            cp.boundaryColor[c] = da.getBoundaryColor(c);
+        }
+        int cells = cp.width * cp.height;
+        for (int i = 0; i < cells; i++) {
+            cp.store(0, i, da.getRed(i));
+            cp.store(1, i, da.getGreen(i));
+            cp.store(2, i, da.getBlue(i));
+            if (da.isEmitter(i)) {
+                cp.emitterBits[i >>> 3] |= 1 << (i & 7);
+            }
+        }
+        return cp;
+    }
+    
+    /**
+    * Create a new simulation from this checkpoint, with the kernel and
+    * boundary it was captured with.
+    * @param parallelism The number of threads used to diffuse the
+    * simulation.
+    * @return The restored simulation.
+    */
+    public DataArray restore(int parallelism) {
+        DataArray da;
+        if (kernel != null) {
+            da = new DataArray(width, height, kernel, boundary, parallelism);
+            if (boundary == Boundary.FIXED) {
+                da.setBoundaryColor(boundaryColor[0], boundaryColor[1],
+                        boundaryColor[2]);
+            }
+        } else {
+            da = new DataArray(width, height, diffPercent, parallelism,
+                    backend, precision, layout);
+        }
+        restoreInto(da);
+        return da;
+    }
+    
+    /**
+    * Replace the colors, emitters and step count of an existing simulation
+    * with the ones in this checkpoint. The simulation keeps its own
+    * settings.
+    * @param da The simulation to overwrite, of the same size.
+    * @throws IllegalArgumentException If the sizes differ.
+    */
+    public void restoreInto(DataArray da) {
+        if (da.getWidth() != width || da.getHeight() != height) {
+            throw new IllegalArgumentException(String.format(
+                    "Checkpoint is %dx%d but the simulation is %dx%d.",
+                    width, height, da.getWidth(), da.getHeight()));
+        }
+        for (int i = 0; i < width * height; i++) {
+            da.setCell(i, load(0, i), load(1, i), load(2, i),
+                    (emitterBits[i >>> 3] & (1 << (i & 7))) != 0);
+        }
+        da.setStepCount(step);
+    }
+    
+    /* Store one channel of a cell in the stored precision. The values of a
+    * simulation with that precision are stored exactly.
+    */
+    private void store(int channel, int index, double value) {
+        switch (precision) {
+            case FLOAT:
+            floats[channel][index] = (float)value;
+            break;
+            case FIXED16:
+            fixed[channel][index] = (char)Math.round(value * FixedPlanes.ONE);
+            break;
+            case DOUBLE:
+            default:
+            doubles[channel][index] = value;
+            break;
+        }
+    }
+    
+    // Load one channel of a cell, as store stored it.
+    private double load(int channel, int index) {
+        switch (precision) {
+            case FLOAT:
+            return floats[channel][index];
+            case FIXED16:
+            return fixed[channel][index] / (double)FixedPlanes.ONE;
+            case DOUBLE:
+            default:
+            return doubles[channel][index];
+        }
+    }
+    
+    /**
+    * Write this checkpoint to a file.
+    * @param file The file to write, replaced if it exists.
+    * @param compress True to compress the planes with deflate.
+    * @throws IOException If the file cannot be written.
+    */
+    public void write(File file, boolean compress) throws IOException {
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(MAGIC).putInt(VERSION).putInt(width).putInt(height)
+                    .putDouble(diffPercent).putLong(step)
+                    .put((byte)precision.ordinal()).put((byte)layout.ordinal())
+                    .put((byte)backend.ordinal()).put((byte)(compress ? 1 : 0));
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            ByteBuffer stencil = stencil();
+            while (stencil.hasRemaining()) {
+                channel.write(stencil);
+            }
+            
+            if (compress) {
+                // Finished rather than closed, so the channel stays open.
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                DeflaterOutputStream out = new DeflaterOutputStream(
+                        Channels.newOutputStream(channel), deflater,
+                        BUFFER_BYTES);
+                try {
+                    writePayload(new Output(out));
+                    out.finish();
+                } finally {
+                    deflater.end();
+                }
+            } else {
+                writePayload(new Output(channel));
+            }
+            channel.force(false);
+        }
+        
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+    * Write this checkpoint to a file on another thread.
+    * @param file The file to write, replaced if it exists.
+    * @param compress True to compress the planes with deflate.
+    * @param executor The executor that writes the file.
+    * @return A future that completes once the file is written, or
+    * completes with an UncheckedIOException if it cannot be written.
+    */
+    public CompletableFuture<Void> writeAsync(File file, boolean compress,
+            Executor executor) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                write(file, compress);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }, executor);
+    }
+    
+    /**
+    * Read a checkpoint from a file.
+    * @param file The file to read.
+    * @return The checkpoint.
+    * @throws IOException If the file cannot be read, is not a checkpoint
+    * or holds an invalid size.
+    */
+    public static Checkpoint read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    throw new IOException(file + " is not a checkpoint.");
+                }
+            }
+            header.flip();
+            if (header.getLong() != MAGIC) {
+                throw new IOException(file + " is not a checkpoint.");
+            }
+            int version = header.getInt();
+            if (version != VERSION && version != 1) {
+                throw new IOException(String.format(
+                        "%s has unsupported checkpoint version %d.",
+                        file, version));
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            double diffPercent = header.getDouble();
+            long step = header.getLong();
+            int p = header.get();
+            int l = header.get();
+            int b = header.get();
+            boolean compressed = header.get() != 0;
+            if (p >= Precision.values().length || l >= Layout.values().length
+                    || b >= Backend.values().length || p < 0 || l < 0 || b < 0) {
+                throw new IOException(file + " has an invalid header.");
+            }
+            
+            // Checked before the planes are allocated, so a damaged size
+            // fails as an IOException rather than an allocation error.
+            if (width <= 0 || height <= 0
+                    || (long)width * height > Integer.MAX_VALUE) {
+                throw new IOException(String.format(
+                        "%s has an invalid size %dx%d.", file, width, height));
+            }
+            Precision precision = Precision.values()[p];
+            Layout layout = Layout.values()[l];
+            Backend backend = Backend.values()[b];
+            
+            Checkpoint cp = new Checkpoint(width, height, diffPercent, step,
+                    precision, layout, backend);
+            
+            // Version 1 files have no stencil section.
+            if (version > 1) {
+                cp.readStencil(channel, file);
+            }
+            if (compressed) {
+                Inflater inflater = new Inflater();
+                try (InputStream in = new InflaterInputStream(
+                        Channels.newInputStream(channel), inflater,
+                        BUFFER_BYTES)) {
+                    cp.readPayload(new Input(in));
+                } finally {
+                    inflater.end();
+                }
+            } else {
+                cp.readPayload(new Input(channel));
+            }
+            return cp;
+        }
+    }
+    
+    /* The stencil section: a byte that is 1 if a kernel follows, then its
+    * shape, the boundary, the radius, the three rates, the boundary color
+    * and the weights of the neighborhood.
+    */
+    private ByteBuffer stencil() {
+        if (kernel == null) {
+            return ByteBuffer.wrap(new byte[1]);
+        }
+        double[] weights = kernel.getWeights();
+        ByteBuffer b = ByteBuffer.allocate(STENCIL_BYTES
+                + weights.length * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        b.put((byte)1).put((byte)kernel.getShape().ordinal())
+                .put((byte)boundary.ordinal()).putInt(kernel.getRadius());
+        for (int c = 0; c < 3; c++) {
+            b.putDouble(kernel.getRate(c));
+        }
+        for (double v : boundaryColor) {
+            b.putDouble(v);
+        }
+        for (double w : weights) {
+            b.putDouble(w);
+        }
+        b.flip();
+        return b;
+    }
+    
+    // Read what stencil wrote.
+    private void readStencil(FileChannel channel, File file)
+            throws IOException {
+        ByteBuffer b = readFully(channel, 1, file);
+        if (b.get() == 0) {
+            return;
+        }
+        b = readFully(channel, STENCIL_BYTES - 1, file);
+        int shape = b.get();
+        int edge = b.get();
+        int radius = b.getInt();
+        if (shape < 0 || shape >= Kernel.Shape.values().length || edge < 0
+                || edge >= Boundary.values().length || radius < 1
+                || radius > MAX_RADIUS) {
+            throw new IOException(file + " has an invalid stencil.");
+        }
+        double[] rates = new double[3];
+        for (int c = 0; c < 3; c++) {
+            rates[c] = b.getDouble();
+        }
+        for (int c = 0; c < 3; c++) {
+            boundaryColor[c] = b.getDouble();
+        }
+        int side = 2 * radius + 1;
+        double[] weights = new double[side * side];
+        readFully(channel, weights.length * Double.BYTES, file).asDoubleBuffer()
+                .get(weights);
+        try {
+            kernel = new Kernel(Kernel.Shape.values()[shape], radius, weights,
+                    rates);
+        } catch (IllegalArgumentException iae) {
+            throw new IOException(file + " has an invalid stencil.", iae);
+        }
+        boundary = Boundary.values()[edge];
+    }
+    
+    // Read a number of bytes from a channel into a new buffer.
+    private static ByteBuffer readFully(FileChannel channel, int bytes,
+            File file) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining()) {
+            if (channel.read(b) < 0) {
+                throw new IOException(file + " ends unexpectedly.");
+            }
+        }
+        b.flip();
+        return b;
+    }
+    
+    // Write the three planes in the stored precision, then the emitter bits.
+    private void writePayload(Output output) throws IOException {
+        int cells = width * height;
+        for (int c = 0; c < 3; c++) {
+            for (int i = 0; i < cells; i++) {
+                ByteBuffer b = output.reserve(precision.getBytesPerChannel());
+                switch (precision) {
+                    case FLOAT:
+                    b.putFloat(floats[c][i]);
+                    break;
+                    case FIXED16:
+                    b.putChar(fixed[c][i]);
+                    break;
+                    case DOUBLE:
+                    default:
+                    b.putDouble(doubles[c][i]);
+                    break;
+                }
+            }
+        }
+        for (byte bits : emitterBits) {
+            output.reserve(1).put(bits);
+        }
+        output.flush();
+    }
+    
+    // Read what writePayload wrote.
+    private void readPayload(Input input) throws IOException {
+        int cells = width * height;
+        for (int c = 0; c < 3; c++) {
+            for (int i = 0; i < cells; i++) {
+                ByteBuffer b = input.require(precision.getBytesPerChannel());
+                switch (precision) {
+                    case FLOAT:
+                    floats[c][i] = b.getFloat();
+                    break;
+                    case FIXED16:
+                    fixed[c][i] = b.getChar();
+                    break;
+                    case DOUBLE:
+                    default:
+                    doubles[c][i] = b.getDouble();
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < emitterBits.length; i++) {
+            emitterBits[i] = input.require(1).get();
+        }
+    }
+    
+    /**
+    * Getter for the width of the simulation.
+    * @return The width.
+    */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+    * Getter for the height of the simulation.
+    * @return The height.
+    */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+    * Getter for the amount of color a cell diffuses per step.
+    * @return The diffuse percent.
+    */
+    public double getDiffusePercent() {
+        return diffPercent;
+    }
+    
+    /**
+    * Getter for the number of steps the simulation had run.
+    * @return The step count.
+    */
+    public long getStep() {
+        return step;
+    }
+    
+    /**
+    * Getter for the number format of the simulation.
+    * @return The precision.
+    */
+    public Precision getPrecision() {
+        return precision;
+    }
+    
+    /**
+    * Getter for the kernel of the simulation.
+    * @return The kernel, or null for the default stencil.
+    */
+    public Kernel getKernel() {
+        return kernel;
+    }
+    
+    /**
+    * Getter for what lies beyond the edges of the simulation.
+    * @return The boundary.
+    */
+    public Boundary getBoundary() {
+        return boundary;
+    }
+    
+    /* Fills one buffer and hands it to a channel or a stream whenever it is
+    * full. Uncompressed files use a direct buffer, so the channel writes
+    * from it without copying.
+    */
+    private static class Output {
+    
+        private final FileChannel channel;
+        private final OutputStream out;
+        private final ByteBuffer buffer;
+        
+        Output(FileChannel channel) {
+            this.channel = channel;
+            out = null;
+            buffer = ByteBuffer.allocateDirect(BUFFER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        
+        Output(OutputStream out) {
+            channel = null;
+            this.out = out;
+            buffer = ByteBuffer.allocate(BUFFER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        
+        // The buffer, with room for at least the given number of bytes.
+        ByteBuffer reserve(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            return buffer;
+        }
+        
+        void flush() throws IOException {
+            buffer.flip();
+            if (channel != null) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } else {
+                out.write(buffer.array(), 0, buffer.limit());
+            }
+            buffer.clear();
+        }
+    }
+    
+    // Refills one buffer from a channel or a stream, like Output in reverse.
+    private static class Input {
+    
+        private final FileChannel channel;
+        private final InputStream in;
+        private final ByteBuffer buffer;
+        
+        Input(FileChannel channel) {
+            this.channel = channel;
+            in = null;
+            buffer = ByteBuffer.allocateDirect(BUFFER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.limit(0);
+        }
+        
+        Input(InputStream in) {
+            channel = null;
+            this.in = in;
+            buffer = ByteBuffer.allocate(BUFFER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.limit(0);
+        }
+        
+        // The buffer, holding at least the given number of unread bytes.
+        ByteBuffer require(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return buffer;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                int n;
+                if (channel != null) {
+                    n = channel.read(buffer);
+                } else {
+                    n = in.read(buffer.array(), buffer.position(),
+                            buffer.remaining());
+                    if (n > 0) {
+                        buffer.position(buffer.position() + n);
+                    }
+                }
+                if (n < 0) {
+                    throw new IOException("Checkpoint ends unexpectedly.");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
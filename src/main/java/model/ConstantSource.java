@@ -0,0 +1,34 @@
+package model;
+
+/**
+* A source whose color never changes, like an emitter drawn with
+* DataArray.draw.
+* @author Graf
+*
+*/
+public class ConstantSource extends Source {
+    
+    // Instance variables.
+    private final double red;
+    private final double green;
+    private final double blue;
+    
+    /**
+    * Constructor.
+    * @param red The red value, between 0 and 1.
+    * @param green The green value, between 0 and 1.
+    * @param blue The blue value, between 0 and 1.
+    */
+    public ConstantSource(double red, double green, double blue) {
+        this.red = clamp(red);
+        this.green = clamp(green);
+        this.blue = clamp(blue);
+    }
+    
+    @Override
+    public void color(long age, double[] rgb) {
+        rgb[0] = red;
+        rgb[1] = green;
+        rgb[2] = blue;
+    }
+}
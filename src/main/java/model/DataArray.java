@@ -1,46 +1,441 @@
 package model;
 
-import javafx.scene.paint.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
 * The DataArray class stores all of the data and methods necessary
-* for running the color simulation.
+* for running the color simulation. A simulation with a parallelism
+* above 1 owns a pool of threads; close it once it is no longer used.
 *
 * @author Graf
 *
 */
-public class DataArray {
+public class DataArray implements AutoCloseable {
     
     // Instance variables.
-    private double[] currRed;
-    private double[] currGreen;
-    private double[] currBlue;
-    private double[] nextRed;
-    private double[] nextGreen;
-    private double[] nextBlue;
-    private boolean[] isEmitter;
+    private Planes planes;
+    private EmitterMask emitters;
+    private boolean emittersShared;
+    private SourceTable sources;
+    private long time;
     private int width;
     private int height;
     private double diffPercent;
+    private Kernel kernel;
+    private Boundary boundary = Boundary.ABSORBING;
+    private int parallelism;
+    private ForkJoinPool pool;
+    private Backend backend;
+    private Precision precision;
+    private Layout layout;
+    private ActivityMap activity;
+    private TemporalBlocker blocker;
+    private int blockDepth = 1;
+    private double threshold;
+    private double residual = Double.NaN;
     
     /**
-    * Constructor.
+    * Constructor. The simulation is diffused on the calling thread.
     *
     * @param x	The width of the simulation area.
     * @param y The height of the simulation area.
     * @param diffusePercent The amount of color a cell diffuses per step.
     */
     public DataArray(int x, int y, double diffusePercent) {
+        this(x, y, diffusePercent, 1);
+    }
+    
+    /**
+    * Constructor.
+    *
+    * @param x	The width of the simulation area.
+    * @param y The height of the simulation area.
+    * @param diffusePercent The amount of color a cell diffuses per step.
+    * @param parallelism The number of threads used to diffuse the
+    * simulation. A value of 1 diffuses on the calling thread.
+    */
+    public DataArray(int x, int y, double diffusePercent, int parallelism) {
+        this(x, y, diffusePercent, parallelism, Backend.SCALAR);
+    }
+    
+    /**
+    * Constructor.
+    *
+    * @param x	The width of the simulation area.
+    * @param y The height of the simulation area.
+    * @param diffusePercent The amount of color a cell diffuses per step.
+    * @param parallelism The number of threads used to diffuse the
+    * simulation. A value of 1 diffuses on the calling thread.
+    * @param backend The way interior cells are computed.
+    */
+    public DataArray(int x, int y, double diffusePercent, int parallelism,
+            Backend backend) {
+        this(x, y, diffusePercent, parallelism, backend, Precision.DOUBLE);
+    }
+    
+    /**
+    * Constructor.
+    *
+    * @param x	The width of the simulation area.
+    * @param y The height of the simulation area.
+    * @param diffusePercent The amount of color a cell diffuses per step.
+    * @param parallelism The number of threads used to diffuse the
+    * simulation. A value of 1 diffuses on the calling thread.
+    * @param backend The way interior cells are computed. Only DOUBLE
+    * precision has a LANES kernel; other precisions ignore this setting.
+    * @param precision The number format color values are stored in.
+    */
+    public DataArray(int x, int y, double diffusePercent, int parallelism,
+            Backend backend, Precision precision) {
+        this(x, y, diffusePercent, parallelism, backend, precision,
+                Layout.PLANAR);
+    }
+    
+    /**
+    * Constructor.
+    *
+    * @param x	The width of the simulation area.
+    * @param y The height of the simulation area.
+    * @param diffusePercent The amount of color a cell diffuses per step.
+    * @param parallelism The number of threads used to diffuse the
+    * simulation. A value of 1 diffuses on the calling thread.
+    * @param backend The way interior cells are computed. Only DOUBLE
+    * precision has a LANES kernel; other precisions ignore this setting.
+    * @param precision The number format color values are stored in.
+    * @param layout The arrangement of color values in memory. INTERLEAVED
+    * requires DOUBLE precision and has no LANES kernel.
+    */
+    public DataArray(int x, int y, double diffusePercent, int parallelism,
+            Backend backend, Precision precision, Layout layout) {
+        this(x, y, diffusePercent, parallelism, backend, precision, layout,
+                null);
+    }
+    
+    /* Creates a simulation with an existing emitter mask of the same size,
+    * or a new one if it is null. The mask is allocated after the planes,
+    * so a size the planes reject allocates nothing.
+    */
+    private DataArray(int x, int y, double diffusePercent, int parallelism,
+            Backend backend, Precision precision, Layout layout,
+            EmitterMask emitters) {
         width = x;
         height = y;
-        currRed= new double[width * height];
-        currGreen= new double[width * height];
-        currBlue= new double[width * height];
-        nextRed = new double[width * height];
-        nextGreen = new double[width * height];
-        nextBlue = new double[width * height];
-        isEmitter = new boolean[width * height];
+        if (layout == Layout.INTERLEAVED && precision != Precision.DOUBLE) {
+            throw new IllegalArgumentException(
+                    "The INTERLEAVED layout requires DOUBLE precision.");
+        }
+        switch (precision) {
+            case FLOAT:
+            planes = new FloatPlanes(width, height, diffusePercent);
+            break;
+            case FIXED16:
+            planes = new FixedPlanes(width, height, diffusePercent);
+            break;
+            case DOUBLE:
+            default:
+            if (layout == Layout.INTERLEAVED) {
+                planes = new PackedPlanes(width, height, diffusePercent);
+            } else {
+                planes = new DoublePlanes(width, height, diffusePercent,
+                        backend);
+            }
+            break;
+        }
+        this.emitters = emitters != null ? emitters
+                : new EmitterMask((long)width * height);
+        sources = new SourceTable(width, height);
         diffPercent = diffusePercent;
+        this.backend = backend;
+        this.precision = precision;
+        this.layout = layout;
+        setParallelism(parallelism);
+    }
+    
+    /**
+    * Constructor for a simulation that diffuses with a custom kernel.
+    * EIGHT_NEIGHBOR kernels with the same rate for every channel use the
+    * specialized DOUBLE kernels and support every feature; other kernels
+    * use DOUBLE precision, the PLANAR layout and the SCALAR backend, and do
+    * not support sparse tracking, temporal blocking, jumpAhead in the
+    * frequency domain, solveSteadyState or the color array getters.
+    *
+    * @param x	The width of the simulation area.
+    * @param y The height of the simulation area.
+    * @param kernel The stencil and per-channel diffusion rates.
+    * @param parallelism The number of threads used to diffuse the
+    * simulation. A value of 1 diffuses on the calling thread.
+    */
+    public DataArray(int x, int y, Kernel kernel, int parallelism) {
+        this(x, y, kernel, Boundary.ABSORBING, parallelism);
+    }
+    
+    /**
+    * Constructor for a simulation with a custom kernel and boundary. Any
+    * boundary but ABSORBING has the same restrictions as a custom kernel,
+    * even with the uniform EIGHT_NEIGHBOR kernel.
+    *
+    * @param x	The width of the simulation area.
+    * @param y The height of the simulation area.
+    * @param kernel The stencil and per-channel diffusion rates.
+    * @param boundary What lies beyond the edges of the simulation area.
+    * @param parallelism The number of threads used to diffuse the
+    * simulation. A value of 1 diffuses on the calling thread.
+    */
+    public DataArray(int x, int y, Kernel kernel, Boundary boundary,
+            int parallelism) {
+        width = x;
+        height = y;
+        if (kernel.isUniformEightNeighbor() && boundary == Boundary.ABSORBING) {
+            planes = new DoublePlanes(width, height, kernel.getRate(0),
+                    Backend.SCALAR);
+        } else {
+            planes = new KernelPlanes(width, height, kernel, boundary);
+        }
+        emitters = new EmitterMask(width * height);
+        sources = new SourceTable(width, height);
+        diffPercent = kernel.isUniformEightNeighbor() ? kernel.getRate(0)
+                : (kernel.getRate(0) + kernel.getRate(1) + kernel.getRate(2)) / 3;
+        this.kernel = kernel;
+        this.boundary = boundary;
+        backend = Backend.SCALAR;
+        precision = Precision.DOUBLE;
+        layout = Layout.PLANAR;
+        setParallelism(parallelism);
+    }
+    
+    /**
+    * Constructor for a simulation stored in a memory-mapped file instead
+    * of on the heap. If the file exists, the simulation stored in it,
+    * including its emitters, is resumed. Mapped simulations use DOUBLE
+    * precision, the PLANAR layout and the SCALAR backend, and do not
+    * support sparse tracking or temporal blocking. They may have more than
+    * Integer.MAX_VALUE cells, which the long cell accessors address, but
+    * then do not support sources, ARGB pixels, jumpAhead in the frequency
+    * domain or solveSteadyState, which copy every cell into an array.
+    *
+    * @param x	The width of the simulation area.
+    * @param y The height of the simulation area.
+    * @param diffusePercent The amount of color a cell diffuses per step.
+    * @param parallelism The number of threads used to diffuse the
+    * simulation. A value of 1 diffuses on the calling thread.
+    * @param file The file holding the simulation.
+    * @throws IOException If the file cannot be mapped or holds a
+    * simulation of a different size.
+    */
+    public DataArray(int x, int y, double diffusePercent, int parallelism,
+            File file) throws IOException {
+        width = x;
+        height = y;
+        MappedPlanes mapped = new MappedPlanes(file, width, height,
+                diffusePercent, MappedPlanes.CHUNK_BYTES);
+        planes = mapped;
+        emitters = new EmitterMask((long)width * height);
+        sources = new SourceTable(width, height);
+        if (mapped.isResumed()) {
+            mapped.loadEmitters(emitters);
+        }
+        diffPercent = diffusePercent;
+        backend = Backend.SCALAR;
+        precision = Precision.DOUBLE;
+        layout = Layout.PLANAR;
+        setParallelism(parallelism);
+    }
+    
+    /**
+    * Constructor for a member of an ensemble. It starts from the current
+    * colors and step count of a scene and shares the scene's emitter mask
+    * until either of them changes its emitters. Sources are not copied.
+    *
+    * @param scene The simulation to start from. It must use the default
+    * stencil.
+    * @param diffusePercent The amount of color a cell diffuses per step.
+    */
+    DataArray(DataArray scene, double diffusePercent) {
+        this(scene.width, scene.height, diffusePercent, 1, scene.backend,
+                scene.precision, scene.layout, scene.indexedEmitters());
+        if (scene.kernel != null) {
+            throw new UnsupportedOperationException(
+                    "Ensembles only support the default stencil.");
+        }
+        for (int i = 0; i < width * height; i++) {
+            planes.set(i, scene.planes.getRed(i), scene.planes.getGreen(i),
+                    scene.planes.getBlue(i));
+        }
+        emittersShared = true;
+        scene.emittersShared = true;
+        time = scene.time;
+    }
+    
+    /* The emitter mask with its index built, to be shared with an ensemble
+    * member. The index must be built before members read the mask
+    * concurrently.
+    */
+    private EmitterMask indexedEmitters() {
+        emitters.index();
+        return emitters;
+    }
+    
+    /* The emitter mask, copied first if it is shared with other
+    * simulations, so that changing it affects only this one.
+    */
+    private EmitterMask ownEmitters() {
+        if (emittersShared) {
+            emitters = emitters.copy();
+            emittersShared = false;
+        }
+        return emitters;
+    }
+    
+    /**
+    * Determines if the simulation is stored in a memory-mapped file.
+    * @return True if it was constructed from a file.
+    */
+    public boolean isMapped() {
+        return planes instanceof MappedPlanes;
+    }
+    
+    /**
+    * Write a simulation stored in a memory-mapped file, including its
+    * emitters, through to the file so it can be resumed. Does nothing for
+    * simulations stored on the heap.
+    */
+    public void flush() {
+        if (planes instanceof MappedPlanes) {
+            ((MappedPlanes)planes).flush(emitters);
+        }
+    }
+    
+    /**
+    * Change the number of threads used to diffuse the simulation. The
+    * grid is split into horizontal bands of rows that are diffused
+    * independently, so the result is identical for every parallelism level.
+    * @param threads The desired number of threads. A value of 1 diffuses on
+    * the calling thread.
+    */
+    public void setParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "Parallelism must be a positive integer.");
+        }
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        parallelism = threads;
+        if (parallelism > 1) {
+            pool = new ForkJoinPool(parallelism);
+        }
+    }
+    
+    /**
+    * Shut down the threads that diffuse the simulation. The simulation
+    * stays usable and diffuses on the calling thread afterwards. This does
+    * not flush a memory-mapped simulation.
+    */
+    @Override
+    public void close() {
+        setParallelism(1);
+    }
+    
+    /**
+    * Getter for the number of threads used to diffuse the simulation.
+    * @return The parallelism level.
+    */
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    /**
+    * Getter for the way interior cells are computed.
+    * @return The backend chosen at construction.
+    */
+    public Backend getBackend() {
+        return backend;
+    }
+    
+    /**
+    * Getter for the number format color values are stored in.
+    * @return The precision chosen at construction.
+    */
+    public Precision getPrecision() {
+        return precision;
+    }
+    
+    /**
+    * Getter for the arrangement of color values in memory.
+    * @return The layout chosen at construction.
+    */
+    public Layout getLayout() {
+        return layout;
+    }
+    
+    /**
+    * Getter for the memory one cell takes, which depends on the precision,
+    * the layout and the stencil.
+    * @return The bytes of the current and next planes and the emitter mask
+    * divided by the number of cells.
+    */
+    public double getBytesPerCell() {
+        return (double)(planes.getBytes() + emitters.getBytes())
+                / ((long)width * height);
+    }
+    
+    /**
+    * Getter for the amount of color a cell diffuses per step.
+    * @return The diffusion percentage, or the mean of the channel rates
+    * of a custom kernel.
+    */
+    public double getDiffusePercent() {
+        return diffPercent;
+    }
+    
+    /**
+    * Getter for the stencil and per-channel rates the simulation diffuses
+    * with.
+    * @return The kernel given at construction, or null for the uniform
+    * EIGHT_NEIGHBOR stencil at the diffusion percentage.
+    */
+    public Kernel getKernel() {
+        return kernel;
+    }
+    
+    /**
+    * Getter for what lies beyond the edges of the simulation area.
+    * @return The boundary chosen at construction, ABSORBING by default.
+    */
+    public Boundary getBoundary() {
+        return boundary;
+    }
+    
+    /**
+    * Set the color of the cells beyond a FIXED boundary. It is 0 until
+    * set.
+    * @param red The red value, between 0 and 1.
+    * @param green The green value, between 0 and 1.
+    * @param blue The blue value, between 0 and 1.
+    */
+    public void setBoundaryColor(double red, double green, double blue) {
+        if (boundary != Boundary.FIXED) {
+            throw new IllegalStateException(
+                    "Only a FIXED boundary has a color.");
+        }
+        ((KernelPlanes)planes).setBoundaryColor(red, green, blue);
+        residual = Double.NaN;
+    }
+    
+    /**
+    * Getter for the color of the cells beyond a FIXED boundary.
+    * @param channel 0 for red, 1 for green, 2 for blue.
+    * @return The value of the channel, 0 for every other boundary.
+    */
+    public double getBoundaryColor(int channel) {
+        if (boundary != Boundary.FIXED) {
+            return 0;
+        }
+        return ((KernelPlanes)planes).getBoundaryColor(channel);
     }
     
     /**
@@ -48,105 +443,423 @@ public class DataArray {
     * removes emitters.
     */
     public void clear() {
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                this.currRed[i * width + j] = 0;
-                this.currGreen[i * width + j] = 0;
-                this.currBlue[i * width + j] = 0;
-                this.isEmitter[i * width + j] = false;
-            }
+        planes.clear();
+        if (emittersShared) {
+            emitters = new EmitterMask((long)width * height);
+            emittersShared = false;
+        } else {
+            emitters.clear();
+        }
+        sources.clear();
+        residual = Double.NaN;
+        if (activity != null) {
+            activity.touchAll();
         }
     }
     
-    /* Sets the color value of a cell based on the color values of
-    * its neighbors.
+    /**
+    * Set the residual below which the simulation counts as converged. While
+    * a threshold is set, every step measures the largest change of any
+    * channel of any cell while diffusing, and step(int) stops early once
+    * the change is at most the threshold. Temporal blocking is not used
+    * while a threshold is set, because blocked steps cannot be measured
+    * one at a time.
+    * @param threshold The largest change per step of a converged
+    * simulation, or 0 to stop measuring.
     */
-    private void diffusePixel(int x, int y) {
+    public void setConvergenceThreshold(double threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException(
+                    "Convergence threshold must not be negative.");
+        }
+        this.threshold = threshold;
+        residual = Double.NaN;
+    }
+    
+    /**
+    * Getter for the convergence threshold.
+    * @return The threshold, or 0 if steps are not measured.
+    */
+    public double getConvergenceThreshold() {
+        return threshold;
+    }
+    
+    /**
+    * Getter for the residual of the last step, the largest change of any
+    * channel of any cell. With sparse tracking, idle tiles count as
+    * unchanged.
+    * @return The residual, or NaN if the last step was not measured or
+    * the simulation was changed since.
+    */
+    public double getResidual() {
+        return residual;
+    }
+    
+    /**
+    * Determines if the last step changed the simulation by at most the
+    * convergence threshold.
+    * @return True if the simulation has converged.
+    */
+    public boolean isConverged() {
+        return threshold > 0 && residual <= threshold;
+    }
+    
+    /**
+    * Turn tracking of idle regions on or off. While it is on, the grid is
+    * split into 32x32 tiles, and tiles that neither changed by more than
+    * epsilon nor had a neighboring tile change by more than epsilon in the
+    * last step are skipped. Drawing on a tile makes it active again. With an
+    * epsilon of 0 the result is identical to diffusing every cell. Sparse
+    * tracking requires DOUBLE precision with the PLANAR layout and always
+    * uses the SCALAR kernel.
+    * @param enabled True to skip idle tiles.
+    * @param epsilon The largest change per step an idle tile may have.
+    */
+    public void setSparseTracking(boolean enabled, double epsilon) {
+        if (!enabled) {
+            activity = null;
+            return;
+        }
+        if (!(planes instanceof DoublePlanes)) {
+            throw new IllegalStateException(
+                    "Sparse tracking requires DOUBLE precision and the PLANAR layout.");
+        }
+        activity = new ActivityMap((DoublePlanes)planes, width, height,
+                epsilon);
+    }
+    
+    /**
+    * Set how many steps step(int) advances per pass over memory. With a
+    * depth above 1, the grid is advanced in 64x64 tiles, each with a halo
+    * as wide as the depth, so that the planes are read and written once per
+    * depth steps instead of once per step. The result is bit-identical to
+    * calling diffuse and swapArrays once per step. Blocking requires DOUBLE
+    * precision with the PLANAR layout and is not combined with sparse
+    * tracking; otherwise step(int) falls back to single steps.
+    * @param depth The number of steps per pass, 1 to turn blocking off.
+    */
+    public void setTemporalBlocking(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException(
+                    "Blocking depth must be a positive integer.");
+        }
+        blockDepth = depth;
+        blocker = depth > 1 && planes instanceof DoublePlanes
+                ? new TemporalBlocker((DoublePlanes)planes, width, height,
+                        depth)
+                : null;
+    }
+    
+    /**
+    * Getter for the fraction of the grid that the next step will diffuse.
+    * @return 1 without sparse tracking, otherwise the fraction of active
+    * tiles.
+    */
+    public double getActiveFraction() {
+        if (activity == null) {
+            return 1;
+        }
+        return activity.getActiveTileCount() / (double)activity.getTileCount();
+    }
+    
+    /**
+    * This method diffuses every cell in the simulation. It
+    * prepares nextArr to be swapped and painted and effectively advances
+    * the simulation by one time-step.
+    */
+    public void diffuse() {
         
-        int idx = y * width + x;
-        int prevRow = (y - 1) * width + x;
-        int nextRow = (y + 1) * width + x;
+        // With sparse tracking, bands are made of rows of tiles.
+        int rows = activity == null ? height : activity.getTileRows();
+        emitters.index();
+        planes.prepareStep();
+        double change;
+        if (pool == null) {
+            change = diffuseBand(0, rows);
+        } else {
+            // Several bands per thread keep the work balanced.
+            int bandSize = Math.max(1, rows / (parallelism * 4));
+            DiffuseTask task = new DiffuseTask(0, rows, bandSize);
+            pool.invoke(task);
+            change = task.change;
+        }
         
-        // Emitter's values are constant.
-        if (isEmitter[idx]) {
-            nextRed[idx] = currRed[idx];
-            nextGreen[idx] = currGreen[idx];
-            nextBlue[idx] = currBlue[idx];
-            return;
+        if (threshold <= 0) {
+            residual = Double.NaN;
+        } else if (activity == null) {
+            residual = change;
+        } else {
+            residual = activity.getMaxChange();
         }
+    }
+    
+    /* Diffuse a band of rows, or of tile rows with sparse tracking. Returns
+    * the band's largest change if steps are measured without sparse
+    * tracking, otherwise 0.
+    */
+    private double diffuseBand(int startRow, int endRow) {
+        if (activity != null) {
+            activity.diffuseTileRows(startRow, endRow, emitters);
+        } else if (threshold > 0) {
+            return planes.diffuseRowsMeasured(startRow, endRow, emitters);
+        } else {
+            planes.diffuseRows(startRow, endRow, emitters);
+        }
+        return 0;
+    }
+    
+    /* Diffuses a band of rows, splitting it in half until the band is
+    * small enough to run directly. Each cell only reads the current arrays
+    * and writes its own cell in the next arrays, so bands never conflict.
+    */
+    private class DiffuseTask extends RecursiveAction {
         
-        // Determine the cell's value in the next array.
-        double nRed = currRed[idx] * (1 - diffPercent);
-        double nGreen = currGreen[idx] * (1 - diffPercent);
-        double nBlue = currBlue[idx] * (1 - diffPercent);
-        
-        // Left neighbors.
-        if (x > 0) {
-            nRed += (currRed[idx - 1] * diffPercent) / 8;
-            nGreen += (currGreen[idx - 1] * diffPercent) / 8;
-            nBlue += (currBlue[idx - 1] * diffPercent) / 8;
-            
-            if (y > 0) {
-                nRed += (currRed[prevRow - 1] * diffPercent) / 8;
-                nGreen += (currGreen[prevRow - 1] * diffPercent) / 8;
-                nBlue += (currBlue[prevRow - 1] * diffPercent) / 8;
+        private static final long serialVersionUID = 1L;
+        
+        private final int startRow;
+        private final int endRow;
+        private final int bandSize;
+        private double change;
+        
+        DiffuseTask(int startRow, int endRow, int bandSize) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.bandSize = bandSize;
+        }
+        
+        @Override
+        protected void compute() {
+            if (endRow - startRow <= bandSize) {
+                change = diffuseBand(startRow, endRow);
+            } else {
+                int mid = (startRow + endRow) >>> 1;
+                DiffuseTask top = new DiffuseTask(startRow, mid, bandSize);
+                DiffuseTask bottom = new DiffuseTask(mid, endRow, bandSize);
+                invokeAll(top, bottom);
+                change = Math.max(top.change, bottom.change);
             }
-            
-            if (y < height - 1) {
-                nRed += (currRed[nextRow - 1] * diffPercent) / 8;
-                nGreen += (currGreen[nextRow - 1] * diffPercent) / 8;
-                nBlue += (currBlue[nextRow - 1] * diffPercent) / 8;
+        }
+    }
+    
+    /**
+    * Advance the simulation by several steps. This is the same as calling
+    * diffuse and swapArrays once per step, but uses temporal blocking when
+    * it is turned on. With a convergence threshold, it stops after the
+    * first step that converged.
+    * @param steps The number of steps to advance.
+    * @return The number of steps that were run.
+    */
+    public int step(int steps) {
+        if (blocker == null || activity != null || threshold > 0
+                || sources.getCellCount() > 0) {
+            for (int i = 0; i < steps; i++) {
+                diffuse();
+                swapArrays();
+                if (isConverged()) {
+                    return i + 1;
+                }
             }
+            return steps;
         }
         
-        // Right neighbors.
-        if (x < width - 1) {
-            nRed += (currRed[idx + 1] * diffPercent) / 8;
-            nGreen += (currGreen[idx + 1] * diffPercent) / 8;
-            nBlue += (currBlue[idx + 1] * diffPercent) / 8;
-            
-            if (y > 0) {
-                nRed += (currRed[prevRow + 1] * diffPercent) / 8;
-                nGreen += (currGreen[prevRow + 1] * diffPercent) / 8;
-                nBlue += (currBlue[prevRow + 1] * diffPercent) / 8;
-            }
-            
-            if (y < height - 1) {
-                nRed += (currRed[nextRow + 1] * diffPercent) / 8;
-                nGreen += (currGreen[nextRow + 1] * diffPercent) / 8;
-                nBlue += (currBlue[nextRow + 1] * diffPercent) / 8;
+        emitters.index();
+        for (int done = 0; done < steps; done += blockDepth) {
+            int depth = Math.min(blockDepth, steps - done);
+            int rows = blocker.getTileRows();
+            if (pool == null) {
+                blocker.advanceTileRows(0, rows, depth, emitters);
+            } else {
+                pool.invoke(new BlockTask(0, rows, depth));
             }
+            planes.swap();
+            time += depth;
         }
+        return steps;
+    }
+    
+    /**
+    * Advance the simulation by several steps in time that does not depend
+    * on the number of steps. Without emitters, the steps are applied all at
+    * once in the frequency domain, in double precision. The result matches
+    * stepping one at a time up to floating-point round-off.
+    * <p>
+    * Emitters hold their cells fixed, which the frequency domain cannot
+    * express, but their effect spreads only one cell per step. With
+    * emitters, everything is jumped at once and the rectangle around the
+    * emitters that they can reach is stepped separately, together with a
+    * margin as wide as the step count that keeps the outside from reaching
+    * it. That rectangle grows by four cells per step, so when stepping it
+    * plus the jump would cost more than stepping the whole grid, this is
+    * the same as step(int). It is also the same as step(int) with animated
+    * sources, a kernel other than the uniform EIGHT_NEIGHBOR kernel or a
+    * boundary other than ABSORBING.
+    * @param steps The number of steps to advance.
+    */
+    public void jumpAhead(int steps) {
+        if (steps <= 0 || !isDefaultStencil() || sources.getCellCount() > 0
+                || (long)width * height > Integer.MAX_VALUE) {
+            step(steps);
+            return;
+        }
+        SpectralStepper stepper = new SpectralStepper(width, height);
         
-        // Top neighbor.
-        if (y > 0) {
-            nRed += (currRed[prevRow] * diffPercent) / 8;
-            nGreen += (currGreen[prevRow] * diffPercent) / 8;
-            nBlue += (currBlue[prevRow] * diffPercent) / 8;
+        // Step the emitters' reach and its margin on their own.
+        DataArray local = null;
+        int[] reach = null;
+        int[] box = null;
+        if (emitters.count() > 0) {
+            int[] bounds = emitters.bounds(width);
+            reach = grow(bounds, steps);
+            box = grow(bounds, 2L * steps + 1);
+            double boxSteps = (double)(box[2] - box[0]) * (box[3] - box[1])
+                    / ((double)width * height) * steps;
+            if (boxSteps + stepper.getStepEquivalent()
+                    >= (double)steps / parallelism) {
+                step(steps);
+                return;
+            }
+            local = new DataArray(box[2] - box[0], box[3] - box[1],
+                    diffPercent, 1, backend, precision, layout);
+            copyRect(this, box[0], box[1], local, 0, 0,
+                    box[2] - box[0], box[3] - box[1]);
+            local.step(steps);
         }
         
-        // Bottom neighbor.
-        if (y < height - 1) {
-            nRed += (currRed[nextRow] * diffPercent) / 8;
-            nGreen += (currGreen[nextRow] * diffPercent) / 8;
-            nBlue += (currBlue[nextRow] * diffPercent) / 8;
+        int cells = width * height;
+        double[] red = new double[cells];
+        double[] green = new double[cells];
+        double[] blue = new double[cells];
+        for (int i = 0; i < cells; i++) {
+            red[i] = planes.getRed(i);
+            green[i] = planes.getGreen(i);
+            blue[i] = planes.getBlue(i);
         }
         
-        // Set values in next array.
-        nextRed[idx] = nRed;
-        nextGreen[idx] = nGreen;
-        nextBlue[idx] = nBlue;
+        double keep = 1 - diffPercent;
+        double share = diffPercent / 8;
+        stepper.advance(red, steps, keep, share);
+        stepper.advance(green, steps, keep, share);
+        stepper.advance(blue, steps, keep, share);
+        
+        for (int i = 0; i < cells; i++) {
+            planes.set(i, red[i], green[i], blue[i]);
+        }
+        if (local != null) {
+            copyRect(local, reach[0] - box[0], reach[1] - box[1], this,
+                    reach[0], reach[1], reach[2] - reach[0],
+                    reach[3] - reach[1]);
+        }
+        time += steps;
+        residual = Double.NaN;
+        if (activity != null) {
+            activity.touchAll();
+        }
+    }
+    
+    // A rectangle grown by a margin on every side, clamped to the grid.
+    private int[] grow(int[] rect, long margin) {
+        return new int[] { (int)Math.max(0, rect[0] - margin),
+            (int)Math.max(0, rect[1] - margin),
+            (int)Math.min(width, rect[2] + margin),
+            (int)Math.min(height, rect[3] + margin) };
+    }
+    
+    // Copy the colors and emitters of a rectangle between simulations.
+    private static void copyRect(DataArray from, int fromX, int fromY,
+            DataArray to, int toX, int toY, int w, int h) {
+        for (int y = 0; y < h; y++) {
+            int src = (fromY + y) * from.width + fromX;
+            int dst = (toY + y) * to.width + toX;
+            for (int x = 0; x < w; x++) {
+                to.setCell(dst + x, from.planes.getRed(src + x),
+                        from.planes.getGreen(src + x),
+                        from.planes.getBlue(src + x),
+                        from.emitters.get(src + x));
+            }
+        }
+    }
+    
+    // The specialized kernels implement the uniform EIGHT_NEIGHBOR stencil
+    // with an ABSORBING boundary.
+    private boolean isDefaultStencil() {
+        return (kernel == null || kernel.isUniformEightNeighbor())
+                && boundary == Boundary.ABSORBING;
     }
     
     /**
-    * This method calls diffusePixel on every cell in the simulation. It
-    * prepares nextArr to be swapped and painted and effectively advances
-    * the simulation by one time-step.
+    * Replace the simulation with its steady state, the state that stepping
+    * converges to, using multigrid V-cycles instead of steps. Emitters keep
+    * their values. The solve is done in double precision and stops once a
+    * step would change no channel of any cell by more than the tolerance.
+    * @param tolerance The largest change per step of the solution.
+    * @param maxCycles The most V-cycles to run per color channel.
+    * @return The largest number of V-cycles any channel needed.
+    * @throws UnsupportedOperationException If the kernel is not the
+    * uniform EIGHT_NEIGHBOR kernel, the boundary is not ABSORBING or the
+    * simulation has more than Integer.MAX_VALUE cells.
     */
-    public void diffuse() {
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                diffusePixel(x,y);
+    public int solveSteadyState(double tolerance, int maxCycles) {
+        if (!isDefaultStencil()) {
+            throw new UnsupportedOperationException("Steady states are only "
+                    + "solved for the EIGHT_NEIGHBOR kernel and ABSORBING boundary.");
+        }
+        if (diffPercent == 0) {
+            return 0;
+        }
+        
+        // A step changes a cell by diffPercent / 8 times the solver's residual.
+        double limit = tolerance * 8 / diffPercent;
+        int cells = arrayCells();
+        double[][] channels = new double[3][cells];
+        for (int i = 0; i < cells; i++) {
+            channels[0][i] = planes.getRed(i);
+            channels[1][i] = planes.getGreen(i);
+            channels[2][i] = planes.getBlue(i);
+        }
+        
+        boolean[] fixed = new boolean[cells];
+        emitters.toArray(fixed);
+        MultigridSolver solver = new MultigridSolver(width, height, fixed);
+        int cycles = 0;
+        for (double[] channel : channels) {
+            solver.solve(channel, limit, maxCycles);
+            cycles = Math.max(cycles, solver.getCycles());
+        }
+        
+        for (int i = 0; i < cells; i++) {
+            planes.set(i, Math.max(0, channels[0][i]),
+                    Math.max(0, channels[1][i]), Math.max(0, channels[2][i]));
+        }
+        residual = Double.NaN;
+        if (activity != null) {
+            activity.touchAll();
+        }
+        return cycles;
+    }
+    
+    // Advances bands of tile rows in parallel, like DiffuseTask.
+    private class BlockTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final int startRow;
+        private final int endRow;
+        private final int depth;
+        
+        BlockTask(int startRow, int endRow, int depth) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.depth = depth;
+        }
+        
+        @Override
+        protected void compute() {
+            if (endRow - startRow <= 1) {
+                blocker.advanceTileRows(startRow, endRow, depth, emitters);
+            } else {
+                int mid = (startRow + endRow) >>> 1;
+                invokeAll(new BlockTask(startRow, mid, depth),
+                        new BlockTask(mid, endRow, depth));
             }
         }
     }
@@ -155,18 +868,86 @@ public class DataArray {
     * Swap the current and next array.
     */
     public void swapArrays() {
+        planes.swap();
+        if (activity != null) {
+            activity.update();
+        }
+        time++;
+        if (sources.getCellCount() > 0) {
+            sources.apply(planes, time, activity);
+        }
+    }
+    
+    /**
+    * Getter for the number of steps the simulation has advanced.
+    * @return The number of steps since construction.
+    */
+    public long getStepCount() {
+        return time;
+    }
+    
+    /**
+    * Set the number of steps the simulation has advanced, for simulations
+    * continued from a checkpoint or gathered from elsewhere. Sources age
+    * from the step they were registered at, so this moves their curves.
+    * @param steps The step count.
+    */
+    public void setStepCount(long steps) {
+        time = steps;
+        residual = Double.NaN;
+    }
+    
+    /**
+    * Register a source that drives a group of animated emitters. The
+    * source's age starts at 0 now.
+    * @param source The function giving the group's color at each step.
+    * @return The id of the group, for drawSource.
+    */
+    public int addSource(Source source) {
+        return sources.add(source, time);
+    }
+    
+    /**
+    * Getter for the number of cells driven by sources.
+    * @return The number of animated emitters.
+    */
+    public int getSourceCellCount() {
+        return sources.getCellCount();
+    }
+    
+    /**
+    * Make the cells under the brush emitters driven by a source. Their
+    * color is set from the source before every step.
+    * @param x The x location of the center of the brush.
+    * @param y The y location of  the center of the brush.
+    * @param brushSize The size of the brush.
+    * @param source The id returned by addSource.
+    * @throws UnsupportedOperationException If the simulation has more than
+    * Integer.MAX_VALUE cells.
+    */
+    public void drawSource(int x, int y, int brushSize, int source) {
+        if (source < 0 || source >= sources.getGroupCount()) {
+            throw new IllegalArgumentException("Unknown source " + source);
+        }
+        arrayCells();
+        int sidelen = brushSize / 2;
+        for (int i = y - sidelen; i < y + sidelen; i++) {
+            int k = clamp(i, height);
+            for (int j = x - sidelen; j < x + sidelen; j++) {
+                int index = k * width + clamp(j, width);
+                forget(index);
+                ownEmitters().set(index, true);
+                sources.put(source, index);
+                sources.applyTo(planes, source, index, time);
+            }
+        }
+        residual = Double.NaN;
         
-        double[] tempRed = currRed;
-        double[] tempGreen = currGreen;
-        double[] tempBlue = currBlue;
-        
-        currRed = nextRed;
-        currGreen = nextGreen;
-        currBlue = nextBlue;
-        
-        nextRed = tempRed;
-        nextGreen = tempGreen;
-        nextBlue = tempBlue;
+        if (activity != null && sidelen > 0) {
+            activity.touch(clamp(x - sidelen, width), clamp(y - sidelen, height),
+                    clamp(x + sidelen - 1, width) + 1,
+                    clamp(y + sidelen - 1, height) + 1);
+        }
     }
     
     /**
@@ -174,10 +955,13 @@ public class DataArray {
     * @param x The x location of the center of the brush.
     * @param y The y location of  the center of the brush.
     * @param brushSize The size of the brush.
-    * @param c The color to draw.
+    * @param red The red value to draw, between 0 and 1.
+    * @param green The green value to draw, between 0 and 1.
+    * @param blue The blue value to draw, between 0 and 1.
     * @param emit True if an emitter is being drawn.
     */
-    public void draw(int x, int y, int brushSize, Color c, boolean emit) {
+    public void draw(int x, int y, int brushSize, double red, double green,
+            double blue, boolean emit) {
         
         int sidelen = brushSize / 2;
         
@@ -193,36 +977,201 @@ public class DataArray {
                     l = 0;
                 if (j >= this.width)
                     l = this.width - 1;
-                isEmitter[k * width + l] = emit;
-                currRed[k * width + l] = c.getRed();
-                currGreen[k * width + l] = c.getGreen();
-                currBlue[k * width + l] = c.getBlue();
+                long index = (long)k * width + l;
+                forget(index);
+                ownEmitters().set(index, emit);
+                planes.set(index, red, green, blue);
             }
         }
+        residual = Double.NaN;
+        
+        if (activity != null && sidelen > 0) {
+            activity.touch(clamp(x - sidelen, width), clamp(y - sidelen, height),
+                    clamp(x + sidelen - 1, width) + 1,
+                    clamp(y + sidelen - 1, height) + 1);
+        }
+    }
+    
+    // Take a cell out of its source group before it is redrawn.
+    private void forget(long index) {
+        // Sources only exist on grids with int cell indices.
+        if (emitters.get(index)) {
+            sources.remove((int)index);
+        }
+    }
+    
+    /* The number of cells, for the features that copy every cell into an
+    * array or index cells with ints.
+    */
+    private int arrayCells() {
+        long cells = (long)width * height;
+        if (cells > Integer.MAX_VALUE) {
+            throw new UnsupportedOperationException(String.format(
+                    "A %dx%d simulation has too many cells for arrays.",
+                    width, height));
+        }
+        return (int)cells;
+    }
+    
+    // Clamp a coordinate into [0, size).
+    private static int clamp(int value, int size) {
+        return Math.max(0, Math.min(value, size - 1));
+    }
+    
+    /**
+    * Set the color of a single cell.
+    * @param index The index of the cell, y * width + x.
+    * @param red The red value, between 0 and 1.
+    * @param green The green value, between 0 and 1.
+    * @param blue The blue value, between 0 and 1.
+    * @param emit True if the cell is an emitter.
+    */
+    public void setCell(long index, double red, double green, double blue,
+            boolean emit) {
+        forget(index);
+        ownEmitters().set(index, emit);
+        planes.set(index, red, green, blue);
+        residual = Double.NaN;
+        if (activity != null) {
+            int x = (int)(index % width);
+            int y = (int)(index / width);
+            activity.touch(x, y, x + 1, y + 1);
+        }
+    }
+    
+    /**
+    * Copy the current colors of a row into an array.
+    * @param y The row.
+    * @param rgb Destination with the red, green and blue values of each
+    * cell of the row in turn, at least 3 * width elements.
+    */
+    public void getRow(int y, double[] rgb) {
+        long rowStart = (long)y * width;
+        for (int x = 0; x < width; x++) {
+            rgb[3 * x] = planes.getRed(rowStart + x);
+            rgb[3 * x + 1] = planes.getGreen(rowStart + x);
+            rgb[3 * x + 2] = planes.getBlue(rowStart + x);
+        }
+    }
+    
+    /**
+    * Set the current colors of a row, keeping its emitters.
+    * @param y The row.
+    * @param rgb The red, green and blue values of each cell of the row in
+    * turn, at least 3 * width elements.
+    */
+    public void setRow(int y, double[] rgb) {
+        long rowStart = (long)y * width;
+        for (int x = 0; x < width; x++) {
+            planes.set(rowStart + x, rgb[3 * x], rgb[3 * x + 1], rgb[3 * x + 2]);
+        }
+        residual = Double.NaN;
+        if (activity != null) {
+            activity.touch(0, y, width, y + 1);
+        }
+    }
+    
+    /**
+    * Determines if a cell is an emitter.
+    * @param index The index of the cell, y * width + x.
+    * @return True if the cell's color is constant.
+    */
+    public boolean isEmitter(long index) {
+        return emitters.get(index);
+    }
+    
+    /**
+    * Convert the current color values into opaque ARGB pixels, one int per
+    * cell in row-major order. Nothing is allocated, so the same destination
+    * can be reused every frame.
+    * @param argb Destination array with at least width * height elements.
+    * @throws UnsupportedOperationException If the simulation has more than
+    * Integer.MAX_VALUE cells.
+    */
+    public void toArgb(int[] argb) {
+        arrayCells();
+        planes.toArgb(argb);
+    }
+    
+    /**
+    * Getter for the current red value of a cell.
+    * @param index The index of the cell, y * width + x.
+    * @return The red value, between 0 and 1.
+    */
+    public double getRed(long index) {
+        return planes.getRed(index);
+    }
+    
+    /**
+    * Getter for the current green value of a cell.
+    * @param index The index of the cell, y * width + x.
+    * @return The green value, between 0 and 1.
+    */
+    public double getGreen(long index) {
+        return planes.getGreen(index);
+    }
+    
+    /**
+    * Getter for the current blue value of a cell.
+    * @param index The index of the cell, y * width + x.
+    * @return The blue value, between 0 and 1.
+    */
+    public double getBlue(long index) {
+        return planes.getBlue(index);
     }
     
     /**
     * Getter for array of red values.
     * @return Array of current red values.
+    * @throws UnsupportedOperationException If the precision is not DOUBLE
+    * or the simulation uses a custom kernel.
     */
     public double[] getCurrentRed(){
-        return currRed;
+        return doublePlanes().getCurrentRed();
     }
     
     /**
     * Getter for array of green values.
     * @return Array of current green values.
+    * @throws UnsupportedOperationException If the precision is not DOUBLE
+    * or the simulation uses a custom kernel.
     */
     public double[] getCurrentGreen(){
-        return currGreen;
+        return doublePlanes().getCurrentGreen();
     }
     
     /**
     * Getter for array of blue values.
     * @return Array of current blue values.
+    * @throws UnsupportedOperationException If the precision is not DOUBLE
+    * or the simulation uses a custom kernel.
     */
     public double[] getCurrentBlue(){
-        return currBlue;
+        return doublePlanes().getCurrentBlue();
+    }
+    
+    /**
+    * Getter for the width of the simulation area.
+    * @return The number of cells in a row.
+    */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+    * Getter for the height of the simulation area.
+    * @return The number of rows.
+    */
+    public int getHeight() {
+        return height;
+    }
+    
+    // Only double planes are backed by double arrays.
+    private DoublePlanes doublePlanes() {
+        if (!(planes instanceof DoublePlanes)) {
+            throw new UnsupportedOperationException("Color arrays are only "
+                    + "available with DOUBLE precision and the default kernel.");
+        }
+        return (DoublePlanes)planes;
     }
 }
-
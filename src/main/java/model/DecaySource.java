@@ -0,0 +1,42 @@
+package model;
+
+/**
+* A source whose brightness decays exponentially, halving every half-life.
+* @author Graf
+*
+*/
+public class DecaySource extends Source {
+    
+    // Instance variables.
+    private final double red;
+    private final double green;
+    private final double blue;
+    private final double rate;
+    
+    /**
+    * Constructor.
+    * @param red The initial red value, between 0 and 1.
+    * @param green The initial green value, between 0 and 1.
+    * @param blue The initial blue value, between 0 and 1.
+    * @param halfLife The number of steps it takes the brightness to halve.
+    */
+    public DecaySource(double red, double green, double blue,
+            double halfLife) {
+        if (!(halfLife > 0)) {
+            throw new IllegalArgumentException(
+                    "Half-life must be a positive number of steps.");
+        }
+        this.red = clamp(red);
+        this.green = clamp(green);
+        this.blue = clamp(blue);
+        rate = -Math.log(2) / halfLife;
+    }
+    
+    @Override
+    public void color(long age, double[] rgb) {
+        double brightness = Math.exp(rate * age);
+        rgb[0] = red * brightness;
+        rgb[1] = green * brightness;
+        rgb[2] = blue * brightness;
+    }
+}
@@ -0,0 +1,372 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+* Planes stored as doubles. This is the reference format for the
+* simulation.
+* @author Graf
+*
+*/
+class DoublePlanes extends Planes {
+    
+    // Instance variables.
+    private double[] currRed;
+    private double[] currGreen;
+    private double[] currBlue;
+    private double[] nextRed;
+    private double[] nextGreen;
+    private double[] nextBlue;
+    private final double keep;
+    private final double share;
+    private final ThreadLocal<double[]> colSums;
+    
+    /**
+    * Constructor.
+    * @param width The width of the simulation area.
+    * @param height The height of the simulation area.
+    * @param diffPercent The amount of color a cell diffuses per step.
+    * @param backend The way interior cells are computed.
+    */
+    DoublePlanes(int width, int height, double diffPercent, Backend backend) {
+        super(width, height);
+        currRed = new double[width * height];
+        currGreen = new double[width * height];
+        currBlue = new double[width * height];
+        nextRed = new double[width * height];
+        nextGreen = new double[width * height];
+        nextBlue = new double[width * height];
+        
+        // Coefficients are the same for every cell in every step.
+        keep = 1 - diffPercent;
+        share = diffPercent / 8;
+        
+        // Column sums for the LANES backend, one row per diffusing thread
+        // so bands never allocate or share them.
+        colSums = backend == Backend.LANES
+                ? ThreadLocal.withInitial(() -> new double[width]) : null;
+    }
+    
+    @Override
+    void stencilRows(int startRow, int endRow) {
+        
+        double[] colSum = colSums != null ? colSums.get() : null;
+        
+        for (int y = startRow; y < endRow; y++) {
+            
+            // The top and bottom rows are entirely border cells.
+            if (y == 0 || y == height - 1) {
+                for (int x = 0; x < width; x++) {
+                    diffuseEdgePixel(x, y);
+                }
+                continue;
+            }
+            
+            int rowStart = y * width;
+            diffuseEdgePixel(0, y);
+            if (colSum != null) {
+                diffuseInteriorRowLanes(currRed, nextRed, rowStart, width,
+                        keep, share, colSum);
+                diffuseInteriorRowLanes(currGreen, nextGreen, rowStart, width,
+                        keep, share, colSum);
+                diffuseInteriorRowLanes(currBlue, nextBlue, rowStart, width,
+                        keep, share, colSum);
+            } else {
+                diffuseInterior(currRed, nextRed, rowStart + 1,
+                        rowStart + width - 1, width, keep, share);
+                diffuseInterior(currGreen, nextGreen, rowStart + 1,
+                        rowStart + width - 1, width, keep, share);
+                diffuseInterior(currBlue, nextBlue, rowStart + 1,
+                        rowStart + width - 1, width, keep, share);
+            }
+            if (width > 1) {
+                diffuseEdgePixel(width - 1, y);
+            }
+        }
+    }
+    
+    /* Sets the color value of a cell on the border of the simulation based
+    * on the color values of its neighbors. Neighbors outside the simulation
+    * area contribute nothing.
+    */
+    private void diffuseEdgePixel(int x, int y) {
+        
+        int idx = y * width + x;
+        int prevRow = (y - 1) * width + x;
+        int nextRow = (y + 1) * width + x;
+        
+        // Determine the cell's value in the next array.
+        double nRed = currRed[idx] * keep;
+        double nGreen = currGreen[idx] * keep;
+        double nBlue = currBlue[idx] * keep;
+        
+        // Left neighbors.
+        if (x > 0) {
+            nRed += currRed[idx - 1] * share;
+            nGreen += currGreen[idx - 1] * share;
+            nBlue += currBlue[idx - 1] * share;
+            
+            if (y > 0) {
+                nRed += currRed[prevRow - 1] * share;
+                nGreen += currGreen[prevRow - 1] * share;
+                nBlue += currBlue[prevRow - 1] * share;
+            }
+            
+            if (y < height - 1) {
+                nRed += currRed[nextRow - 1] * share;
+                nGreen += currGreen[nextRow - 1] * share;
+                nBlue += currBlue[nextRow - 1] * share;
+            }
+        }
+        
+        // Right neighbors.
+        if (x < width - 1) {
+            nRed += currRed[idx + 1] * share;
+            nGreen += currGreen[idx + 1] * share;
+            nBlue += currBlue[idx + 1] * share;
+            
+            if (y > 0) {
+                nRed += currRed[prevRow + 1] * share;
+                nGreen += currGreen[prevRow + 1] * share;
+                nBlue += currBlue[prevRow + 1] * share;
+            }
+            
+            if (y < height - 1) {
+                nRed += currRed[nextRow + 1] * share;
+                nGreen += currGreen[nextRow + 1] * share;
+                nBlue += currBlue[nextRow + 1] * share;
+            }
+        }
+        
+        // Top neighbor.
+        if (y > 0) {
+            nRed += currRed[prevRow] * share;
+            nGreen += currGreen[prevRow] * share;
+            nBlue += currBlue[prevRow] * share;
+        }
+        
+        // Bottom neighbor.
+        if (y < height - 1) {
+            nRed += currRed[nextRow] * share;
+            nGreen += currGreen[nextRow] * share;
+            nBlue += currBlue[nextRow] * share;
+        }
+        
+        // Set values in next array.
+        nextRed[idx] = nRed;
+        nextGreen[idx] = nGreen;
+        nextBlue[idx] = nBlue;
+    }
+    
+    /* Sets the color value of the interior cells [start, end) of one color
+    * channel. Interior cells have all eight neighbors, so no bounds checks
+    * are needed. Neighbors are added in the same order as in
+    * diffuseEdgePixel so both kernels round identically.
+    */
+    private static void diffuseInterior(double[] curr, double[] next,
+            int start, int end, int width, double keep, double share) {
+        
+        for (int idx = start; idx < end; idx++) {
+            int prevRow = idx - width;
+            int nextRow = idx + width;
+            double n = curr[idx] * keep;
+            n += curr[idx - 1] * share;
+            n += curr[prevRow - 1] * share;
+            n += curr[nextRow - 1] * share;
+            n += curr[idx + 1] * share;
+            n += curr[prevRow + 1] * share;
+            n += curr[nextRow + 1] * share;
+            n += curr[prevRow] * share;
+            n += curr[nextRow] * share;
+            next[idx] = n;
+        }
+    }
+    
+    /* Same as diffuseInterior over a whole row, but written as branch-free loops over
+    * contiguous memory so the JIT can vectorize them. The sum of each
+    * column of three cells is shared by three neighboring cells.
+    */
+    private static void diffuseInteriorRowLanes(double[] curr, double[] next,
+            int rowStart, int width, double keep, double share,
+            double[] colSum) {
+        
+        int prevRow = rowStart - width;
+        int nextRow = rowStart + width;
+        for (int x = 0; x < width; x++) {
+            colSum[x] = curr[prevRow + x] + curr[rowStart + x]
+                    + curr[nextRow + x];
+        }
+        
+        // The eight neighbors are the side columns plus above and below.
+        for (int x = 1; x < width - 1; x++) {
+            double ring = colSum[x - 1] + colSum[x + 1] + curr[prevRow + x]
+                    + curr[nextRow + x];
+            next[rowStart + x] = curr[rowStart + x] * keep + ring * share;
+        }
+    }
+    
+    /**
+    * Diffuse the cells of the rectangle [x0, x1) x [y0, y1) and measure how
+    * much they changed. Interior cells always use the SCALAR kernel.
+    * @param x0 The first column.
+    * @param y0 The first row.
+    * @param x1 One past the last column.
+    * @param y1 One past the last row.
+    * @param emitters The cells whose color is constant, already indexed.
+    * @return The largest change of any channel of any cell.
+    */
+    double diffuseTile(int x0, int y0, int x1, int y1, EmitterMask emitters) {
+        
+        // Interior columns of the tile.
+        int ix0 = Math.max(x0, 1);
+        int ix1 = Math.min(x1, width - 1);
+        double change = 0;
+        
+        for (int y = y0; y < y1; y++) {
+            int rowStart = y * width;
+            if (y == 0 || y == height - 1 || ix0 >= ix1) {
+                for (int x = x0; x < x1; x++) {
+                    diffuseEdgePixel(x, y);
+                }
+            } else {
+                if (x0 == 0) {
+                    diffuseEdgePixel(0, y);
+                }
+                diffuseInterior(currRed, nextRed, rowStart + ix0,
+                        rowStart + ix1, width, keep, share);
+                diffuseInterior(currGreen, nextGreen, rowStart + ix0,
+                        rowStart + ix1, width, keep, share);
+                diffuseInterior(currBlue, nextBlue, rowStart + ix0,
+                        rowStart + ix1, width, keep, share);
+                if (x1 == width && width > 1) {
+                    diffuseEdgePixel(width - 1, y);
+                }
+            }
+            
+            restamp(emitters, rowStart + x0, rowStart + x1);
+            
+            // The row is still in cache, so measuring it is cheap.
+            change = Math.max(change,
+                    maxChange(rowStart + x0, rowStart + x1));
+        }
+        return change;
+    }
+    
+    /**
+    * Copy the current values of the rectangle [x0, x1) x [y0, y1) into the
+    * next planes, so that a tile that is no longer diffused holds the same
+    * values in both.
+    * @param x0 The first column.
+    * @param y0 The first row.
+    * @param x1 One past the last column.
+    * @param y1 One past the last row.
+    */
+    void copyTile(int x0, int y0, int x1, int y1) {
+        for (int y = y0; y < y1; y++) {
+            copyToNext(y * width + x0, y * width + x1);
+        }
+    }
+    
+    @Override
+    void copyToNext(long start, long end) {
+        int from = (int)start;
+        int length = (int)(end - start);
+        System.arraycopy(currRed, from, nextRed, from, length);
+        System.arraycopy(currGreen, from, nextGreen, from, length);
+        System.arraycopy(currBlue, from, nextBlue, from, length);
+    }
+    
+    /**
+    * Diffuse and measure the rows [startRow, endRow). The SCALAR backend
+    * measures inside the tile kernel, which gives the same values as
+    * diffuseRows.
+    */
+    @Override
+    double diffuseRowsMeasured(int startRow, int endRow,
+            EmitterMask emitters) {
+        if (colSums != null) {
+            return super.diffuseRowsMeasured(startRow, endRow, emitters);
+        }
+        return diffuseTile(0, startRow, width, endRow, emitters);
+    }
+    
+    @Override
+    double maxChange(long start, long end) {
+        double change = 0;
+        for (int idx = (int)start; idx < end; idx++) {
+            change = Math.max(change, Math.abs(nextRed[idx] - currRed[idx]));
+            change = Math.max(change, Math.abs(nextGreen[idx] - currGreen[idx]));
+            change = Math.max(change, Math.abs(nextBlue[idx] - currBlue[idx]));
+        }
+        return change;
+    }
+    
+    @Override
+    long getBytes() {
+        return 6L * width * height * Double.BYTES;
+    }
+    
+    @Override
+    void swap() {
+        
+        double[] tempRed = currRed;
+        double[] tempGreen = currGreen;
+        double[] tempBlue = currBlue;
+        
+        currRed = nextRed;
+        currGreen = nextGreen;
+        currBlue = nextBlue;
+        
+        nextRed = tempRed;
+        nextGreen = tempGreen;
+        nextBlue = tempBlue;
+    }
+    
+    @Override
+    void clear() {
+        Arrays.fill(currRed, 0);
+        Arrays.fill(currGreen, 0);
+        Arrays.fill(currBlue, 0);
+    }
+    
+    @Override
+    void set(long index, double red, double green, double blue) {
+        int i = (int)index;
+        currRed[i] = red;
+        currGreen[i] = green;
+        currBlue[i] = blue;
+    }
+    
+    @Override
+    void toArgb(int[] argb) {
+        int cells = width * height;
+        for (int i = 0; i < cells; i++) {
+            argb[i] = argb(currRed[i], currGreen[i], currBlue[i]);
+        }
+    }
+    
+    @Override
+    double getRed(long index) {
+        return currRed[(int)index];
+    }
+    
+    @Override
+    double getGreen(long index) {
+        return currGreen[(int)index];
+    }
+    
+    @Override
+    double getBlue(long index) {
+        return currBlue[(int)index];
+    }
+    
+    // Getters for the planes and coefficients.
+    double[] getCurrentRed() { return currRed; }
+    double[] getCurrentGreen() { return currGreen; }
+    double[] getCurrentBlue() { return currBlue; }
+    double[] getNextRed() { return nextRed; }
+    double[] getNextGreen() { return nextGreen; }
+    double[] getNextBlue() { return nextBlue; }
+    double getKeep() { return keep; }
+    double getShare() { return share; }
+}
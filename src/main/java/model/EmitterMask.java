@@ -0,0 +1,233 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+* The set of emitter cells, stored as one bit per cell plus an index of the
+* runs of consecutive emitters. Emitters are usually a tiny fraction of the
+* grid, so the stencil runs as if there were none and the spans are copied
+* back from the current planes afterwards.
+* <p>
+* The index is rebuilt lazily after the mask changes. Call index() on one
+* thread before bands read the spans concurrently. Cells are indexed with
+* longs, so a mask can cover a memory-mapped simulation with more cells
+* than an int can index.
+* @author Graf
+*
+*/
+class EmitterMask {
+    
+    // Instance variables.
+    private final long cells;
+    private final long[] bits;
+    private long count;
+    private long[] spanStart = new long[16];
+    private long[] spanEnd = new long[16];
+    private int spanCount;
+    private boolean dirty;
+    
+    /**
+    * Constructor. No cell is an emitter.
+    * @param cells The number of cells in the simulation area.
+    */
+    EmitterMask(long cells) {
+        this.cells = cells;
+        bits = new long[(int)((cells + 63) >>> 6)];
+    }
+    
+    // Creates a copy of another mask.
+    private EmitterMask(EmitterMask other) {
+        cells = other.cells;
+        bits = other.bits.clone();
+        count = other.count;
+        spanStart = other.spanStart.clone();
+        spanEnd = other.spanEnd.clone();
+        spanCount = other.spanCount;
+        dirty = other.dirty;
+    }
+    
+    /**
+    * Copy the mask, including its index.
+    * @return A mask with the same emitters that changes independently.
+    */
+    EmitterMask copy() {
+        return new EmitterMask(this);
+    }
+    
+    /**
+    * Getter for the memory holding the mask.
+    * @return The number of bytes in the bits and the span index.
+    */
+    long getBytes() {
+        return (long)bits.length * Long.BYTES
+                + 2L * spanStart.length * Long.BYTES;
+    }
+    
+    /**
+    * Determines if a cell is an emitter.
+    * @param index The index of the cell.
+    * @return True if the cell is an emitter.
+    */
+    boolean get(long index) {
+        return (bits[(int)(index >>> 6)] & (1L << index)) != 0;
+    }
+    
+    /**
+    * Make a cell an emitter or a normal cell.
+    * @param index The index of the cell.
+    * @param emit True if the cell is an emitter.
+    */
+    void set(long index, boolean emit) {
+        long bit = 1L << index;
+        int word = (int)(index >>> 6);
+        if (((bits[word] & bit) != 0) != emit) {
+            bits[word] ^= bit;
+            count += emit ? 1 : -1;
+            dirty = true;
+        }
+    }
+    
+    /**
+    * Getter for the number of emitters.
+    * @return The number of cells that are emitters.
+    */
+    long count() {
+        return count;
+    }
+    
+    /**
+    * Make every cell a normal cell. Only the words holding emitters are
+    * touched.
+    */
+    void clear() {
+        index();
+        for (int k = 0; k < spanCount; k++) {
+            for (long i = spanStart[k]; i < spanEnd[k]; i++) {
+                bits[(int)(i >>> 6)] = 0;
+            }
+        }
+        spanCount = 0;
+        count = 0;
+    }
+    
+    /**
+    * Copy the mask into an array with one element per cell.
+    * @param mask Destination array of at least the number of cells.
+    */
+    void toArray(boolean[] mask) {
+        Arrays.fill(mask, 0, (int)cells, false);
+        index();
+        for (int k = 0; k < spanCount; k++) {
+            Arrays.fill(mask, (int)spanStart[k], (int)spanEnd[k], true);
+        }
+    }
+    
+    /**
+    * Rebuild the span index if the mask changed since it was last built.
+    */
+    void index() {
+        if (!dirty) {
+            return;
+        }
+        spanCount = 0;
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                int bit = Long.numberOfTrailingZeros(word);
+                int run = Long.numberOfTrailingZeros(~(word >>> bit));
+                long start = ((long)w << 6) + bit;
+                addSpan(start, start + run);
+                word = bit + run == 64 ? 0 : word & (-1L << (bit + run));
+            }
+        }
+        dirty = false;
+    }
+    
+    // Append a span, merging it with a span that ends where it starts.
+    private void addSpan(long start, long end) {
+        if (spanCount > 0 && spanEnd[spanCount - 1] == start) {
+            spanEnd[spanCount - 1] = end;
+            return;
+        }
+        if (spanCount == spanStart.length) {
+            spanStart = Arrays.copyOf(spanStart, spanCount * 2);
+            spanEnd = Arrays.copyOf(spanEnd, spanCount * 2);
+        }
+        spanStart[spanCount] = start;
+        spanEnd[spanCount] = end;
+        spanCount++;
+    }
+    
+    /**
+    * Find the smallest rectangle holding every emitter. Indexes the mask.
+    * @param width The width of the simulation area.
+    * @return The left, top, right and bottom edges, with right and bottom
+    * one past the last column and row, or null if there is no emitter.
+    */
+    int[] bounds(int width) {
+        index();
+        if (spanCount == 0) {
+            return null;
+        }
+        int left = width;
+        int right = 0;
+        for (int k = 0; k < spanCount; k++) {
+            long first = spanStart[k];
+            long last = spanEnd[k] - 1;
+            if (first / width != last / width) {
+                left = 0;
+                right = width;
+                break;
+            }
+            left = Math.min(left, (int)(first % width));
+            right = Math.max(right, (int)(last % width) + 1);
+        }
+        return new int[] { left, (int)(spanStart[0] / width), right,
+            (int)((spanEnd[spanCount - 1] - 1) / width) + 1 };
+    }
+    
+    /**
+    * Getter for the number of spans in the index.
+    * @return The number of runs of consecutive emitters.
+    */
+    int getSpanCount() {
+        return spanCount;
+    }
+    
+    /**
+    * Getter for the first cell of a span.
+    * @param k The index of the span.
+    * @return The index of the span's first cell.
+    */
+    long getSpanStart(int k) {
+        return spanStart[k];
+    }
+    
+    /**
+    * Getter for the end of a span.
+    * @param k The index of the span.
+    * @return One past the index of the span's last cell.
+    */
+    long getSpanEnd(int k) {
+        return spanEnd[k];
+    }
+    
+    /**
+    * Find the first span that ends after a cell.
+    * @param from The index of the cell.
+    * @return The index of the span, or the span count if there is none.
+    */
+    int firstSpanAfter(long from) {
+        int lo = 0;
+        int hi = spanCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (spanEnd[mid] <= from) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,238 @@
+package model;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+* Many copies of one scene that diffuse by different amounts, stepped
+* together for parameter sweeps. Every member starts from the scene's
+* colors and shares its emitter mask, so a member costs only its own
+* color planes. Members are stepped one per task on a work-stealing pool,
+* so members that converge early free their thread for the others.
+* <p>
+* Each member records the time spent stepping it, the steps it ran and
+* the step at which it converged, if a convergence threshold is set.
+* @author Graf
+*
+*/
+public class Ensemble implements AutoCloseable {
+    
+    // Instance variables.
+    private final DataArray[] members;
+    private final double[] diffPercents;
+    private final long[] nanos;
+    private final long[] stepsRun;
+    private final long[] convergedStep;
+    private final ForkJoinPool pool;
+    private double threshold;
+    
+    /**
+    * Constructor.
+    * @param scene The simulation every member starts from. Its colors,
+    * emitters and step count are copied; its sources are not. It must use
+    * the default stencil.
+    * @param diffPercents The amount of color each member diffuses per
+    * step, one value per member.
+    * @param parallelism The number of members stepped at the same time.
+    */
+    public Ensemble(DataArray scene, double[] diffPercents, int parallelism) {
+        if (diffPercents.length == 0) {
+            throw new IllegalArgumentException(
+                    "An ensemble needs at least one member.");
+        }
+        this.diffPercents = diffPercents.clone();
+        members = new DataArray[diffPercents.length];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = new DataArray(scene, diffPercents[i]);
+        }
+        nanos = new long[members.length];
+        stepsRun = new long[members.length];
+        convergedStep = new long[members.length];
+        Arrays.fill(convergedStep, -1);
+        pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+    
+    /**
+    * Evenly spaced diffuse percents for a sweep.
+    * @param from The first value.
+    * @param to The last value.
+    * @param count The number of values, at least 1.
+    * @return count values from from to to, inclusive.
+    */
+    public static double[] range(double from, double to, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException(
+                    "A range needs at least one value.");
+        }
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = count == 1 ? from : from + (to - from) * i / (count - 1);
+        }
+        return values;
+    }
+    
+    /**
+    * Getter for the number of members.
+    * @return The number of members.
+    */
+    public int getSize() {
+        return members.length;
+    }
+    
+    /**
+    * Getter for a member. Changing a member's emitters gives it its own
+    * copy of the mask.
+    * @param member The index of the member.
+    * @return The member's simulation.
+    */
+    public DataArray getMember(int member) {
+        return members[member];
+    }
+    
+    /**
+    * Getter for the amount a member diffuses per step.
+    * @param member The index of the member.
+    * @return The member's diffuse percent.
+    */
+    public double getDiffusePercent(int member) {
+        return diffPercents[member];
+    }
+    
+    /**
+    * Set the convergence threshold of every member. Members stop stepping
+    * once converged.
+    * @param threshold The largest change per step of a converged member,
+    * or 0 to never stop early.
+    */
+    public void setConvergenceThreshold(double threshold) {
+        this.threshold = threshold;
+        for (DataArray member : members) {
+            member.setConvergenceThreshold(threshold);
+        }
+    }
+    
+    /**
+    * Advance every member that has not converged by several steps.
+    * @param steps The number of steps to advance.
+    * @return The most steps any member ran.
+    */
+    public int step(int steps) {
+        StepTask task = new StepTask(0, members.length, steps);
+        pool.invoke(task);
+        return task.steps;
+    }
+    
+    /**
+    * Getter for the time spent stepping a member.
+    * @param member The index of the member.
+    * @return The nanoseconds spent in step, summed over calls.
+    */
+    public long getStepNanos(int member) {
+        return nanos[member];
+    }
+    
+    /**
+    * Getter for the number of steps a member ran in this ensemble.
+    * @param member The index of the member.
+    * @return The number of steps, which stops growing once it converged.
+    */
+    public long getStepsRun(int member) {
+        return stepsRun[member];
+    }
+    
+    /**
+    * Getter for the step at which a member converged.
+    * @param member The index of the member.
+    * @return The step count of the member at its first converged step, or
+    * -1 if it has not converged.
+    */
+    public long getConvergedStep(int member) {
+        return convergedStep[member];
+    }
+    
+    /**
+    * Getter for the largest change of a member's last step.
+    * @param member The index of the member.
+    * @return The member's residual, NaN without a convergence threshold.
+    */
+    public double getResidual(int member) {
+        return members[member].getResidual();
+    }
+    
+    /**
+    * Determines if every member has converged.
+    * @return True if a threshold is set and every member converged.
+    */
+    public boolean isConverged() {
+        if (threshold <= 0) {
+            return false;
+        }
+        for (long step : convergedStep) {
+            if (step < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+    * Shut down the threads stepping the members and any threads the
+    * members diffuse with.
+    */
+    @Override
+    public void close() {
+        pool.shutdown();
+        for (DataArray member : members) {
+            member.close();
+        }
+    }
+    
+    // Step one member, recording its time and when it converged.
+    private int stepMember(int i, int steps) {
+        if (convergedStep[i] >= 0) {
+            return 0;
+        }
+        DataArray member = members[i];
+        long t = System.nanoTime();
+        int run = member.step(steps);
+        nanos[i] += System.nanoTime() - t;
+        stepsRun[i] += run;
+        if (member.isConverged()) {
+            convergedStep[i] = member.getStepCount();
+        }
+        return run;
+    }
+    
+    /* Steps a range of members, splitting it in half down to single
+    * members. Members share nothing they write, so tasks never conflict,
+    * and idle threads steal halves from busy ones.
+    */
+    private class StepTask extends RecursiveAction {
+    
+        private static final long serialVersionUID = 1L;
+        
+        private final int start;
+        private final int end;
+        private int steps;
+        
+        StepTask(int start, int end, int steps) {
+            this.start = start;
+            this.end = end;
+            this.steps = steps;
+        }
+        
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                steps = stepMember(start, steps);
+            } else {
+                int mid = (start + end) >>> 1;
+                StepTask first = new StepTask(start, mid, steps);
+                StepTask second = new StepTask(mid, end, steps);
+                invokeAll(first, second);
+                steps = Math.max(first.steps, second.steps);
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+* Planes stored as floats. The stencil math is done in single precision,
+* halving the memory and bandwidth used per step compared to doubles.
+* @author Graf
+*
+*/
+class FloatPlanes extends Planes {
+    
+    // Instance variables.
+    private float[] currRed;
+    private float[] currGreen;
+    private float[] currBlue;
+    private float[] nextRed;
+    private float[] nextGreen;
+    private float[] nextBlue;
+    private final float keep;
+    private final float share;
+    
+    /**
+    * Constructor.
+    * @param width The width of the simulation area.
+    * @param height The height of the simulation area.
+    * @param diffPercent The amount of color a cell diffuses per step.
+    */
+    FloatPlanes(int width, int height, double diffPercent) {
+        super(width, height);
+        currRed = new float[width * height];
+        currGreen = new float[width * height];
+        currBlue = new float[width * height];
+        nextRed = new float[width * height];
+        nextGreen = new float[width * height];
+        nextBlue = new float[width * height];
+        keep = (float)(1 - diffPercent);
+        share = (float)(diffPercent / 8);
+    }
+    
+    @Override
+    void stencilRows(int startRow, int endRow) {
+        for (int y = startRow; y < endRow; y++) {
+            
+            // The top and bottom rows are entirely border cells.
+            if (y == 0 || y == height - 1) {
+                for (int x = 0; x < width; x++) {
+                    diffuseEdgeCell(x, y);
+                }
+                continue;
+            }
+            
+            int rowStart = y * width;
+            diffuseEdgeCell(0, y);
+            diffuseInteriorRow(currRed, nextRed, rowStart, width, keep, share);
+            diffuseInteriorRow(currGreen, nextGreen, rowStart, width, keep,
+                    share);
+            diffuseInteriorRow(currBlue, nextBlue, rowStart, width, keep,
+                    share);
+            if (width > 1) {
+                diffuseEdgeCell(width - 1, y);
+            }
+        }
+    }
+    
+    // Diffuse all three channels of a cell on the border.
+    private void diffuseEdgeCell(int x, int y) {
+        int idx = y * width + x;
+        nextRed[idx] = diffuseEdgeChannel(currRed, x, y);
+        nextGreen[idx] = diffuseEdgeChannel(currGreen, x, y);
+        nextBlue[idx] = diffuseEdgeChannel(currBlue, x, y);
+    }
+    
+    /* Computes the next value of one channel of a border cell. Neighbors
+    * outside the simulation area contribute nothing.
+    */
+    private float diffuseEdgeChannel(float[] curr, int x, int y) {
+        int idx = y * width + x;
+        int prevRow = idx - width;
+        int nextRow = idx + width;
+        float n = curr[idx] * keep;
+        
+        // Left neighbors.
+        if (x > 0) {
+            n += curr[idx - 1] * share;
+            if (y > 0) {
+                n += curr[prevRow - 1] * share;
+            }
+            if (y < height - 1) {
+                n += curr[nextRow - 1] * share;
+            }
+        }
+        
+        // Right neighbors.
+        if (x < width - 1) {
+            n += curr[idx + 1] * share;
+            if (y > 0) {
+                n += curr[prevRow + 1] * share;
+            }
+            if (y < height - 1) {
+                n += curr[nextRow + 1] * share;
+            }
+        }
+        
+        // Top and bottom neighbors.
+        if (y > 0) {
+            n += curr[prevRow] * share;
+        }
+        if (y < height - 1) {
+            n += curr[nextRow] * share;
+        }
+        return n;
+    }
+    
+    // Diffuse every interior cell in a row of one channel.
+    private static void diffuseInteriorRow(float[] curr, float[] next,
+            int rowStart, int width, float keep, float share) {
+        
+        int end = rowStart + width - 1;
+        for (int idx = rowStart + 1; idx < end; idx++) {
+            int prevRow = idx - width;
+            int nextRow = idx + width;
+            float n = curr[idx] * keep;
+            n += curr[idx - 1] * share;
+            n += curr[prevRow - 1] * share;
+            n += curr[nextRow - 1] * share;
+            n += curr[idx + 1] * share;
+            n += curr[prevRow + 1] * share;
+            n += curr[nextRow + 1] * share;
+            n += curr[prevRow] * share;
+            n += curr[nextRow] * share;
+            next[idx] = n;
+        }
+    }
+    
+    @Override
+    void copyToNext(long start, long end) {
+        int from = (int)start;
+        int length = (int)(end - start);
+        System.arraycopy(currRed, from, nextRed, from, length);
+        System.arraycopy(currGreen, from, nextGreen, from, length);
+        System.arraycopy(currBlue, from, nextBlue, from, length);
+    }
+    
+    @Override
+    double maxChange(long start, long end) {
+        float change = 0;
+        for (int idx = (int)start; idx < end; idx++) {
+            change = Math.max(change, Math.abs(nextRed[idx] - currRed[idx]));
+            change = Math.max(change, Math.abs(nextGreen[idx] - currGreen[idx]));
+            change = Math.max(change, Math.abs(nextBlue[idx] - currBlue[idx]));
+        }
+        return change;
+    }
+    
+    @Override
+    long getBytes() {
+        return 6L * width * height * Float.BYTES;
+    }
+    
+    @Override
+    void swap() {
+        
+        float[] tempRed = currRed;
+        float[] tempGreen = currGreen;
+        float[] tempBlue = currBlue;
+        
+        currRed = nextRed;
+        currGreen = nextGreen;
+        currBlue = nextBlue;
+        
+        nextRed = tempRed;
+        nextGreen = tempGreen;
+        nextBlue = tempBlue;
+    }
+    
+    @Override
+    void clear() {
+        Arrays.fill(currRed, 0);
+        Arrays.fill(currGreen, 0);
+        Arrays.fill(currBlue, 0);
+    }
+    
+    @Override
+    void set(long index, double red, double green, double blue) {
+        int i = (int)index;
+        currRed[i] = (float)red;
+        currGreen[i] = (float)green;
+        currBlue[i] = (float)blue;
+    }
+    
+    @Override
+    void toArgb(int[] argb) {
+        int cells = width * height;
+        for (int i = 0; i < cells; i++) {
+            argb[i] = argb(currRed[i], currGreen[i], currBlue[i]);
+        }
+    }
+    
+    @Override
+    double getRed(long index) {
+        return currRed[(int)index];
+    }
+    
+    @Override
+    double getGreen(long index) {
+        return currGreen[(int)index];
+    }
+    
+    @Override
+    double getBlue(long index) {
+        return currBlue[(int)index];
+    }
+}
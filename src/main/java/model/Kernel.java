@@ -0,0 +1,302 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+* Describes the stencil a simulation diffuses with and how much of each
+* color channel a cell gives away per step. A step computes
+* next = (1 - rate) * cell + rate * (shape applied to the neighborhood),
+* where the weights of the shape sum to 1. Neighbors outside the
+* simulation area contribute nothing.
+* <p>
+* The shapes are EIGHT_NEIGHBOR, the original stencil that shares equally
+* with all eight neighbors, FOUR_NEIGHBOR, which shares only with the
+* horizontal and vertical neighbors, GAUSSIAN_3X3 and GAUSSIAN_5X5, binomial
+* blurs that include the cell itself, ANISOTROPIC, which shares with the
+* horizontal and vertical neighbors in a chosen ratio, and BOX, an equal
+* share with every cell of a square of any radius, including the cell.
+* <p>
+* A shape whose weights are the product of a column and a row of weights
+* is separable, and is applied in a horizontal and a vertical pass. The
+* passes of a BOX kernel cost the same for every radius.
+* @author Graf
+*
+*/
+public class Kernel {
+    
+    /**
+    * Labels for the stencil shapes.
+    */
+    public enum Shape {
+        EIGHT_NEIGHBOR, FOUR_NEIGHBOR, GAUSSIAN_3X3, GAUSSIAN_5X5, ANISOTROPIC,
+        BOX
+    }
+    
+    // Constants.
+    private static final double SEPARABLE_TOLERANCE = 1e-12;
+    
+    // Instance variables.
+    private final Shape shape;
+    private final int radius;
+    private final double[] weights;
+    private final double[] rates;
+    private double[] rowFactor;
+    private double[] columnFactor;
+    
+    /**
+    * Constructor for every shape but ANISOTROPIC and BOX.
+    * @param shape The stencil shape.
+    * @param red The fraction of red a cell diffuses per step.
+    * @param green The fraction of green a cell diffuses per step.
+    * @param blue The fraction of blue a cell diffuses per step.
+    */
+    public Kernel(Shape shape, double red, double green, double blue) {
+        this.shape = shape;
+        rates = rates(red, green, blue);
+        switch (shape) {
+            case EIGHT_NEIGHBOR:
+            radius = 1;
+            weights = new double[] { 1, 1, 1, 1, 0, 1, 1, 1, 1 };
+            scale(weights, 1.0 / 8);
+            break;
+            case FOUR_NEIGHBOR:
+            radius = 1;
+            weights = new double[] { 0, 1, 0, 1, 0, 1, 0, 1, 0 };
+            scale(weights, 1.0 / 4);
+            break;
+            case GAUSSIAN_3X3:
+            radius = 1;
+            weights = outer(new double[] { 1, 2, 1 });
+            scale(weights, 1.0 / 16);
+            break;
+            case GAUSSIAN_5X5:
+            radius = 2;
+            weights = outer(new double[] { 1, 4, 6, 4, 1 });
+            scale(weights, 1.0 / 256);
+            break;
+            default:
+            throw new IllegalArgumentException(shape
+                    + " kernels need more parameters than a shape and rates.");
+        }
+        factor();
+    }
+    
+    /**
+    * Constructor for a BOX kernel.
+    * @param shape BOX.
+    * @param radius The distance from a cell to the edge of its square.
+    * @param red The fraction of red a cell diffuses per step.
+    * @param green The fraction of green a cell diffuses per step.
+    * @param blue The fraction of blue a cell diffuses per step.
+    */
+    public Kernel(Shape shape, int radius, double red, double green,
+            double blue) {
+        if (shape != Shape.BOX) {
+            throw new IllegalArgumentException(
+                    "Only BOX kernels take a radius.");
+        }
+        if (radius < 1) {
+            throw new IllegalArgumentException(
+                    "Radius must be a positive integer.");
+        }
+        this.shape = shape;
+        this.radius = radius;
+        rates = rates(red, green, blue);
+        int side = 2 * radius + 1;
+        weights = new double[side * side];
+        Arrays.fill(weights, 1.0 / ((double)side * side));
+        factor();
+    }
+    
+    /**
+    * Constructor for an ANISOTROPIC kernel.
+    * @param horizontal The relative amount shared with the left and right
+    * neighbors.
+    * @param vertical The relative amount shared with the neighbors above
+    * and below.
+    * @param red The fraction of red a cell diffuses per step.
+    * @param green The fraction of green a cell diffuses per step.
+    * @param blue The fraction of blue a cell diffuses per step.
+    */
+    public Kernel(double horizontal, double vertical, double red, double green,
+            double blue) {
+        if (horizontal < 0 || vertical < 0 || !(horizontal + vertical > 0)) {
+            throw new IllegalArgumentException(
+                    "Anisotropic weights must not be negative and not both 0.");
+        }
+        shape = Shape.ANISOTROPIC;
+        radius = 1;
+        rates = rates(red, green, blue);
+        double sum = 2 * (horizontal + vertical);
+        weights = new double[] { 0, vertical / sum, 0, horizontal / sum, 0,
+                horizontal / sum, 0, vertical / sum, 0 };
+        factor();
+    }
+    
+    /**
+    * Constructor for a kernel read back from storage.
+    * @param shape The stencil shape.
+    * @param radius The distance from a cell to its farthest neighbor.
+    * @param weights Row-major weights of the neighborhood, without the
+    * rates, as returned by getWeights.
+    * @param rates The fraction of each channel a cell diffuses per step.
+    */
+    Kernel(Shape shape, int radius, double[] weights, double[] rates) {
+        int side = 2 * radius + 1;
+        if (radius < 1 || weights.length != side * side) {
+            throw new IllegalArgumentException(
+                    "Weights do not match the radius.");
+        }
+        this.shape = shape;
+        this.radius = radius;
+        this.weights = weights.clone();
+        this.rates = rates(rates[0], rates[1], rates[2]);
+        factor();
+    }
+    
+    /* Split the weights into a column times a row of weights, if they are
+    * separable. The row through the largest weight is used as is and the
+    * column is scaled to match it.
+    */
+    private void factor() {
+        int side = 2 * radius + 1;
+        int pivot = 0;
+        for (int i = 1; i < weights.length; i++) {
+            if (Math.abs(weights[i]) > Math.abs(weights[pivot])) {
+                pivot = i;
+            }
+        }
+        int py = pivot / side;
+        int px = pivot % side;
+        double[] row = Arrays.copyOfRange(weights, py * side, py * side + side);
+        double[] column = new double[side];
+        for (int y = 0; y < side; y++) {
+            column[y] = weights[y * side + px] / weights[pivot];
+        }
+        for (int i = 0; i < weights.length; i++) {
+            double product = column[i / side] * row[i % side];
+            if (Math.abs(product - weights[i]) > SEPARABLE_TOLERANCE) {
+                return;
+            }
+        }
+        rowFactor = row;
+        columnFactor = column;
+    }
+    
+    // Validate the per-channel rates.
+    private static double[] rates(double red, double green, double blue) {
+        double[] rates = { red, green, blue };
+        for (double rate : rates) {
+            if (!(rate >= 0 && rate <= 1)) {
+                throw new IllegalArgumentException(
+                        "Diffusion rates must be between 0 and 1.");
+            }
+        }
+        return rates;
+    }
+    
+    // The outer product of a row of weights with itself.
+    private static double[] outer(double[] row) {
+        double[] result = new double[row.length * row.length];
+        for (int y = 0; y < row.length; y++) {
+            for (int x = 0; x < row.length; x++) {
+                result[y * row.length + x] = row[y] * row[x];
+            }
+        }
+        return result;
+    }
+    
+    // Multiply every weight by a factor.
+    private static void scale(double[] weights, double factor) {
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] *= factor;
+        }
+    }
+    
+    /**
+    * Getter for the stencil shape.
+    * @return The shape chosen at construction.
+    */
+    public Shape getShape() {
+        return shape;
+    }
+    
+    /**
+    * Getter for the distance from a cell to its farthest neighbor.
+    * @return 1 for 3x3 stencils, 2 for 5x5 stencils, the radius of BOX
+    * kernels.
+    */
+    public int getRadius() {
+        return radius;
+    }
+    
+    /**
+    * Getter for the fraction of a channel a cell diffuses per step.
+    * @param channel 0 for red, 1 for green, 2 for blue.
+    * @return The rate of the channel.
+    */
+    public double getRate(int channel) {
+        return rates[channel];
+    }
+    
+    /**
+    * Determines if this is the original stencil with the same rate for
+    * every channel, which the specialized DOUBLE kernels implement.
+    * @return True for EIGHT_NEIGHBOR with equal rates.
+    */
+    public boolean isUniformEightNeighbor() {
+        return shape == Shape.EIGHT_NEIGHBOR && rates[0] == rates[1]
+                && rates[1] == rates[2];
+    }
+    
+    /**
+    * Determines if the shape is applied in a horizontal and a vertical
+    * pass.
+    * @return True if the weights are a column times a row of weights.
+    */
+    public boolean isSeparable() {
+        return rowFactor != null;
+    }
+    
+    /**
+    * Getter for the horizontal factor of a separable shape, without the
+    * rates.
+    * @return 2 * radius + 1 weights, or null if the shape is not separable.
+    */
+    double[] getRowFactor() {
+        return rowFactor;
+    }
+    
+    /**
+    * Getter for the vertical factor of a separable shape, without the
+    * rates.
+    * @return 2 * radius + 1 weights, or null if the shape is not separable.
+    */
+    double[] getColumnFactor() {
+        return columnFactor;
+    }
+    
+    /**
+    * Getter for the shape's weights, without the rates.
+    * @return Row-major weights of the (2 * radius + 1)^2 neighborhood.
+    */
+    double[] getWeights() {
+        return weights.clone();
+    }
+    
+    /**
+    * The weight of every cell of the neighborhood for one channel, with
+    * the rate folded in.
+    * @param channel 0 for red, 1 for green, 2 for blue.
+    * @return Row-major weights of the (2 * radius + 1)^2 neighborhood.
+    */
+    double[] weights(int channel) {
+        double rate = rates[channel];
+        double[] result = new double[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            result[i] = weights[i] * rate;
+        }
+        result[weights.length / 2] += 1 - rate;
+        return result;
+    }
+}
@@ -0,0 +1,458 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+* Planes stored as doubles that diffuse with any Kernel and Boundary. Each
+* plane is padded with a ring of ghost cells as deep as the kernel's
+* radius, filled before every step according to the boundary, so every
+* cell uses the same branch-free loop. At construction each channel's
+* stencil is compiled into a table of taps, an offset and a weight per
+* neighbor with a nonzero weight, so the inner loop never tests the shape,
+* the channel or the position of a cell.
+* <p>
+* The cell itself is always the first tap, and the 3x3 neighbors follow in
+* the order DoublePlanes adds them. Ghosts of an ABSORBING boundary are 0
+* and add exactly nothing, so the EIGHT_NEIGHBOR kernel is bit-identical
+* to DoublePlanes with the SCALAR backend.
+* <p>
+* Separable kernels with a radius of at least SEPARABLE_RADIUS are applied
+* in two passes instead, which costs O(radius) per cell rather than
+* O(radius^2). Each band keeps a ring of horizontally filtered rows, so
+* every row is filtered once per band. Box kernels filter with running
+* sums in both directions, which costs the same for every radius.
+* @author Graf
+*
+*/
+class KernelPlanes extends Planes {
+    
+    // Constants.
+    static final int SEPARABLE_RADIUS = 2;
+    
+    // Instance variables.
+    private double[][] curr;
+    private double[][] next;
+    private final int radius;
+    private final int stride;
+    private final int origin;
+    private final Boundary boundary;
+    private final double[] boundaryColor = new double[3];
+    private final int[][] tapOffset;
+    private final double[][] tapWeight;
+    private final double[] rates;
+    private final double[] rowFactor;
+    private final double[] columnFactor;
+    private final boolean box;
+    private final ThreadLocal<double[][]> rings;
+    
+    /**
+    * Constructor.
+    * @param width The width of the simulation area.
+    * @param height The height of the simulation area.
+    * @param kernel The stencil and per-channel rates.
+    * @param boundary What lies beyond the edges.
+    */
+    KernelPlanes(int width, int height, Kernel kernel, Boundary boundary) {
+        super(width, height);
+        radius = kernel.getRadius();
+        if (boundary == Boundary.PERIODIC
+                && (width < radius || height < radius)) {
+            throw new IllegalArgumentException(
+                    "A PERIODIC grid must be at least as large as the radius.");
+        }
+        this.boundary = boundary;
+        stride = width + 2 * radius;
+        origin = radius * stride + radius;
+        int padded = stride * (height + 2 * radius);
+        curr = new double[3][padded];
+        next = new double[3][padded];
+        tapOffset = new int[3][];
+        tapWeight = new double[3][];
+        rates = new double[3];
+        for (int c = 0; c < 3; c++) {
+            compile(c, kernel.weights(c));
+            rates[c] = kernel.getRate(c);
+        }
+        if (kernel.isSeparable() && radius >= SEPARABLE_RADIUS) {
+            rowFactor = kernel.getRowFactor();
+            columnFactor = kernel.getColumnFactor();
+            box = isUniform(rowFactor) && isUniform(columnFactor);
+            
+            // The ring rows and the running sum, one set per diffusing
+            // thread so bands never allocate or share them.
+            int rows = 2 * radius + 2;
+            rings = ThreadLocal.withInitial(() -> new double[rows][width]);
+        } else {
+            rowFactor = null;
+            columnFactor = null;
+            box = false;
+            rings = null;
+        }
+    }
+    
+    // Determines if every weight is the same.
+    private static boolean isUniform(double[] weights) {
+        for (double w : weights) {
+            if (w != weights[0]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /* Build the tap table of one channel. Columns are visited nearest
+    * first, left before right, with the cell's own column last; within a
+    * column the middle row comes first, then up before down.
+    */
+    private void compile(int c, double[] weights) {
+        int side = 2 * radius + 1;
+        int[] order = new int[side];
+        for (int k = 1; k <= radius; k++) {
+            order[2 * k - 2] = -k;
+            order[2 * k - 1] = k;
+        }
+        order[side - 1] = 0;
+        int[] rows = new int[side];
+        System.arraycopy(order, 0, rows, 1, side - 1);
+        
+        int[] offsets = new int[side * side];
+        double[] ws = new double[side * side];
+        ws[0] = weights[radius * side + radius];
+        int count = 1;
+        for (int dx : order) {
+            for (int dy : rows) {
+                double w = weights[(dy + radius) * side + dx + radius];
+                if ((dx != 0 || dy != 0) && w != 0) {
+                    offsets[count] = dy * stride + dx;
+                    ws[count] = w;
+                    count++;
+                }
+            }
+        }
+        tapOffset[c] = Arrays.copyOf(offsets, count);
+        tapWeight[c] = Arrays.copyOf(ws, count);
+    }
+    
+    /**
+    * Set the color of the cells outside a FIXED boundary.
+    * @param red The red value, between 0 and 1.
+    * @param green The green value, between 0 and 1.
+    * @param blue The blue value, between 0 and 1.
+    */
+    void setBoundaryColor(double red, double green, double blue) {
+        boundaryColor[0] = red;
+        boundaryColor[1] = green;
+        boundaryColor[2] = blue;
+    }
+    
+    /**
+    * Getter for the color of the cells outside a FIXED boundary.
+    * @param channel 0 for red, 1 for green, 2 for blue.
+    * @return The value of the channel.
+    */
+    double getBoundaryColor(int channel) {
+        return boundaryColor[channel];
+    }
+    
+    /**
+    * Fill the ghost cells of the current planes. ABSORBING ghosts are
+    * never written and stay 0.
+    */
+    @Override
+    void prepareStep() {
+        if (boundary == Boundary.ABSORBING) {
+            return;
+        }
+        for (int c = 0; c < 3; c++) {
+            fillGhosts(curr[c], boundaryColor[c]);
+        }
+    }
+    
+    /* Fill the ghost columns of every row, then the ghost rows, whole, so
+    * that the corners come from the ghost columns.
+    */
+    private void fillGhosts(double[] a, double fixed) {
+        for (int y = 0; y < height; y++) {
+            int row = origin + y * stride;
+            for (int k = 1; k <= radius; k++) {
+                int left = row - k;
+                int right = row + width - 1 + k;
+                switch (boundary) {
+                    case REFLECTING:
+                    a[left] = a[row + Math.min(k - 1, width - 1)];
+                    a[right] = a[row + Math.max(width - k, 0)];
+                    break;
+                    case PERIODIC:
+                    a[left] = a[row + width - k];
+                    a[right] = a[row + k - 1];
+                    break;
+                    default:
+                    a[left] = fixed;
+                    a[right] = fixed;
+                    break;
+                }
+            }
+        }
+        for (int k = 1; k <= radius; k++) {
+            int above = (radius - k) * stride;
+            int below = (radius + height - 1 + k) * stride;
+            switch (boundary) {
+                case REFLECTING:
+                copyRow(a, Math.min(k - 1, height - 1), above);
+                copyRow(a, Math.max(height - k, 0), below);
+                break;
+                case PERIODIC:
+                copyRow(a, height - k, above);
+                copyRow(a, k - 1, below);
+                break;
+                default:
+                Arrays.fill(a, above, above + stride, fixed);
+                Arrays.fill(a, below, below + stride, fixed);
+                break;
+            }
+        }
+    }
+    
+    // Copy grid row y, with its ghost columns, to a padded row.
+    private void copyRow(double[] a, int y, int to) {
+        System.arraycopy(a, (radius + y) * stride, a, to, stride);
+    }
+    
+    // The position of a cell in the padded planes.
+    private int pad(long index) {
+        return origin + (int)(index / width) * stride + (int)(index % width);
+    }
+    
+    @Override
+    void stencilRows(int startRow, int endRow) {
+        if (rowFactor != null) {
+            separableRows(startRow, endRow, null);
+            return;
+        }
+        for (int y = startRow; y < endRow; y++) {
+            int rowStart = origin + y * stride;
+            for (int c = 0; c < 3; c++) {
+                diffuseRow(curr[c], next[c], rowStart, rowStart + width,
+                        tapOffset[c], tapWeight[c]);
+            }
+        }
+    }
+    
+    /* Diffuse the padded cells [start, end) of one channel. Every tap lands
+    * on a cell or a ghost.
+    */
+    private static void diffuseRow(double[] curr, double[] next, int start,
+            int end, int[] offset, double[] weight) {
+        int taps = weight.length;
+        for (int idx = start; idx < end; idx++) {
+            double n = curr[idx] * weight[0];
+            for (int t = 1; t < taps; t++) {
+                n += curr[idx + offset[t]] * weight[t];
+            }
+            next[idx] = n;
+        }
+    }
+    
+    /**
+    * Diffuse and measure the rows [startRow, endRow). Separable kernels
+    * run over the whole band, so the ring is filled once, and measure each
+    * row of a channel as soon as it is written.
+    */
+    @Override
+    double diffuseRowsMeasured(int startRow, int endRow,
+            EmitterMask emitters) {
+        if (rowFactor == null) {
+            return super.diffuseRowsMeasured(startRow, endRow, emitters);
+        }
+        return separableRows(startRow, endRow, emitters);
+    }
+    
+    /* Apply a separable kernel to the rows [startRow, endRow). Row y of the
+    * horizontal pass is kept in ring[y mod side] while the vertical pass
+    * needs it. A box kernel keeps the running sum of the ring's rows. The
+    * sum is the row after the ring. Given emitters, each written row is
+    * restamped and measured, and the largest change is returned.
+    */
+    private double separableRows(int startRow, int endRow,
+            EmitterMask emitters) {
+        int side = 2 * radius + 1;
+        double[][] ring = rings.get();
+        double[] sum = ring[side];
+        double boxWeight = columnFactor[0];
+        double change = 0;
+        
+        for (int c = 0; c < 3; c++) {
+            double[] src = curr[c];
+            double[] dst = next[c];
+            double keep = 1 - rates[c];
+            double rate = rates[c];
+            
+            // Fill the ring with the rows above the first row's last one.
+            Arrays.fill(sum, 0);
+            for (int y = startRow - radius; y < startRow + radius; y++) {
+                double[] row = ring[Math.floorMod(y, side)];
+                filterRow(src, y, row);
+                if (box) {
+                    addRow(sum, row, 1);
+                }
+            }
+            
+            for (int y = startRow; y < endRow; y++) {
+                double[] entering = ring[Math.floorMod(y + radius, side)];
+                filterRow(src, y + radius, entering);
+                int rowStart = origin + y * stride;
+                if (box) {
+                    addRow(sum, entering, 1);
+                    for (int x = 0; x < width; x++) {
+                        dst[rowStart + x] = src[rowStart + x] * keep
+                                + sum[x] * boxWeight * rate;
+                    }
+                    addRow(sum, ring[Math.floorMod(y - radius, side)], -1);
+                } else {
+                    
+                    // Weighted sum of the ring's rows, top to bottom.
+                    Arrays.fill(sum, 0);
+                    for (int dy = -radius; dy <= radius; dy++) {
+                        double[] row = ring[Math.floorMod(y + dy, side)];
+                        double w = columnFactor[dy + radius];
+                        for (int x = 0; x < width; x++) {
+                            sum[x] += row[x] * w;
+                        }
+                    }
+                    for (int x = 0; x < width; x++) {
+                        dst[rowStart + x] = src[rowStart + x] * keep
+                                + sum[x] * rate;
+                    }
+                }
+                
+                // Restamping copies every channel, so the channels after
+                // this one are overwritten and restamped again later.
+                if (emitters != null) {
+                    restamp(emitters, y * width, (y + 1) * width);
+                    for (int i = rowStart; i < rowStart + width; i++) {
+                        change = Math.max(change, Math.abs(dst[i] - src[i]));
+                    }
+                }
+            }
+        }
+        return change;
+    }
+    
+    /* Horizontal pass over row y of one channel, which may be a ghost
+    * row.
+    */
+    private void filterRow(double[] src, int y, double[] out) {
+        int rowStart = origin + y * stride;
+        if (box) {
+            
+            // Running sum of the cells within the radius.
+            double weight = rowFactor[0];
+            double sum = 0;
+            for (int x = -radius; x < radius; x++) {
+                sum += src[rowStart + x];
+            }
+            for (int x = 0; x < width; x++) {
+                sum += src[rowStart + x + radius];
+                out[x] = sum * weight;
+                sum -= src[rowStart + x - radius];
+            }
+            return;
+        }
+        Arrays.fill(out, 0);
+        for (int dx = -radius; dx <= radius; dx++) {
+            double w = rowFactor[dx + radius];
+            int from = rowStart + dx;
+            for (int x = 0; x < width; x++) {
+                out[x] += src[from + x] * w;
+            }
+        }
+    }
+    
+    // Add a row times a sign to a running sum of rows.
+    private static void addRow(double[] sum, double[] row, int sign) {
+        for (int x = 0; x < sum.length; x++) {
+            sum[x] += row[x] * sign;
+        }
+    }
+    
+    @Override
+    void copyToNext(long start, long end) {
+        while (start < end) {
+            long rowEnd = Math.min(end, (start / width + 1) * width);
+            int p = pad(start);
+            for (int c = 0; c < 3; c++) {
+                System.arraycopy(curr[c], p, next[c], p, (int)(rowEnd - start));
+            }
+            start = rowEnd;
+        }
+    }
+    
+    @Override
+    double maxChange(long start, long end) {
+        double change = 0;
+        while (start < end) {
+            long rowEnd = Math.min(end, (start / width + 1) * width);
+            int p = pad(start);
+            for (int c = 0; c < 3; c++) {
+                for (int i = p; i < p + rowEnd - start; i++) {
+                    change = Math.max(change, Math.abs(next[c][i] - curr[c][i]));
+                }
+            }
+            start = rowEnd;
+        }
+        return change;
+    }
+    
+    @Override
+    long getBytes() {
+        return 6L * curr[0].length * Double.BYTES;
+    }
+    
+    @Override
+    void swap() {
+        double[][] temp = curr;
+        curr = next;
+        next = temp;
+    }
+    
+    @Override
+    void clear() {
+        for (int c = 0; c < 3; c++) {
+            Arrays.fill(curr[c], 0);
+        }
+    }
+    
+    @Override
+    void set(long index, double red, double green, double blue) {
+        int p = pad(index);
+        curr[0][p] = red;
+        curr[1][p] = green;
+        curr[2][p] = blue;
+    }
+    
+    @Override
+    void toArgb(int[] argb) {
+        for (int y = 0; y < height; y++) {
+            int p = origin + y * stride;
+            for (int x = 0; x < width; x++) {
+                argb[y * width + x] = argb(curr[0][p + x], curr[1][p + x],
+                        curr[2][p + x]);
+            }
+        }
+    }
+    
+    @Override
+    double getRed(long index) {
+        return curr[0][pad(index)];
+    }
+    
+    @Override
+    double getGreen(long index) {
+        return curr[1][pad(index)];
+    }
+    
+    @Override
+    double getBlue(long index) {
+        return curr[2][pad(index)];
+    }
+}
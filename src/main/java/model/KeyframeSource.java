@@ -0,0 +1,74 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+* A source that follows a scripted color track. The color is interpolated
+* linearly between keyframes and holds the first and last keyframe's color
+* outside the track, unless the track loops.
+* @author Graf
+*
+*/
+public class KeyframeSource extends Source {
+    
+    // Instance variables.
+    private final long[] times;
+    private final double[] colors;
+    private final boolean loop;
+    
+    /**
+    * Constructor.
+    * @param times The step of each keyframe, strictly increasing and
+    * starting at 0 or later.
+    * @param colors The red, green and blue values of each keyframe, three
+    * per keyframe, each between 0 and 1.
+    * @param loop True to restart the track after the last keyframe.
+    */
+    public KeyframeSource(long[] times, double[] colors, boolean loop) {
+        if (times.length == 0 || colors.length != times.length * 3) {
+            throw new IllegalArgumentException(
+                    "Each keyframe needs a time and three color values.");
+        }
+        for (int k = 0; k < times.length; k++) {
+            if (times[k] < 0 || (k > 0 && times[k] <= times[k - 1])) {
+                throw new IllegalArgumentException(
+                        "Keyframe times must be increasing and not negative.");
+            }
+        }
+        this.times = times.clone();
+        this.colors = new double[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            this.colors[i] = clamp(colors[i]);
+        }
+        this.loop = loop && times[times.length - 1] > 0;
+    }
+    
+    @Override
+    public void color(long age, double[] rgb) {
+        long last = times[times.length - 1];
+        long t = loop ? age % last : age;
+        
+        int k = Arrays.binarySearch(times, t);
+        if (k >= 0) {
+            set(k, k, 0, rgb);
+        } else if (k == -1) {
+            set(0, 0, 0, rgb);
+        } else if (-k - 1 == times.length) {
+            set(times.length - 1, times.length - 1, 0, rgb);
+        } else {
+            int hi = -k - 1;
+            int lo = hi - 1;
+            double f = (t - times[lo]) / (double)(times[hi] - times[lo]);
+            set(lo, hi, f, rgb);
+        }
+    }
+    
+    // Interpolate between keyframes lo and hi.
+    private void set(int lo, int hi, double f, double[] rgb) {
+        for (int c = 0; c < 3; c++) {
+            double a = colors[lo * 3 + c];
+            double b = colors[hi * 3 + c];
+            rgb[c] = a + (b - a) * f;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package model;
+
+/**
+* Labels for the ways a DataArray can arrange its color values in memory.
+* <p>
+* PLANAR keeps red, green and blue in three separate arrays. INTERLEAVED
+* keeps the three channels of a cell next to each other in one array, so
+* each neighbor access touches one cache line instead of three. INTERLEAVED
+* is only available with DOUBLE precision.
+* @author Graf
+*
+*/
+public enum Layout {
+    PLANAR, INTERLEAVED
+}
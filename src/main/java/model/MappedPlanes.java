@@ -0,0 +1,370 @@
+package model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+* Planes stored as doubles in a memory-mapped file instead of on the heap.
+* The operating system pages the planes in and out of its cache, so they
+* add nothing to garbage collection and may be larger than physical
+* memory. Files are addressed with long offsets and mapped in chunks of
+* whole rows, each smaller than the 2 GB limit of a single mapping, and
+* cells are indexed with longs, so a simulation may have more cells than
+* an int can index.
+* <p>
+* The file starts with a header holding the size of the simulation and
+* which of the two sets of planes is current, followed by the red, green
+* and blue planes of both sets and one byte per cell for the emitter mask.
+* Opening an existing file resumes the simulation stored in it. Results
+* are bit-identical to DoublePlanes with the SCALAR backend.
+* @author Graf
+*
+*/
+class MappedPlanes extends Planes {
+    
+    // Constants.
+    static final long MAGIC = 0x44494646504C4E31L;
+    static final int HEADER_BYTES = 64;
+    static final long CHUNK_BYTES = 1L << 30;
+    private static final int WIDTH_OFFSET = 8;
+    private static final int HEIGHT_OFFSET = 12;
+    private static final int CURRENT_OFFSET = 16;
+    
+    // Instance variables.
+    private final MappedByteBuffer header;
+    private final Plane[] first;
+    private final Plane[] second;
+    private final MappedByteBuffer[] mask;
+    private final int rowsPerChunk;
+    private final boolean resumed;
+    private Plane[] curr;
+    private Plane[] next;
+    private final double keep;
+    private final double share;
+    private final ThreadLocal<double[][]> rows;
+    
+    /**
+    * Constructor. Creates the file if it does not exist, otherwise resumes
+    * the simulation stored in it.
+    * @param file The file holding the planes.
+    * @param width The width of the simulation area.
+    * @param height The height of the simulation area.
+    * @param diffPercent The amount of color a cell diffuses per step.
+    * @param chunkBytes The most bytes of a plane mapped at once, usually
+    * CHUNK_BYTES. Chunks hold at least one row, and the file's layout does
+    * not depend on their size.
+    * @throws IOException If the file cannot be mapped or holds a
+    * simulation of a different size.
+    */
+    MappedPlanes(File file, int width, int height, double diffPercent,
+            long chunkBytes) throws IOException {
+        super(width, height);
+        keep = 1 - diffPercent;
+        share = diffPercent / 8;
+        
+        // Four padded rows, the window and the output, one set per
+        // diffusing thread so bands never allocate or share them.
+        rows = ThreadLocal.withInitial(() -> new double[4][width + 2]);
+        rowsPerChunk = (int)Math.max(1, Math.min(height,
+                chunkBytes / ((long)width * Double.BYTES)));
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            
+            resumed = channel.size() > 0;
+            header = channel.map(MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (resumed) {
+                if (header.getLong(0) != MAGIC) {
+                    throw new IOException(file + " is not a mapped simulation.");
+                }
+                int w = header.getInt(WIDTH_OFFSET);
+                int h = header.getInt(HEIGHT_OFFSET);
+                if (w != width || h != height) {
+                    throw new IOException(String.format(
+                            "%s holds a %dx%d simulation, not %dx%d.",
+                            file, w, h, width, height));
+                }
+            } else {
+                header.putLong(0, MAGIC);
+                header.putInt(WIDTH_OFFSET, width);
+                header.putInt(HEIGHT_OFFSET, height);
+                header.putInt(CURRENT_OFFSET, 0);
+            }
+            
+            // Three channels for each of the two sets of planes.
+            long planeBytes = (long)width * height * Double.BYTES;
+            long offset = HEADER_BYTES;
+            first = new Plane[3];
+            second = new Plane[3];
+            for (int c = 0; c < 3; c++, offset += planeBytes) {
+                first[c] = new Plane(channel, offset);
+            }
+            for (int c = 0; c < 3; c++, offset += planeBytes) {
+                second[c] = new Plane(channel, offset);
+            }
+            
+            // One byte per cell, in the same chunks of rows.
+            int chunks = (height + rowsPerChunk - 1) / rowsPerChunk;
+            mask = new MappedByteBuffer[chunks];
+            for (int k = 0; k < chunks; k++) {
+                int rows = Math.min(rowsPerChunk, height - k * rowsPerChunk);
+                mask[k] = channel.map(MapMode.READ_WRITE,
+                        offset + (long)k * rowsPerChunk * width,
+                        (long)rows * width);
+            }
+        }
+        
+        boolean swapped = header.getInt(CURRENT_OFFSET) != 0;
+        curr = swapped ? second : first;
+        next = swapped ? first : second;
+    }
+    
+    /**
+    * Determines if the planes were read from an existing file.
+    * @return True if a stored simulation was resumed.
+    */
+    boolean isResumed() {
+        return resumed;
+    }
+    
+    /**
+    * Read the emitter mask stored in the file.
+    * @param emitters Destination mask.
+    */
+    void loadEmitters(EmitterMask emitters) {
+        for (int k = 0; k < mask.length; k++) {
+            long base = (long)k * rowsPerChunk * width;
+            for (int i = 0; i < mask[k].capacity(); i++) {
+                emitters.set(base + i, mask[k].get(i) != 0);
+            }
+        }
+    }
+    
+    /**
+    * Store the emitter mask and write all changes through to the file.
+    * @param emitters The mask to store.
+    */
+    void flush(EmitterMask emitters) {
+        for (int k = 0; k < mask.length; k++) {
+            long base = (long)k * rowsPerChunk * width;
+            for (int i = 0; i < mask[k].capacity(); i++) {
+                mask[k].put(i, emitters.get(base + i) ? (byte)1 : (byte)0);
+            }
+            mask[k].force();
+        }
+        for (int c = 0; c < 3; c++) {
+            first[c].force();
+            second[c].force();
+        }
+        header.force();
+    }
+    
+    /**
+    * Diffuse the rows [startRow, endRow). Each channel keeps a window of
+    * three rows padded with zeros on both sides, so every cell uses the
+    * interior stencil. A zero neighbor adds exactly 0, so border cells
+    * round the same way as in DoublePlanes.
+    */
+    @Override
+    void stencilRows(int startRow, int endRow) {
+        double[][] window = rows.get();
+        double[] out = window[3];
+        for (int c = 0; c < 3; c++) {
+            double[] up = window[0];
+            double[] mid = window[1];
+            double[] down = window[2];
+            loadRow(curr[c], startRow - 1, up);
+            loadRow(curr[c], startRow, mid);
+            
+            for (int y = startRow; y < endRow; y++) {
+                loadRow(curr[c], y + 1, down);
+                for (int x = 0; x < width; x++) {
+                    int i = x + 1;
+                    double n = mid[i] * keep;
+                    n += mid[i - 1] * share;
+                    n += up[i - 1] * share;
+                    n += down[i - 1] * share;
+                    n += mid[i + 1] * share;
+                    n += up[i + 1] * share;
+                    n += down[i + 1] * share;
+                    n += up[i] * share;
+                    n += down[i] * share;
+                    out[x] = n;
+                }
+                next[c].putRow(y, out);
+                
+                double[] temp = up;
+                up = mid;
+                mid = down;
+                down = temp;
+            }
+        }
+    }
+    
+    // Copy a row into a padded window, or zeros outside the grid.
+    private void loadRow(Plane plane, int y, double[] window) {
+        if (y < 0 || y >= height) {
+            Arrays.fill(window, 0);
+        } else {
+            plane.getRow(y, window, 1);
+        }
+    }
+    
+    @Override
+    void copyToNext(long start, long end) {
+        for (int c = 0; c < 3; c++) {
+            for (long idx = start; idx < end; idx++) {
+                next[c].put(idx, curr[c].get(idx));
+            }
+        }
+    }
+    
+    @Override
+    double maxChange(long start, long end) {
+        double change = 0;
+        for (int c = 0; c < 3; c++) {
+            for (long idx = start; idx < end; idx++) {
+                change = Math.max(change,
+                        Math.abs(next[c].get(idx) - curr[c].get(idx)));
+            }
+        }
+        return change;
+    }
+    
+    @Override
+    long getBytes() {
+        return 6L * width * height * Double.BYTES;
+    }
+    
+    @Override
+    void swap() {
+        Plane[] temp = curr;
+        curr = next;
+        next = temp;
+        header.putInt(CURRENT_OFFSET, curr == second ? 1 : 0);
+    }
+    
+    @Override
+    void clear() {
+        double[] zeros = rows.get()[3];
+        Arrays.fill(zeros, 0);
+        for (int c = 0; c < 3; c++) {
+            for (int y = 0; y < height; y++) {
+                curr[c].putRow(y, zeros);
+            }
+        }
+    }
+    
+    @Override
+    void set(long index, double red, double green, double blue) {
+        curr[0].put(index, red);
+        curr[1].put(index, green);
+        curr[2].put(index, blue);
+    }
+    
+    @Override
+    void toArgb(int[] argb) {
+        double[][] scratch = rows.get();
+        double[] red = scratch[0];
+        double[] green = scratch[1];
+        double[] blue = scratch[2];
+        for (int y = 0; y < height; y++) {
+            curr[0].getRow(y, red, 0);
+            curr[1].getRow(y, green, 0);
+            curr[2].getRow(y, blue, 0);
+            int rowStart = y * width;
+            for (int x = 0; x < width; x++) {
+                argb[rowStart + x] = argb(red[x], green[x], blue[x]);
+            }
+        }
+    }
+    
+    @Override
+    double getRed(long index) {
+        return curr[0].get(index);
+    }
+    
+    @Override
+    double getGreen(long index) {
+        return curr[1].get(index);
+    }
+    
+    @Override
+    double getBlue(long index) {
+        return curr[2].get(index);
+    }
+    
+    /* One color channel of one set of planes, mapped in chunks of whole
+    * rows. Bulk reads and writes go through each thread's own duplicates of
+    * the chunk buffers so that bands on different threads never share a
+    * buffer position.
+    */
+    private class Plane {
+    
+        private final MappedByteBuffer[] bytes;
+        private final DoubleBuffer[] chunks;
+        private final ThreadLocal<DoubleBuffer[]> views;
+        
+        Plane(FileChannel channel, long offset) throws IOException {
+            int count = (height + rowsPerChunk - 1) / rowsPerChunk;
+            bytes = new MappedByteBuffer[count];
+            chunks = new DoubleBuffer[count];
+            long chunkBytes = (long)rowsPerChunk * width * Double.BYTES;
+            for (int k = 0; k < count; k++) {
+                int rows = Math.min(rowsPerChunk, height - k * rowsPerChunk);
+                bytes[k] = channel.map(MapMode.READ_WRITE,
+                        offset + k * chunkBytes,
+                        (long)rows * width * Double.BYTES);
+                ByteBuffer b = bytes[k].order(ByteOrder.LITTLE_ENDIAN);
+                chunks[k] = b.asDoubleBuffer();
+            }
+            views = ThreadLocal.withInitial(() -> {
+                DoubleBuffer[] d = new DoubleBuffer[count];
+                for (int k = 0; k < count; k++) {
+                    d[k] = chunks[k].duplicate();
+                }
+                return d;
+            });
+        }
+        
+        double get(long cell) {
+            long row = cell / width;
+            int k = (int)(row / rowsPerChunk);
+            return chunks[k].get((int)(cell - (long)k * rowsPerChunk * width));
+        }
+        
+        void put(long cell, double value) {
+            long row = cell / width;
+            int k = (int)(row / rowsPerChunk);
+            chunks[k].put((int)(cell - (long)k * rowsPerChunk * width), value);
+        }
+        
+        void getRow(int y, double[] dst, int offset) {
+            DoubleBuffer d = views.get()[y / rowsPerChunk];
+            d.position((y % rowsPerChunk) * width);
+            d.get(dst, offset, width);
+        }
+        
+        void putRow(int y, double[] src) {
+            DoubleBuffer d = views.get()[y / rowsPerChunk];
+            d.position((y % rowsPerChunk) * width);
+            d.put(src, 0, width);
+        }
+        
+        void force() {
+            for (MappedByteBuffer b : bytes) {
+                b.force();
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+* Solves for the steady state of a simulation with geometric multigrid
+* V-cycles. At the steady state every cell that is not an emitter equals
+* the average of its eight neighbors, where neighbors outside the grid are
+* 0. Emitters keep their values. The amount a cell diffuses per step only
+* changes how fast the steady state is reached, not what it is.
+* <p>
+* Each level has half the resolution of the one above it, and a coarse
+* cell covers a 2x2 block of fine cells. Residuals are restricted by
+* summing the block. That sum matches the coarse stencil, which spans
+* twice the distance. Corrections are interpolated back bilinearly and
+* smoothed with Gauss-Seidel sweeps. A coarse cell is held at a correction
+* of 0 if any cell it covers is held, so that coarse corrections do not
+* work against the emitters.
+* @author Graf
+*
+*/
+class MultigridSolver {
+    
+    // Constants.
+    static final int PRE_SWEEPS = 2;
+    static final int POST_SWEEPS = 2;
+    static final int COARSEST_SWEEPS = 50;
+    static final int COARSEST_SIZE = 4;
+    
+    // Instance variables.
+    private final Level[] levels;
+    private int cycles;
+    
+    /**
+    * Constructor.
+    * @param width The width of the simulation area.
+    * @param height The height of the simulation area.
+    * @param isEmitter Mask of cells whose color is constant.
+    */
+    MultigridSolver(int width, int height, boolean[] isEmitter) {
+        int count = 1;
+        for (int w = width, h = height; Math.max(w, h) > COARSEST_SIZE; count++) {
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+        }
+        levels = new Level[count];
+        for (int l = 0, w = width, h = height; l < count; l++) {
+            levels[l] = new Level(w, h);
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+        }
+        System.arraycopy(isEmitter, 0, levels[0].fixed, 0, isEmitter.length);
+        for (int l = 1; l < count; l++) {
+            Level fine = levels[l - 1];
+            Level coarse = levels[l];
+            for (int y = 0; y < fine.height; y++) {
+                for (int x = 0; x < fine.width; x++) {
+                    if (fine.fixed[y * fine.width + x]) {
+                        coarse.fixed[(y / 2) * coarse.width + x / 2] = true;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+    * Solve for the steady state of one channel.
+    * @param channel The channel's values in row-major order. Emitters hold
+    * their constant values, other cells the initial guess. Replaced by the
+    * solution.
+    * @param tolerance The largest residual, 8 times a cell minus the sum of
+    * its neighbors, of the solution.
+    * @param maxCycles The most V-cycles to run.
+    * @return The largest residual of the solution.
+    */
+    double solve(double[] channel, double tolerance, int maxCycles) {
+        Level fine = levels[0];
+        System.arraycopy(channel, 0, fine.x, 0, channel.length);
+        Arrays.fill(fine.b, 0);
+        
+        double residual = residual(fine);
+        cycles = 0;
+        while (residual > tolerance && cycles < maxCycles) {
+            vCycle(0);
+            residual = residual(fine);
+            cycles++;
+        }
+        System.arraycopy(fine.x, 0, channel, 0, channel.length);
+        return residual;
+    }
+    
+    /**
+    * Getter for the number of V-cycles the last solve ran.
+    * @return The number of cycles.
+    */
+    int getCycles() {
+        return cycles;
+    }
+    
+    // Reduce the error on level l and all coarser levels.
+    private void vCycle(int l) {
+        Level level = levels[l];
+        if (l == levels.length - 1) {
+            smooth(level, COARSEST_SWEEPS);
+            return;
+        }
+        
+        smooth(level, PRE_SWEEPS);
+        residual(level);
+        Level coarse = levels[l + 1];
+        restrict(level, coarse);
+        Arrays.fill(coarse.x, 0);
+        vCycle(l + 1);
+        prolongate(coarse, level);
+        smooth(level, POST_SWEEPS);
+    }
+    
+    /* Gauss-Seidel sweeps of 8x - neighbors = b. Fixed cells are skipped. */
+    private static void smooth(Level level, int sweeps) {
+        boolean[] fixed = level.fixed;
+        double[] x = level.x;
+        double[] b = level.b;
+        for (int s = 0; s < sweeps; s++) {
+            for (int y = 0; y < level.height; y++) {
+                for (int i = y * level.width, end = i + level.width; i < end; i++) {
+                    if (!fixed[i]) {
+                        x[i] = (b[i] + neighborSum(level, x, i)) / 8;
+                    }
+                }
+            }
+        }
+    }
+    
+    /* Compute b - (8x - neighbors) into r and return its largest magnitude.
+    * Fixed cells have no residual.
+    */
+    private static double residual(Level level) {
+        double[] x = level.x;
+        double max = 0;
+        for (int i = 0; i < x.length; i++) {
+            double r = level.fixed[i] ? 0
+                    : level.b[i] + neighborSum(level, x, i) - 8 * x[i];
+            level.r[i] = r;
+            max = Math.max(max, Math.abs(r));
+        }
+        return max;
+    }
+    
+    /* Sum the residuals of each 2x2 block into the coarse right-hand side. */
+    private static void restrict(Level fine, Level coarse) {
+        Arrays.fill(coarse.b, 0);
+        for (int y = 0; y < fine.height; y++) {
+            int row = (y / 2) * coarse.width;
+            for (int x = 0; x < fine.width; x++) {
+                coarse.b[row + x / 2] += fine.r[y * fine.width + x];
+            }
+        }
+    }
+    
+    /* Add the bilinearly interpolated coarse correction to the fine cells
+    * that are not fixed. Coarse cells outside the grid are 0.
+    */
+    private static void prolongate(Level coarse, Level fine) {
+        for (int y = 0; y < fine.height; y++) {
+            int cy = y / 2;
+            int ny = (y & 1) == 0 ? cy - 1 : cy + 1;
+            for (int x = 0; x < fine.width; x++) {
+                int i = y * fine.width + x;
+                if (fine.fixed[i]) {
+                    continue;
+                }
+                int cx = x / 2;
+                int nx = (x & 1) == 0 ? cx - 1 : cx + 1;
+                fine.x[i] += (9 * coarse.get(cx, cy) + 3 * coarse.get(nx, cy)
+                        + 3 * coarse.get(cx, ny) + coarse.get(nx, ny)) / 16;
+            }
+        }
+    }
+    
+    /* Sum of the eight neighbors of cell i. Neighbors outside the grid
+    * contribute nothing.
+    */
+    private static double neighborSum(Level level, double[] v, int i) {
+        int w = level.width;
+        int x = i % w;
+        int y = i / w;
+        boolean left = x > 0;
+        boolean right = x < w - 1;
+        double sum = 0;
+        if (y > 0) {
+            int up = i - w;
+            sum += v[up];
+            if (left) {
+                sum += v[up - 1];
+            }
+            if (right) {
+                sum += v[up + 1];
+            }
+        }
+        if (y < level.height - 1) {
+            int down = i + w;
+            sum += v[down];
+            if (left) {
+                sum += v[down - 1];
+            }
+            if (right) {
+                sum += v[down + 1];
+            }
+        }
+        if (left) {
+            sum += v[i - 1];
+        }
+        if (right) {
+            sum += v[i + 1];
+        }
+        return sum;
+    }
+    
+    // One level of the grid hierarchy.
+    private static class Level {
+    
+        final int width;
+        final int height;
+        final double[] x;
+        final double[] b;
+        final double[] r;
+        final boolean[] fixed;
+        
+        Level(int width, int height) {
+            this.width = width;
+            this.height = height;
+            x = new double[width * height];
+            b = new double[width * height];
+            r = new double[width * height];
+            fixed = new boolean[width * height];
+        }
+        
+        // The value of a cell, or 0 outside the grid.
+        double get(int cx, int cy) {
+            if (cx < 0 || cy < 0 || cx >= width || cy >= height) {
+                return 0;
+            }
+            return x[cy * width + cx];
+        }
+    }
+}
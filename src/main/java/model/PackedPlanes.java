@@ -0,0 +1,201 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+* Planes stored as doubles with the red, green and blue values of each cell
+* interleaved in a single array. Neighbors are added in the same order as
+* in DoublePlanes, so both layouts produce identical results.
+* @author Graf
+*
+*/
+class PackedPlanes extends Planes {
+    
+    // Constants.
+    static final int CHANNELS = 3;
+    
+    // Instance variables.
+    private double[] curr;
+    private double[] next;
+    private final double keep;
+    private final double share;
+    
+    /**
+    * Constructor.
+    * @param width The width of the simulation area.
+    * @param height The height of the simulation area.
+    * @param diffPercent The amount of color a cell diffuses per step.
+    * @throws IllegalArgumentException If the interleaved values do not fit
+    * in one array.
+    */
+    PackedPlanes(int width, int height, double diffPercent) {
+        super(width, height);
+        long values = (long)width * height * CHANNELS;
+        if (values > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(
+                    "A %dx%d simulation has more than %d interleaved values.",
+                    width, height, Integer.MAX_VALUE));
+        }
+        curr = new double[(int)values];
+        next = new double[(int)values];
+        keep = 1 - diffPercent;
+        share = diffPercent / 8;
+    }
+    
+    @Override
+    void stencilRows(int startRow, int endRow) {
+        for (int y = startRow; y < endRow; y++) {
+            
+            // The top and bottom rows are entirely border cells.
+            if (y == 0 || y == height - 1) {
+                for (int x = 0; x < width; x++) {
+                    diffuseEdgeCell(x, y);
+                }
+                continue;
+            }
+            
+            diffuseEdgeCell(0, y);
+            diffuseInteriorRow(y * width);
+            if (width > 1) {
+                diffuseEdgeCell(width - 1, y);
+            }
+        }
+    }
+    
+    // Diffuse every interior cell in a row, all three channels at once.
+    private void diffuseInteriorRow(int rowStart) {
+        
+        double[] curr = this.curr;
+        double[] next = this.next;
+        int stride = width * CHANNELS;
+        int end = rowStart + width - 1;
+        
+        for (int idx = rowStart + 1; idx < end; idx++) {
+            int c = idx * CHANNELS;
+            int prevRow = c - stride;
+            int nextRow = c + stride;
+            for (int ch = 0; ch < CHANNELS; ch++) {
+                double n = curr[c + ch] * keep;
+                n += curr[c - CHANNELS + ch] * share;
+                n += curr[prevRow - CHANNELS + ch] * share;
+                n += curr[nextRow - CHANNELS + ch] * share;
+                n += curr[c + CHANNELS + ch] * share;
+                n += curr[prevRow + CHANNELS + ch] * share;
+                n += curr[nextRow + CHANNELS + ch] * share;
+                n += curr[prevRow + ch] * share;
+                n += curr[nextRow + ch] * share;
+                next[c + ch] = n;
+            }
+        }
+    }
+    
+    /* Sets the color value of a cell on the border of the simulation based
+    * on the color values of its neighbors. Neighbors outside the simulation
+    * area contribute nothing.
+    */
+    private void diffuseEdgeCell(int x, int y) {
+        
+        int idx = y * width + x;
+        int c = idx * CHANNELS;
+        int stride = width * CHANNELS;
+        
+        for (int ch = 0; ch < CHANNELS; ch++) {
+            int i = c + ch;
+            double n = curr[i] * keep;
+            
+            // Left neighbors.
+            if (x > 0) {
+                n += curr[i - CHANNELS] * share;
+                if (y > 0) {
+                    n += curr[i - stride - CHANNELS] * share;
+                }
+                if (y < height - 1) {
+                    n += curr[i + stride - CHANNELS] * share;
+                }
+            }
+            
+            // Right neighbors.
+            if (x < width - 1) {
+                n += curr[i + CHANNELS] * share;
+                if (y > 0) {
+                    n += curr[i - stride + CHANNELS] * share;
+                }
+                if (y < height - 1) {
+                    n += curr[i + stride + CHANNELS] * share;
+                }
+            }
+            
+            // Top and bottom neighbors.
+            if (y > 0) {
+                n += curr[i - stride] * share;
+            }
+            if (y < height - 1) {
+                n += curr[i + stride] * share;
+            }
+            next[i] = n;
+        }
+    }
+    
+    @Override
+    void copyToNext(long start, long end) {
+        int from = (int)start * CHANNELS;
+        System.arraycopy(curr, from, next, from, (int)(end - start) * CHANNELS);
+    }
+    
+    @Override
+    double maxChange(long start, long end) {
+        double change = 0;
+        for (int i = (int)start * CHANNELS; i < end * CHANNELS; i++) {
+            change = Math.max(change, Math.abs(next[i] - curr[i]));
+        }
+        return change;
+    }
+    
+    @Override
+    long getBytes() {
+        return 2L * curr.length * Double.BYTES;
+    }
+    
+    @Override
+    void swap() {
+        double[] temp = curr;
+        curr = next;
+        next = temp;
+    }
+    
+    @Override
+    void clear() {
+        Arrays.fill(curr, 0);
+    }
+    
+    @Override
+    void set(long index, double red, double green, double blue) {
+        int c = (int)index * CHANNELS;
+        curr[c] = red;
+        curr[c + 1] = green;
+        curr[c + 2] = blue;
+    }
+    
+    @Override
+    void toArgb(int[] argb) {
+        int cells = width * height;
+        for (int i = 0, c = 0; i < cells; i++, c += CHANNELS) {
+            argb[i] = argb(curr[c], curr[c + 1], curr[c + 2]);
+        }
+    }
+    
+    @Override
+    double getRed(long index) {
+        return curr[(int)index * CHANNELS];
+    }
+    
+    @Override
+    double getGreen(long index) {
+        return curr[(int)index * CHANNELS + 1];
+    }
+    
+    @Override
+    double getBlue(long index) {
+        return curr[(int)index * CHANNELS + 2];
+    }
+}
@@ -0,0 +1,177 @@
+package model;
+
+/**
+* Storage for the current and next color planes of a simulation, along
+* with the stencil that diffuses them. Each subclass stores the planes in a
+* different number format and does the stencil math in that format. Cells
+* are indexed with longs because MappedPlanes may hold more cells than an
+* int can index; planes on the heap never do.
+* @author Graf
+*
+*/
+abstract class Planes {
+    
+    // Instance variables.
+    protected final int width;
+    protected final int height;
+    
+    /**
+    * Constructor.
+    * @param width The width of the simulation area.
+    * @param height The height of the simulation area.
+    */
+    protected Planes(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+    
+    /**
+    * Diffuse every cell in the rows [startRow, endRow) from the current
+    * planes into the next planes. Cells only write their own cell of the
+    * next planes, so disjoint bands may run concurrently. The stencil runs
+    * over every cell and the emitters are stamped back afterwards.
+    * @param startRow The first row to diffuse.
+    * @param endRow One past the last row to diffuse.
+    * @param emitters The cells whose color is constant, already indexed.
+    */
+    void diffuseRows(int startRow, int endRow, EmitterMask emitters) {
+        stencilRows(startRow, endRow);
+        restamp(emitters, (long)startRow * width, (long)endRow * width);
+    }
+    
+    /**
+    * Get ready for a step. Called on one thread before any band of the
+    * step is diffused.
+    */
+    void prepareStep() {
+    }
+    
+    /**
+    * Apply the stencil to every cell in the rows [startRow, endRow) as if
+    * there were no emitters.
+    * @param startRow The first row to diffuse.
+    * @param endRow One past the last row to diffuse.
+    */
+    abstract void stencilRows(int startRow, int endRow);
+    
+    /**
+    * Copy the emitters among the cells [start, end) from the current planes
+    * into the next planes.
+    * @param emitters The cells whose color is constant, already indexed.
+    * @param start The first cell to restamp.
+    * @param end One past the last cell to restamp.
+    */
+    void restamp(EmitterMask emitters, long start, long end) {
+        int count = emitters.getSpanCount();
+        for (int k = emitters.firstSpanAfter(start); k < count; k++) {
+            long spanStart = emitters.getSpanStart(k);
+            if (spanStart >= end) {
+                break;
+            }
+            copyToNext(Math.max(start, spanStart),
+                    Math.min(end, emitters.getSpanEnd(k)));
+        }
+    }
+    
+    /**
+    * Copy the cells [start, end) from the current planes into the next
+    * planes.
+    * @param start The first cell to copy.
+    * @param end One past the last cell to copy.
+    */
+    abstract void copyToNext(long start, long end);
+    
+    /**
+    * Diffuse the rows [startRow, endRow) like diffuseRows and measure how
+    * much they changed. Each row is measured right after it is diffused,
+    * while it is still in cache.
+    * @param startRow The first row to diffuse.
+    * @param endRow One past the last row to diffuse.
+    * @param emitters The cells whose color is constant, already indexed.
+    * @return The largest change of any channel of any cell.
+    */
+    double diffuseRowsMeasured(int startRow, int endRow,
+            EmitterMask emitters) {
+        double change = 0;
+        for (int y = startRow; y < endRow; y++) {
+            diffuseRows(y, y + 1, emitters);
+            change = Math.max(change,
+                    maxChange((long)y * width, (long)(y + 1) * width));
+        }
+        return change;
+    }
+    
+    /**
+    * Measure the largest difference between the current and next planes.
+    * @param start The first cell to compare.
+    * @param end One past the last cell to compare.
+    * @return The largest change of any channel of the cells, between 0
+    * and 1.
+    */
+    abstract double maxChange(long start, long end);
+    
+    /**
+    * Getter for the memory holding the color values.
+    * @return The number of bytes in the current and next planes together,
+    * including any padding.
+    */
+    abstract long getBytes();
+    
+    /**
+    * Swap the current and next planes.
+    */
+    abstract void swap();
+    
+    /**
+    * Set all current color values to 0.
+    */
+    abstract void clear();
+    
+    /**
+    * Set the current color of a cell.
+    * @param index The index of the cell.
+    * @param red The red value, between 0 and 1.
+    * @param green The green value, between 0 and 1.
+    * @param blue The blue value, between 0 and 1.
+    */
+    abstract void set(long index, double red, double green, double blue);
+    
+    /**
+    * Convert the current planes into opaque ARGB pixels, one int per cell.
+    * @param argb Destination array with at least width * height elements.
+    */
+    abstract void toArgb(int[] argb);
+    
+    /**
+    * Pack a color into an opaque ARGB pixel.
+    * @param red The red value, between 0 and 1.
+    * @param green The green value, between 0 and 1.
+    * @param blue The blue value, between 0 and 1.
+    * @return The pixel.
+    */
+    static int argb(double red, double green, double blue) {
+        return 0xFF000000 | ((int)(red * 255) << 16)
+                | ((int)(green * 255) << 8) | (int)(blue * 255);
+    }
+    
+    /**
+    * Getter for the current red value of a cell.
+    * @param index The index of the cell.
+    * @return The red value, between 0 and 1.
+    */
+    abstract double getRed(long index);
+    
+    /**
+    * Getter for the current green value of a cell.
+    * @param index The index of the cell.
+    * @return The green value, between 0 and 1.
+    */
+    abstract double getGreen(long index);
+    
+    /**
+    * Getter for the current blue value of a cell.
+    * @param index The index of the cell.
+    * @return The blue value, between 0 and 1.
+    */
+    abstract double getBlue(long index);
+}
@@ -0,0 +1,29 @@
+package model;
+
+/**
+* Labels for the number formats a DataArray can store its color values in.
+* <p>
+* DOUBLE stores each channel as a 64-bit double and is the reference
+* format. FLOAT stores each channel as a 32-bit float and does the stencil
+* math in single precision. FIXED16 stores each channel as an unsigned
+* 16-bit fraction of 1.0 and does the stencil math in integer arithmetic.
+* @author Graf
+*
+*/
+public enum Precision {
+    DOUBLE(8), FLOAT(4), FIXED16(2);
+    
+    private final int bytesPerChannel;
+    
+    private Precision(int bytesPerChannel) {
+        this.bytesPerChannel = bytesPerChannel;
+    }
+    
+    /**
+    * Getter for the size of one stored color channel.
+    * @return The number of bytes used to store one channel of one cell.
+    */
+    public int getBytesPerChannel() {
+        return bytesPerChannel;
+    }
+}
@@ -0,0 +1,156 @@
+package model;
+
+/**
+* Measures how far a simulation stored in a reduced precision drifts from
+* the DOUBLE reference. Running this class prints a report for every
+* precision.
+* @author Graf
+*
+*/
+public class PrecisionReport {
+    
+    // Constants.
+    public static final int DEFAULT_SIZE = 256;
+    public static final int DEFAULT_STEPS = 1000;
+    public static final double DEFAULT_DIFFUSE_PERCENT = .99;
+    
+    // Instance variables.
+    private Precision precision;
+    private double bytesPerCell;
+    private int steps;
+    private double maxError;
+    private double rmsError;
+    
+    // Use compare or run to create reports.
+    private PrecisionReport(Precision precision, double bytesPerCell,
+            int steps, double maxError, double rmsError) {
+        this.precision = precision;
+        this.bytesPerCell = bytesPerCell;
+        this.steps = steps;
+        this.maxError = maxError;
+        this.rmsError = rmsError;
+    }
+    
+    /**
+    * Compare the current color values of two simulations of the same size.
+    * @param reference The simulation treated as exact.
+    * @param candidate The simulation being measured.
+    * @param steps The number of steps both simulations have run.
+    * @return The errors of the candidate, over all cells and channels.
+    */
+    public static PrecisionReport compare(DataArray reference,
+            DataArray candidate, int steps) {
+        
+        int cells = reference.getWidth() * reference.getHeight();
+        double max = 0;
+        double sumSquares = 0;
+        for (int i = 0; i < cells; i++) {
+            double[] errors = {
+                reference.getRed(i) - candidate.getRed(i),
+                reference.getGreen(i) - candidate.getGreen(i),
+                reference.getBlue(i) - candidate.getBlue(i)
+            };
+            for (double e : errors) {
+                max = Math.max(max, Math.abs(e));
+                sumSquares += e * e;
+            }
+        }
+        return new PrecisionReport(candidate.getPrecision(),
+                candidate.getBytesPerCell(), steps, max,
+                Math.sqrt(sumSquares / (cells * 3)));
+    }
+    
+    /**
+    * Run the same scene in DOUBLE and in the given precision and compare
+    * the results.
+    * @param precision The precision to measure.
+    * @param size The width and height of the simulation area.
+    * @param diffPercent The amount of color a cell diffuses per step.
+    * @param steps The number of steps to run.
+    * @return The errors of the given precision after the last step.
+    */
+    public static PrecisionReport run(Precision precision, int size,
+            double diffPercent, int steps) {
+        
+        DataArray reference = new DataArray(size, size, diffPercent, 1,
+                Backend.SCALAR, Precision.DOUBLE);
+        DataArray candidate = new DataArray(size, size, diffPercent, 1,
+                Backend.SCALAR, precision);
+        
+        for (DataArray da : new DataArray[] { reference, candidate }) {
+            drawScene(da, size);
+            for (int i = 0; i < steps; i++) {
+                da.diffuse();
+                da.swapArrays();
+            }
+        }
+        return compare(reference, candidate, steps);
+    }
+    
+    // Color blobs in the corners and an emitter in the middle.
+    private static void drawScene(DataArray da, int size) {
+        int brush = Math.max(2, size / 8);
+        da.draw(size / 4, size / 4, brush, .86, .08, .24, false);
+        da.draw(3 * size / 4, size / 4, brush, 1, .84, 0, false);
+        da.draw(size / 4, 3 * size / 4, brush, .12, .56, 1, false);
+        da.draw(size / 2, size / 2, Math.max(2, brush / 2), 1, 1, 1, true);
+    }
+    
+    /**
+    * Getter for the precision measured.
+    * @return The candidate's precision.
+    */
+    public Precision getPrecision() {
+        return precision;
+    }
+    
+    /**
+    * Getter for the memory one cell of the candidate takes.
+    * @return The candidate's bytes per cell.
+    */
+    public double getBytesPerCell() {
+        return bytesPerCell;
+    }
+    
+    /**
+    * Getter for the number of steps run.
+    * @return The number of steps.
+    */
+    public int getSteps() {
+        return steps;
+    }
+    
+    /**
+    * Getter for the largest error of any channel of any cell.
+    * @return The maximum absolute error.
+    */
+    public double getMaxError() {
+        return maxError;
+    }
+    
+    /**
+    * Getter for the root mean square error over all channels of all cells.
+    * @return The RMS error.
+    */
+    public double getRmsError() {
+        return rmsError;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%-8s %5.2f bytes/cell %8d steps  max %.3e  rms %.3e",
+                precision, bytesPerCell, steps, maxError, rmsError);
+    }
+    
+    /**
+    * Print a report for every precision.
+    * @param args Optional size of the simulation area and number of steps.
+    */
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_STEPS;
+        for (Precision p : Precision.values()) {
+            System.out.println(run(p, size, DEFAULT_DIFFUSE_PERCENT, steps));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package model;
+
+/**
+* A source whose brightness rises and falls sinusoidally. The color is at
+* full brightness when the source is added and dims to 1 - depth of it
+* half a period later.
+* @author Graf
+*
+*/
+public class PulseSource extends Source {
+    
+    // Instance variables.
+    private final double red;
+    private final double green;
+    private final double blue;
+    private final double omega;
+    private final double depth;
+    
+    /**
+    * Constructor.
+    * @param red The red value at full brightness, between 0 and 1.
+    * @param green The green value at full brightness, between 0 and 1.
+    * @param blue The blue value at full brightness, between 0 and 1.
+    * @param period The number of steps in one pulse.
+    * @param depth The fraction of the brightness lost at the dimmest
+    * point, between 0 and 1.
+    */
+    public PulseSource(double red, double green, double blue, double period,
+            double depth) {
+        if (!(period > 0)) {
+            throw new IllegalArgumentException(
+                    "Period must be a positive number of steps.");
+        }
+        this.red = clamp(red);
+        this.green = clamp(green);
+        this.blue = clamp(blue);
+        omega = 2 * Math.PI / period;
+        this.depth = clamp(depth);
+    }
+    
+    @Override
+    public void color(long age, double[] rgb) {
+        double brightness = 1 - depth * (1 - Math.cos(omega * age)) / 2;
+        rgb[0] = red * brightness;
+        rgb[1] = green * brightness;
+        rgb[2] = blue * brightness;
+    }
+}
@@ -0,0 +1,245 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+* Discrete sine transform (DST-I) of a fixed length, computed with an FFT
+* of the odd extension of the input, which has length 2 (n + 1). When that
+* is a power of two it is transformed directly; other lengths use
+* Bluestein's algorithm, which costs two FFTs of at least twice the size.
+* The odd extension is real, so two inputs are transformed at once as the
+* real and imaginary parts of one complex FFT.
+* <p>
+* The DST-I diagonalizes the diffusion stencil on a grid whose outside
+* cells are always 0, which is exactly how DataArray treats its borders.
+* Instances keep scratch buffers, so they must not be shared between
+* threads.
+* @author Graf
+*
+*/
+class SineTransform {
+    
+    // Constants.
+    static final int SHORT_STAGE = 8;
+    
+    // Instance variables.
+    private final int n;
+    private final int m;
+    private final int fftSize;
+    private final boolean direct;
+    private final double[] chirpRe;
+    private final double[] chirpIm;
+    private final double[] filterRe;
+    private final double[] filterIm;
+    private final double[] workRe;
+    private final double[] workIm;
+    private final double[] twiddleRe;
+    private final double[] twiddleIm;
+    private final int[] swaps;
+    
+    /**
+    * Constructor.
+    * @param n The length of the vectors to transform.
+    */
+    SineTransform(int n) {
+        this.n = n;
+        
+        // The DST is read off the FFT of the odd extension of the input.
+        m = 2 * (n + 1);
+        direct = Integer.bitCount(m) == 1;
+        fftSize = direct ? m : Integer.highestOneBit(2 * m - 1) << 1;
+        
+        // Forward twiddles exp(-i pi j / half) of the stage with half
+        // butterflies per block start at half - 1.
+        twiddleRe = new double[Math.max(1, fftSize - 1)];
+        twiddleIm = new double[Math.max(1, fftSize - 1)];
+        for (int half = 1; half < fftSize; half <<= 1) {
+            for (int j = 0; j < half; j++) {
+                twiddleRe[half - 1 + j] = Math.cos(Math.PI * j / half);
+                twiddleIm[half - 1 + j] = -Math.sin(Math.PI * j / half);
+            }
+        }
+        
+        // Index pairs swapped into bit-reversed order.
+        int[] pairs = new int[fftSize];
+        int count = 0;
+        for (int i = 1, j = 0; i < fftSize; i++) {
+            int bit = fftSize >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                pairs[count++] = i;
+                pairs[count++] = j;
+            }
+        }
+        swaps = Arrays.copyOf(pairs, count);
+        workRe = new double[fftSize];
+        workIm = new double[fftSize];
+        if (direct) {
+            chirpRe = null;
+            chirpIm = null;
+            filterRe = null;
+            filterIm = null;
+            return;
+        }
+        
+        // Bluestein chirp exp(-i pi j^2 / m) and its transformed conjugate.
+        chirpRe = new double[m];
+        chirpIm = new double[m];
+        for (int j = 0; j < m; j++) {
+            double angle = Math.PI * ((long)j * j % (2L * m)) / m;
+            chirpRe[j] = Math.cos(angle);
+            chirpIm[j] = -Math.sin(angle);
+        }
+        filterRe = new double[fftSize];
+        filterIm = new double[fftSize];
+        filterRe[0] = chirpRe[0];
+        filterIm[0] = -chirpIm[0];
+        for (int j = 1; j < m; j++) {
+            filterRe[j] = chirpRe[j];
+            filterIm[j] = -chirpIm[j];
+            filterRe[fftSize - j] = chirpRe[j];
+            filterIm[fftSize - j] = -chirpIm[j];
+        }
+        fft(filterRe, filterIm, false);
+    }
+    
+    /**
+    * Getter for the work of one call to transform, for cost estimates.
+    * @return The number of butterflies and complex multiplications.
+    */
+    long getOperations() {
+        long butterflies = (long)fftSize / 2
+                * Integer.numberOfTrailingZeros(fftSize);
+        return direct ? butterflies : 2 * butterflies + 2L * fftSize;
+    }
+    
+    /**
+    * Compute X[k] = sum over j of x[j] sin(pi (j + 1) (k + 1) / (n + 1)).
+    * Applying the transform twice multiplies by (n + 1) / 2.
+    * @param data The input, replaced by its transform. Elements are read
+    * and written at offset, offset + stride, and so on.
+    * @param offset The index of the first element.
+    * @param stride The distance between elements.
+    */
+    void transform(double[] data, int offset, int stride) {
+        transform(data, offset, null, 0, stride);
+    }
+    
+    /**
+    * Transform two vectors with one FFT.
+    * @param a The first input, replaced by its transform.
+    * @param offsetA The index of the first element of a.
+    * @param b The second input, replaced by its transform, or null.
+    * @param offsetB The index of the first element of b.
+    * @param stride The distance between elements of both.
+    */
+    void transform(double[] a, int offsetA, double[] b, int offsetB,
+            int stride) {
+        
+        // Odd extensions of a and b as the real and imaginary parts.
+        Arrays.fill(workRe, 0);
+        Arrays.fill(workIm, 0);
+        for (int j = 1; j <= n; j++) {
+            double re = a[offsetA + (j - 1) * stride];
+            double im = b != null ? b[offsetB + (j - 1) * stride] : 0;
+            workRe[j] = re;
+            workIm[j] = im;
+            workRe[m - j] = -re;
+            workIm[m - j] = -im;
+        }
+        
+        if (direct) {
+            fft(workRe, workIm, false);
+        } else {
+            
+            // Premultiply by the chirp and convolve with the filter.
+            for (int j = 1; j < m; j++) {
+                double re = workRe[j] * chirpRe[j] - workIm[j] * chirpIm[j];
+                double im = workRe[j] * chirpIm[j] + workIm[j] * chirpRe[j];
+                workRe[j] = re;
+                workIm[j] = im;
+            }
+            fft(workRe, workIm, false);
+            for (int k = 0; k < fftSize; k++) {
+                double re = workRe[k] * filterRe[k] - workIm[k] * filterIm[k];
+                double im = workRe[k] * filterIm[k] + workIm[k] * filterRe[k];
+                workRe[k] = re;
+                workIm[k] = im;
+            }
+            fft(workRe, workIm, true);
+            for (int k = 1; k <= n; k++) {
+                double re = workRe[k] / fftSize;
+                double im = workIm[k] / fftSize;
+                workRe[k] = re * chirpRe[k] - im * chirpIm[k];
+                workIm[k] = re * chirpIm[k] + im * chirpRe[k];
+            }
+        }
+        
+        // Y[k] = -2i A[k] + 2 B[k], so A[k] is -Im(Y[k]) / 2 and B[k] is
+        // Re(Y[k]) / 2.
+        for (int k = 1; k <= n; k++) {
+            a[offsetA + (k - 1) * stride] = -workIm[k] / 2;
+            if (b != null) {
+                b[offsetB + (k - 1) * stride] = workRe[k] / 2;
+            }
+        }
+    }
+    
+    /* In-place iterative radix-2 FFT of length fftSize. The inverse is not
+    * scaled. Twiddles come from a table, which is more accurate than
+    * building them by repeated multiplication, and each stage's twiddles
+    * are contiguous. Short stages run the butterflies of one twiddle at a
+    * time, long stages one block at a time.
+    */
+    private void fft(double[] re, double[] im, boolean inverse) {
+        int size = fftSize;
+        for (int k = 0; k < swaps.length; k += 2) {
+            int i = swaps[k];
+            int j = swaps[k + 1];
+            double t = re[i];
+            re[i] = re[j];
+            re[j] = t;
+            t = im[i];
+            im[i] = im[j];
+            im[j] = t;
+        }
+        double sign = inverse ? -1 : 1;
+        for (int half = 1; half < size; half <<= 1) {
+            int len = 2 * half;
+            int base = half - 1;
+            if (half < SHORT_STAGE) {
+                for (int j = 0; j < half; j++) {
+                    double uRe = twiddleRe[base + j];
+                    double uIm = sign * twiddleIm[base + j];
+                    for (int a = j; a < size; a += len) {
+                        int b = a + half;
+                        double vRe = re[b] * uRe - im[b] * uIm;
+                        double vIm = re[b] * uIm + im[b] * uRe;
+                        re[b] = re[a] - vRe;
+                        im[b] = im[a] - vIm;
+                        re[a] += vRe;
+                        im[a] += vIm;
+                    }
+                }
+                continue;
+            }
+            for (int i = 0; i < size; i += len) {
+                for (int j = 0; j < half; j++) {
+                    double uRe = twiddleRe[base + j];
+                    double uIm = sign * twiddleIm[base + j];
+                    int a = i + j;
+                    int b = a + half;
+                    double vRe = re[b] * uRe - im[b] * uIm;
+                    double vIm = re[b] * uIm + im[b] * uRe;
+                    re[b] = re[a] - vRe;
+                    im[b] = im[a] - vIm;
+                    re[a] += vRe;
+                    im[a] += vIm;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package model;
+
+/**
+* The color of a group of animated emitters as a function of time. A
+* source is evaluated once per group per step, so implementations must not
+* allocate.
+* @author Graf
+*
+*/
+public abstract class Source {
+    
+    /**
+    * Compute the color of the source.
+    * @param age The number of steps since the source was added to the
+    * simulation.
+    * @param rgb Destination for the red, green and blue values, each
+    * between 0 and 1.
+    */
+    public abstract void color(long age, double[] rgb);
+    
+    // Clamp a channel into [0, 1].
+    static double clamp(double value) {
+        return Math.max(0, Math.min(value, 1));
+    }
+}
@@ -0,0 +1,186 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+* The animated emitters of a simulation, stored as one record per group of
+* cells that share a source. Each step, every group's source is evaluated
+* once and its color written into the group's cells, so the cost per step
+* is one evaluation per group plus one store per cell. Every cell in a
+* group remembers the group and its position in it, so redrawing a cell
+* removes it in constant time.
+* @author Graf
+*
+*/
+class SourceTable {
+    
+    // Instance variables.
+    private final int width;
+    private final int height;
+    private final List<Group> groups = new ArrayList<>();
+    private int[] owner;
+    private int[] slot;
+    private final double[] rgb = new double[3];
+    private int cells;
+    
+    /**
+    * Constructor.
+    * @param width The width of the simulation area.
+    * @param height The height of the simulation area.
+    */
+    SourceTable(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+    
+    /**
+    * Add a group with no cells.
+    * @param source The source driving the group.
+    * @param time The current step of the simulation.
+    * @return The id of the group.
+    */
+    int add(Source source, long time) {
+        groups.add(new Group(source, time));
+        return groups.size() - 1;
+    }
+    
+    /**
+    * Getter for the number of groups.
+    * @return The number of groups ever added.
+    */
+    int getGroupCount() {
+        return groups.size();
+    }
+    
+    /**
+    * Getter for the number of cells in all groups.
+    * @return The number of animated emitters.
+    */
+    int getCellCount() {
+        return cells;
+    }
+    
+    /**
+    * Add a cell to a group. The cell must not be in any group.
+    * @param id The id of the group.
+    * @param index The index of the cell.
+    */
+    void put(int id, int index) {
+        
+        // The cell map is only allocated once a source is drawn.
+        if (owner == null) {
+            owner = new int[width * height];
+            slot = new int[width * height];
+        }
+        Group g = groups.get(id);
+        slot[index] = g.size;
+        owner[index] = id + 1;
+        g.add(index);
+        cells++;
+    }
+    
+    /**
+    * Remove a cell from the group holding it, if any.
+    * @param index The index of the cell.
+    */
+    void remove(int index) {
+        if (cells == 0 || owner[index] == 0) {
+            return;
+        }
+        
+        // Move the group's last cell into the removed cell's position.
+        Group g = groups.get(owner[index] - 1);
+        int last = g.cells[--g.size];
+        g.cells[slot[index]] = last;
+        slot[last] = slot[index];
+        owner[index] = 0;
+        cells--;
+    }
+    
+    /**
+    * Remove every cell from every group. The groups stay registered.
+    */
+    void clear() {
+        for (Group g : groups) {
+            for (int i = 0; i < g.size; i++) {
+                owner[g.cells[i]] = 0;
+            }
+            g.size = 0;
+        }
+        cells = 0;
+    }
+    
+    /**
+    * Write the color of every group's source at a step into its cells.
+    * @param planes The planes to write the current color of.
+    * @param time The current step of the simulation.
+    * @param activity The sparse tracking map to wake up, or null.
+    */
+    void apply(Planes planes, long time, ActivityMap activity) {
+        for (Group g : groups) {
+            if (g.size == 0) {
+                continue;
+            }
+            g.source.color(time - g.start, rgb);
+            for (int i = 0; i < g.size; i++) {
+                planes.set(g.cells[i], rgb[0], rgb[1], rgb[2]);
+            }
+            if (activity != null) {
+                activity.touch(g.minX, g.minY, g.maxX + 1, g.maxY + 1);
+            }
+        }
+    }
+    
+    /**
+    * Write the current color of one group's source into a cell.
+    * @param planes The planes to write the current color of.
+    * @param id The id of the group.
+    * @param index The index of the cell.
+    * @param time The current step of the simulation.
+    */
+    void applyTo(Planes planes, int id, int index, long time) {
+        Group g = groups.get(id);
+        g.source.color(time - g.start, rgb);
+        planes.set(index, rgb[0], rgb[1], rgb[2]);
+    }
+    
+    // One source and the cells it drives.
+    private class Group {
+    
+        final Source source;
+        final long start;
+        int[] cells = new int[8];
+        int size;
+        int minX;
+        int minY;
+        int maxX;
+        int maxY;
+        
+        Group(Source source, long start) {
+            this.source = source;
+            this.start = start;
+        }
+        
+        void add(int index) {
+            if (size == cells.length) {
+                cells = Arrays.copyOf(cells, size * 2);
+            }
+            cells[size++] = index;
+            
+            // The bounding box only grows, which at worst wakes extra tiles.
+            int x = index % width;
+            int y = index / width;
+            if (size == 1) {
+                minX = maxX = x;
+                minY = maxY = y;
+            } else {
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import model.Backend;
+import model.Boundary;
+import model.Checkpoint;
+import model.DataArray;
+import model.DecaySource;
+import model.Kernel;
+import model.Layout;
+import model.Precision;
+
+/**
+ * Responsible for testing the Checkpoint class.
+ * @author Graf
+ *
+ */
+public class CheckpointTests {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    // A small simulation with colors and emitters that has run a few steps.
+    private static DataArray scene(Precision precision) {
+        DataArray da = new DataArray(33, 21, .9, 1, Backend.SCALAR,
+                precision, Layout.PLANAR);
+        da.draw(6, 6, 4, 1, .5, .25, true);
+        da.draw(20, 10, 8, .3, 1, .7, false);
+        da.step(17);
+        return da;
+    }
+    
+    // Assert that two simulations hold exactly the same state.
+    private static void assertSameState(DataArray expected, DataArray actual) {
+        for (int i = 0; i < expected.getWidth() * expected.getHeight(); i++) {
+            assertEquals(expected.getRed(i), actual.getRed(i), 0);
+            assertEquals(expected.getGreen(i), actual.getGreen(i), 0);
+            assertEquals(expected.getBlue(i), actual.getBlue(i), 0);
+            assertEquals(expected.isEmitter(i), actual.isEmitter(i));
+        }
+    }
+    
+    @Test
+    public void roundTripIsExactForEveryPrecision() throws IOException {
+        for (Precision precision : Precision.values()) {
+            for (boolean compress : new boolean[] { false, true }) {
+                DataArray da = scene(precision);
+                File file = folder.newFile();
+                Checkpoint.capture(da).write(file, compress);
+                
+                Checkpoint cp = Checkpoint.read(file);
+                assertEquals(17, cp.getStep());
+                assertEquals(precision, cp.getPrecision());
+                DataArray restored = cp.restore(1);
+                assertEquals(17, restored.getStepCount());
+                assertSameState(da, restored);
+                
+                // The restored simulation continues identically.
+                da.step(5);
+                restored.step(5);
+                assertSameState(da, restored);
+            }
+        }
+    }
+    
+    @Test
+    public void asyncWriteUsesStateAtCapture() throws Exception {
+        DataArray da = scene(Precision.DOUBLE);
+        DataArray expected = Checkpoint.capture(da).restore(1);
+        File file = new File(folder.getRoot(), "async.ckpt");
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            Checkpoint cp = Checkpoint.capture(da);
+            da.step(50);
+            cp.writeAsync(file, true, writer).get();
+        } finally {
+            writer.shutdown();
+        }
+        assertSameState(expected, Checkpoint.read(file).restore(1));
+        assertFalse(new File(folder.getRoot(), "async.ckpt.tmp").exists());
+    }
+    
+    @Test
+    public void restoreContinuesTheStepCount() throws IOException {
+        DataArray da = new DataArray(20, 20, .9, 1);
+        da.draw(10, 10, 6, .5, .5, .5, false);
+        da.step(23);
+        File file = folder.newFile();
+        Checkpoint.capture(da).write(file, false);
+        DataArray restored = new DataArray(20, 20, .9, 1);
+        Checkpoint.read(file).restoreInto(restored);
+        assertEquals(23, restored.getStepCount());
+        assertSameState(da, restored);
+        
+        // A source added after the restore starts at the same step.
+        DecaySource decay = new DecaySource(1, .5, .25, 10);
+        for (DataArray sim : new DataArray[] { da, restored }) {
+            sim.drawSource(10, 10, 2, sim.addSource(decay));
+            sim.step(9);
+        }
+        assertEquals(32, restored.getStepCount());
+        double[] rgb = new double[3];
+        decay.color(9, rgb);
+        assertEquals(rgb[1], restored.getGreen(10 * 20 + 10), 0);
+        assertSameState(da, restored);
+    }
+    
+    @Test(expected = UnsupportedOperationException.class)
+    public void rejectsSources() {
+        DataArray da = new DataArray(20, 20, .9, 1);
+        da.drawSource(10, 10, 2, da.addSource(new DecaySource(1, .5, .25, 10)));
+        Checkpoint.capture(da);
+    }
+    
+    @Test
+    public void kernelAndBoundaryRoundTrip() throws IOException {
+        Kernel gaussian = new Kernel(Kernel.Shape.GAUSSIAN_5X5, .9, .6, .3);
+        Kernel box = new Kernel(Kernel.Shape.BOX, 3, .8, .8, .8);
+        Kernel anisotropic = new Kernel(3, 1, .5, .7, .9);
+        Boundary[] boundaries = { Boundary.PERIODIC, Boundary.FIXED,
+            Boundary.REFLECTING };
+        Kernel[] kernels = { gaussian, box, anisotropic };
+        for (int k = 0; k < kernels.length; k++) {
+            DataArray da = new DataArray(33, 21, kernels[k], boundaries[k], 1);
+            if (boundaries[k] == Boundary.FIXED) {
+                da.setBoundaryColor(.2, .4, .6);
+            }
+            da.draw(6, 6, 4, 1, .5, .25, true);
+            da.draw(30, 18, 8, .3, 1, .7, false);
+            da.step(7);
+            File file = folder.newFile();
+            Checkpoint.capture(da).write(file, k == 1);
+            
+            Checkpoint cp = Checkpoint.read(file);
+            assertEquals(kernels[k].getShape(), cp.getKernel().getShape());
+            assertEquals(boundaries[k], cp.getBoundary());
+            DataArray restored = cp.restore(1);
+            assertEquals(boundaries[k], restored.getBoundary());
+            assertSameState(da, restored);
+            da.step(9);
+            restored.step(9);
+            assertSameState(da, restored);
+        }
+    }
+    
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), new byte[64]);
+        Checkpoint.read(file);
+    }
+    
+    @Test
+    public void rejectsInvalidSizesBeforeAllocating() throws IOException {
+        File file = folder.newFile();
+        Checkpoint.capture(scene(Precision.DOUBLE)).write(file, false);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int[][] sizes = { { -33, 21 }, { 33, 0 }, { 65536, 65536 } };
+        for (int[] size : sizes) {
+            
+            // The width and height follow the magic number and version.
+            ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(12, size[0]).putInt(16, size[1]);
+            Files.write(file.toPath(), bytes);
+            try {
+                Checkpoint.read(file);
+                fail(size[0] + "x" + size[1] + " is not a valid size.");
+            } catch (IOException expected) {
+                assertTrue(expected.getMessage().contains("invalid size"));
+            }
+        }
+    }
+}
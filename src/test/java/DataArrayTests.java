@@ -1,9 +1,26 @@
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
-import javafx.scene.paint.Color;
+import model.Backend;
+import model.Boundary;
+import model.ConstantSource;
 import model.DataArray;
+import model.DecaySource;
+import model.Ensemble;
+import model.KeyframeSource;
+import model.Kernel;
+import model.Layout;
+import model.Precision;
+import model.PrecisionReport;
+import model.PulseSource;
+import model.Source;
 
 /**
  * Responsible for testing the DataArray class.
@@ -11,20 +28,817 @@ import model.DataArray;
  *
  */
 public class DataArrayTests {
-
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
     @Test
     public void basicHalfDiffusion() {
         int width = 4;
         int height = 4;
         double diff = .5;
         int brushSize = 1;
-        Color c = Color.WHITE;
         DataArray da = new DataArray(width, height, diff);
         for (int j = 0; j < height; j++) {
             for (int i = 0; i < width; i++) {
-                da.draw(i, j, brushSize, c, false);
+                da.draw(i, j, brushSize, 1, 1, 1, false);
             }
         }
     }
-
+    
+    @Test
+    public void parallelDiffusionMatchesSerial() {
+        int width = 37;
+        int height = 53;
+        double diff = .99;
+        DataArray serial = new DataArray(width, height, diff);
+        DataArray parallel = new DataArray(width, height, diff, 4);
+        for (DataArray da : new DataArray[] { serial, parallel }) {
+            da.draw(10, 10, 6, 1, 0, 0, true);
+            da.draw(25, 40, 8, .39, .58, .93, false);
+            da.draw(0, 52, 4, 1, 1, 0, false);
+        }
+        for (int step = 0; step < 50; step++) {
+            serial.diffuse();
+            serial.swapArrays();
+            parallel.diffuse();
+            parallel.swapArrays();
+        }
+        assertArrayEquals(serial.getCurrentRed(), parallel.getCurrentRed(), 0);
+        assertArrayEquals(serial.getCurrentGreen(), parallel.getCurrentGreen(), 0);
+        assertArrayEquals(serial.getCurrentBlue(), parallel.getCurrentBlue(), 0);
+    }
+    
+    @Test
+    public void diffusionMatchesReferenceStencil() {
+        int width = 9;
+        int height = 7;
+        double diff = .75;
+        DataArray da = new DataArray(width, height, diff);
+        da.draw(2, 2, 2, 1, 1, 1, false);
+        da.draw(8, 6, 2, 1, .65, 0, true);
+        da.draw(5, 4, 4, 0, .5, .5, false);
+        double[] red = da.getCurrentRed().clone();
+        boolean[] emitter = new boolean[width * height];
+        for (int y = 5; y < 7; y++) {
+            for (int x = 7; x < 9; x++) {
+                emitter[y * width + x] = true;
+            }
+        }
+        for (int step = 0; step < 20; step++) {
+            red = referenceStep(red, emitter, width, height, diff);
+            da.diffuse();
+            da.swapArrays();
+        }
+        assertArrayEquals(red, da.getCurrentRed(), 0);
+    }
+    
+    @Test
+    public void editedEmitterSpansMatchReferenceStencil() {
+        int width = 70;
+        int height = 12;
+        double diff = .8;
+        DataArray da = new DataArray(width, height, diff);
+        DataArray blocked = new DataArray(width, height, diff);
+        blocked.setTemporalBlocking(4);
+        double[] red = new double[width * height];
+        boolean[] emitter = new boolean[width * height];
+        
+        // One run crosses a row and a 64-bit word, the other sits alone.
+        for (int i = 130; i < 150; i++) {
+            red[i] = 1;
+            emitter[i] = true;
+        }
+        red[500] = .5;
+        emitter[500] = true;
+        for (int round = 0; round < 3; round++) {
+            for (DataArray d : new DataArray[] { da, blocked }) {
+                for (int i = 0; i < red.length; i++) {
+                    if (emitter[i]) {
+                        d.setCell(i, red[i], 0, 0, true);
+                    } else if (d.isEmitter(i)) {
+                        d.setCell(i, red[i], 0, 0, false);
+                    }
+                }
+                d.step(12);
+            }
+            for (int step = 0; step < 12; step++) {
+                red = referenceStep(red, emitter, width, height, diff);
+            }
+            assertArrayEquals(red, da.getCurrentRed(), 0);
+            assertArrayEquals(red, blocked.getCurrentRed(), 0);
+            
+            // Drop the middle of the long run and then everything.
+            for (int i = 138; i < 142; i++) {
+                emitter[i] = false;
+            }
+            if (round == 1) {
+                Arrays.fill(emitter, false);
+            }
+        }
+        da.draw(30, 6, 5, 1, 1, 1, true);
+        da.clear();
+        for (int i = 0; i < width * height; i++) {
+            assertFalse(da.isEmitter(i));
+        }
+    }
+    
+    @Test
+    public void animatedSourcesMatchScriptedCells() {
+        int width = 40;
+        int height = 30;
+        DataArray animated = new DataArray(width, height, .9, 2);
+        DataArray scripted = new DataArray(width, height, .9, 2);
+        Source pulse = new PulseSource(1, .5, 0, 16, .8);
+        Source track = new KeyframeSource(new long[] { 0, 10, 20 },
+                new double[] { 0, 0, 0, 1, 1, 1, 0, 0, 1 }, true);
+        int a = animated.addSource(pulse);
+        animated.step(5);
+        scripted.step(5);
+        int b = animated.addSource(track);
+        animated.drawSource(10, 10, 4, a);
+        animated.drawSource(30, 20, 2, b);
+        
+        double[] rgb = new double[3];
+        for (long t = 5; t < 60; t++) {
+            pulse.color(t, rgb);
+            for (int y = 8; y < 12; y++) {
+                for (int x = 8; x < 12; x++) {
+                    scripted.setCell(y * width + x, rgb[0], rgb[1], rgb[2], true);
+                }
+            }
+            track.color(t - 5, rgb);
+            for (int y = 19; y < 21; y++) {
+                for (int x = 29; x < 31; x++) {
+                    scripted.setCell(y * width + x, rgb[0], rgb[1], rgb[2], true);
+                }
+            }
+            assertArrayEquals(scripted.getCurrentBlue(), animated.getCurrentBlue(), 0);
+            scripted.step(1);
+            animated.step(1);
+        }
+        assertEquals(60, animated.getStepCount());
+        
+        // Drawing over an animated emitter freezes it.
+        animated.draw(10, 10, 4, 0, 1, 0, true);
+        animated.step(3);
+        assertEquals(1, animated.getCurrentGreen()[9 * width + 9], 0);
+        assertEquals(0, animated.getCurrentRed()[9 * width + 9], 0);
+    }
+    
+    @Test
+    public void redrawingSourceCellsMovesThemBetweenGroups() {
+        int width = 20;
+        DataArray da = new DataArray(width, 20, .9);
+        int red = da.addSource(new ConstantSource(1, 0, 0));
+        int blue = da.addSource(new ConstantSource(0, 0, 1));
+        da.drawSource(8, 8, 6, red);
+        assertEquals(36, da.getSourceCellCount());
+        da.drawSource(10, 10, 4, blue);
+        assertEquals(36 + 16 - 9, da.getSourceCellCount());
+        da.draw(6, 6, 2, 0, 1, 0, true);
+        assertEquals(36 + 16 - 9 - 4, da.getSourceCellCount());
+        
+        da.step(2);
+        assertEquals(1, da.getRed(5 * width + 7), 0);
+        assertEquals(1, da.getBlue(9 * width + 9), 0);
+        assertEquals(0, da.getRed(9 * width + 9), 0);
+        assertEquals(1, da.getGreen(5 * width + 5), 0);
+        assertEquals(0, da.getRed(5 * width + 5), 0);
+        
+        da.clear();
+        assertEquals(0, da.getSourceCellCount());
+        da.drawSource(8, 8, 2, red);
+        assertEquals(4, da.getSourceCellCount());
+    }
+    
+    @Test
+    public void sourcesFollowTheirCurves() {
+        double[] rgb = new double[3];
+        new DecaySource(1, .5, .25, 10).color(20, rgb);
+        assertArrayEquals(new double[] { .25, .125, .0625 }, rgb, 1e-12);
+        new PulseSource(1, 1, 1, 8, .5).color(4, rgb);
+        assertEquals(.5, rgb[0], 1e-12);
+        KeyframeSource track = new KeyframeSource(new long[] { 10, 20 },
+                new double[] { 0, 0, 0, 1, .5, 0 }, false);
+        track.color(0, rgb);
+        assertEquals(0, rgb[0], 0);
+        track.color(15, rgb);
+        assertArrayEquals(new double[] { .5, .25, 0 }, rgb, 1e-12);
+        track.color(100, rgb);
+        assertArrayEquals(new double[] { 1, .5, 0 }, rgb, 0);
+    }
+    
+    @Test
+    public void eightNeighborKernelMatchesDefaultPerChannel() {
+        int width = 31;
+        int height = 19;
+        Kernel kernel = new Kernel(Kernel.Shape.EIGHT_NEIGHBOR, .9, .5, .2);
+        DataArray custom = new DataArray(width, height, kernel, 3);
+        DataArray[] plain = { new DataArray(width, height, .9),
+                new DataArray(width, height, .5), new DataArray(width, height, .2) };
+        for (DataArray da : new DataArray[] { custom, plain[0], plain[1], plain[2] }) {
+            da.draw(8, 8, 6, 1, .5, .25, true);
+            da.draw(25, 12, 8, .3, 1, .7, false);
+            da.step(40);
+        }
+        for (int i = 0; i < width * height; i++) {
+            assertEquals(plain[0].getRed(i), custom.getRed(i), 0);
+            assertEquals(plain[1].getGreen(i), custom.getGreen(i), 0);
+            assertEquals(plain[2].getBlue(i), custom.getBlue(i), 0);
+        }
+    }
+    
+    @Test
+    public void customKernelsMatchReferenceStencil() {
+        int width = 23;
+        int height = 17;
+        Kernel[] kernels = { new Kernel(Kernel.Shape.FOUR_NEIGHBOR, .8, .8, .8),
+                new Kernel(Kernel.Shape.GAUSSIAN_3X3, .6, .6, .6),
+                new Kernel(Kernel.Shape.GAUSSIAN_5X5, 1, 1, 1),
+                new Kernel(3, 1, .7, .7, .7),
+                new Kernel(Kernel.Shape.BOX, 6, .9, .9, .9) };
+        int[][] offsets = { { -1, 0, 1, 0, 0, -1, 0, 1 }, null, null,
+                { -1, 0, 1, 0, 0, -1, 0, 1 }, null };
+        double[][] weights = { { .25, .25, .25, .25 }, null, null,
+                { .375, .375, .125, .125 }, null };
+        offsets[1] = square(1);
+        weights[1] = binomial(new double[] { 1, 2, 1 });
+        offsets[2] = square(2);
+        weights[2] = binomial(new double[] { 1, 4, 6, 4, 1 });
+        offsets[4] = square(6);
+        weights[4] = binomial(new double[] { 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1 });
+        assertFalse(kernels[0].isSeparable());
+        assertTrue(kernels[2].isSeparable());
+        assertTrue(kernels[4].isSeparable());
+        for (int k = 0; k < kernels.length; k++) {
+            DataArray da = new DataArray(width, height, kernels[k], 2);
+            da.draw(6, 6, 4, 1, 0, 0, true);
+            da.draw(15, 10, 6, .5, 0, 0, false);
+            double[] red = new double[width * height];
+            boolean[] emitter = new boolean[width * height];
+            for (int i = 0; i < red.length; i++) {
+                red[i] = da.getRed(i);
+                emitter[i] = da.isEmitter(i);
+            }
+            double rate = kernels[k].getRate(0);
+            for (int step = 0; step < 15; step++) {
+                double[] next = new double[red.length];
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int idx = y * width + x;
+                        double sum = 0;
+                        for (int t = 0; t < weights[k].length; t++) {
+                            int nx = x + offsets[k][2 * t];
+                            int ny = y + offsets[k][2 * t + 1];
+                            if (nx >= 0 && ny >= 0 && nx < width && ny < height) {
+                                sum += red[ny * width + nx] * weights[k][t];
+                            }
+                        }
+                        next[idx] = emitter[idx] ? red[idx]
+                                : red[idx] * (1 - rate) + sum * rate;
+                    }
+                }
+                red = next;
+                da.diffuse();
+                da.swapArrays();
+            }
+            for (int i = 0; i < red.length; i++) {
+                assertEquals(red[i], da.getRed(i), 1e-12);
+            }
+        }
+    }
+    
+    @Test
+    public void reflectingBoundaryConservesColor() {
+        Kernel[] kernels = { new Kernel(Kernel.Shape.EIGHT_NEIGHBOR, .9, .9, .9),
+                new Kernel(Kernel.Shape.FOUR_NEIGHBOR, .7, .7, .7),
+                new Kernel(Kernel.Shape.BOX, 3, 1, 1, 1) };
+        for (Kernel kernel : kernels) {
+            DataArray da = new DataArray(20, 15, kernel, Boundary.REFLECTING, 2);
+            da.draw(1, 1, 4, 1, 0, 0, false);
+            da.draw(18, 13, 6, .5, 0, 0, false);
+            double before = totalRed(da);
+            da.step(50);
+            assertEquals(before, totalRed(da), 1e-9);
+        }
+    }
+    
+    @Test
+    public void periodicBoundaryIsTranslationInvariant() {
+        int width = 24;
+        int height = 18;
+        Kernel kernel = new Kernel(Kernel.Shape.EIGHT_NEIGHBOR, .8, .8, .8);
+        DataArray da = new DataArray(width, height, kernel, Boundary.PERIODIC, 1);
+        DataArray shifted = new DataArray(width, height, kernel, Boundary.PERIODIC, 3);
+        da.draw(2, 2, 4, 1, .5, 0, false);
+        shifted.draw(12, 9, 4, 1, .5, 0, false);
+        da.step(30);
+        shifted.step(30);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int moved = ((y + 7) % height) * width + (x + 10) % width;
+                assertEquals(da.getRed(y * width + x), shifted.getRed(moved), 0);
+            }
+        }
+    }
+    
+    @Test
+    public void fixedBoundaryHoldsMatchingFieldSteady() {
+        DataArray da = new DataArray(16, 16,
+                new Kernel(Kernel.Shape.GAUSSIAN_5X5, .9, .9, .9), Boundary.FIXED, 1);
+        da.setBoundaryColor(.4, 0, 0);
+        for (int i = 0; i < 16 * 16; i++) {
+            da.setCell(i, .4, 0, 0, false);
+        }
+        da.step(20);
+        for (int i = 0; i < 16 * 16; i++) {
+            assertEquals(.4, da.getRed(i), 1e-12);
+        }
+    }
+    
+    @Test
+    public void lanesBackendWithinUlpTolerance() {
+        int width = 64;
+        int height = 48;
+        int steps = 100;
+        double diff = .99;
+        DataArray scalar = new DataArray(width, height, diff);
+        DataArray lanes = new DataArray(width, height, diff, 1, Backend.LANES);
+        for (DataArray da : new DataArray[] { scalar, lanes }) {
+            da.draw(12, 12, 8, 1, 1, 1, true);
+            da.draw(40, 30, 10, 1, .5, .31, false);
+        }
+        for (int step = 0; step < steps; step++) {
+            scalar.diffuse();
+            scalar.swapArrays();
+            lanes.diffuse();
+            lanes.swapArrays();
+        }
+        double tolerance = steps * Backend.LANES_ULP_TOLERANCE * Math.ulp(1.0);
+        assertArrayEquals(scalar.getCurrentRed(), lanes.getCurrentRed(), tolerance);
+        assertArrayEquals(scalar.getCurrentGreen(), lanes.getCurrentGreen(), tolerance);
+        assertArrayEquals(scalar.getCurrentBlue(), lanes.getCurrentBlue(), tolerance);
+    }
+    
+    @Test
+    public void reducedPrecisionStaysCloseToDouble() {
+        PrecisionReport same = PrecisionReport.run(Precision.DOUBLE, 32, .99, 200);
+        PrecisionReport single = PrecisionReport.run(Precision.FLOAT, 32, .99, 200);
+        PrecisionReport fixed = PrecisionReport.run(Precision.FIXED16, 32, .99, 200);
+        assertEquals(0, same.getMaxError(), 0);
+        assertEquals(0, single.getMaxError(), 1e-5);
+        assertEquals(0, fixed.getMaxError(), 5e-3);
+    }
+    
+    @Test
+    public void closeStopsThePoolAndKeepsDiffusing() {
+        DataArray parallel = new DataArray(31, 29, .9, 4);
+        DataArray serial = new DataArray(31, 29, .9, 1);
+        for (DataArray da : new DataArray[] { parallel, serial }) {
+            da.draw(10, 10, 6, 1, .5, .25, true);
+            da.step(3);
+        }
+        parallel.close();
+        assertEquals(1, parallel.getParallelism());
+        parallel.step(3);
+        serial.step(3);
+        assertArrayEquals(serial.getCurrentRed(), parallel.getCurrentRed(), 0);
+    }
+    
+    @Test
+    public void bytesPerCellFollowStorage() {
+        int size = 64;
+        double mask = (size * size / 64 * 8 + 2 * 16 * 8) / (double)(size * size);
+        assertEquals(48 + mask, new DataArray(size, size, .9).getBytesPerCell(), 0);
+        assertEquals(24 + mask, new DataArray(size, size, .9, 1, Backend.SCALAR,
+                Precision.FLOAT).getBytesPerCell(), 0);
+        assertEquals(12 + mask, new DataArray(size, size, .9, 1, Backend.SCALAR,
+                Precision.FIXED16).getBytesPerCell(), 0);
+        assertEquals(48 + mask, new DataArray(size, size, .9, 1, Backend.SCALAR,
+                Precision.DOUBLE, Layout.INTERLEAVED).getBytesPerCell(), 0);
+        
+        // Kernel planes are padded by the radius on every side.
+        DataArray box = new DataArray(size, size,
+                new Kernel(Kernel.Shape.BOX, 2, .9, .9, .9), 1);
+        assertEquals(48.0 * 68 * 68 / (size * size) + mask,
+                box.getBytesPerCell(), 1e-12);
+        assertEquals(24 + mask, PrecisionReport.run(Precision.FLOAT, size, .99,
+                1).getBytesPerCell(), 0);
+    }
+    
+    @Test
+    public void interleavedLayoutMatchesPlanar() {
+        int width = 23;
+        int height = 17;
+        double diff = .9;
+        DataArray planar = new DataArray(width, height, diff);
+        DataArray packed = new DataArray(width, height, diff, 2, Backend.SCALAR,
+                Precision.DOUBLE, Layout.INTERLEAVED);
+        for (DataArray da : new DataArray[] { planar, packed }) {
+            da.draw(5, 5, 4, .5, 0, .5, true);
+            da.draw(18, 12, 6, 0, 1, 0, false);
+            da.draw(22, 0, 2, .98, .5, .45, false);
+        }
+        for (int step = 0; step < 40; step++) {
+            planar.diffuse();
+            planar.swapArrays();
+            packed.diffuse();
+            packed.swapArrays();
+        }
+        for (int i = 0; i < width * height; i++) {
+            assertEquals(planar.getRed(i), packed.getRed(i), 0);
+            assertEquals(planar.getGreen(i), packed.getGreen(i), 0);
+            assertEquals(planar.getBlue(i), packed.getBlue(i), 0);
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void interleavedRejectsMoreValuesThanAnArrayHolds() {
+        
+        // 3 * 27000^2 values overflow an int; nothing is allocated.
+        new DataArray(27000, 27000, .5, 1, Backend.SCALAR, Precision.DOUBLE,
+                Layout.INTERLEAVED);
+    }
+    
+    @Test
+    public void argbConversionMatchesColor() {
+        int expected = 0xFF000000 | 200 << 16 | 100 << 8 | 50;
+        DataArray[] arrays = {
+            new DataArray(6, 4, .5),
+            new DataArray(6, 4, .5, 1, Backend.SCALAR, Precision.FLOAT),
+            new DataArray(6, 4, .5, 1, Backend.SCALAR, Precision.FIXED16),
+            new DataArray(6, 4, .5, 1, Backend.SCALAR, Precision.DOUBLE,
+                    Layout.INTERLEAVED)
+        };
+        for (DataArray da : arrays) {
+            da.draw(3, 2, 2, 200 / 255.0, 100 / 255.0, 50 / 255.0, false);
+            int[] argb = new int[6 * 4];
+            da.toArgb(argb);
+            assertEquals(expected, argb[1 * 6 + 2]);
+            assertEquals(0xFF000000, argb[0]);
+        }
+    }
+    
+    @Test
+    public void exactSparseTrackingMatchesDense() {
+        int width = 320;
+        int height = 224;
+        double diff = .99;
+        DataArray dense = new DataArray(width, height, diff);
+        DataArray sparse = new DataArray(width, height, diff, 2);
+        sparse.setSparseTracking(true, 0);
+        for (DataArray da : new DataArray[] { dense, sparse }) {
+            da.draw(20, 20, 6, 1, .2, 0, true);
+            da.draw(60, 40, 4, 0, .5, 1, false);
+        }
+        for (int step = 0; step < 40; step++) {
+            if (step == 20) {
+                dense.draw(40, 100, 8, .3, .3, .3, false);
+                sparse.draw(40, 100, 8, .3, .3, .3, false);
+            }
+            dense.diffuse();
+            dense.swapArrays();
+            sparse.diffuse();
+            sparse.swapArrays();
+        }
+        assertTrue(sparse.getActiveFraction() < 1);
+        assertArrayEquals(dense.getCurrentRed(), sparse.getCurrentRed(), 0);
+        assertArrayEquals(dense.getCurrentGreen(), sparse.getCurrentGreen(), 0);
+        assertArrayEquals(dense.getCurrentBlue(), sparse.getCurrentBlue(), 0);
+    }
+    
+    @Test
+    public void temporalBlockingMatchesSingleSteps() {
+        int width = 150;
+        int height = 97;
+        double diff = .8;
+        DataArray single = new DataArray(width, height, diff);
+        DataArray blocked = new DataArray(width, height, diff, 3);
+        blocked.setTemporalBlocking(6);
+        for (DataArray da : new DataArray[] { single, blocked }) {
+            da.draw(0, 0, 10, 1, .5, 0, true);
+            da.draw(64, 64, 6, 0, 1, .5, true);
+            da.draw(149, 50, 20, .2, .4, 1, false);
+            da.draw(100, 96, 8, 1, 1, 1, false);
+        }
+        for (int step = 0; step < 23; step++) {
+            single.diffuse();
+            single.swapArrays();
+        }
+        blocked.step(23);
+        assertArrayEquals(single.getCurrentRed(), blocked.getCurrentRed(), 0);
+        assertArrayEquals(single.getCurrentGreen(), blocked.getCurrentGreen(), 0);
+        assertArrayEquals(single.getCurrentBlue(), blocked.getCurrentBlue(), 0);
+    }
+    
+    @Test
+    public void jumpAheadMatchesSteppingWithoutEmitters() {
+        int width = 45;
+        int height = 31;
+        double diff = .99;
+        DataArray stepped = new DataArray(width, height, diff);
+        DataArray jumped = new DataArray(width, height, diff);
+        for (DataArray da : new DataArray[] { stepped, jumped }) {
+            da.draw(10, 10, 8, 1, .5, .25, false);
+            da.draw(44, 0, 6, 0, 1, 1, false);
+        }
+        stepped.step(300);
+        jumped.jumpAhead(300);
+        assertArrayEquals(stepped.getCurrentRed(), jumped.getCurrentRed(), 1e-12);
+        assertArrayEquals(stepped.getCurrentGreen(), jumped.getCurrentGreen(), 1e-12);
+        assertArrayEquals(stepped.getCurrentBlue(), jumped.getCurrentBlue(), 1e-12);
+    }
+    
+    @Test
+    public void jumpAheadMatchesSteppingAroundEmitters() {
+        
+        // Large enough that stepping only the emitters' reach pays off.
+        int size = 511;
+        int steps = 100;
+        DataArray stepped = new DataArray(size, size, .99, 1);
+        DataArray jumped = new DataArray(size, size, .99, 1);
+        for (DataArray da : new DataArray[] { stepped, jumped }) {
+            da.draw(250, 250, 200, .2, .6, 1, false);
+            da.draw(120, 110, 6, 1, .5, 0, true);
+            da.draw(2, 300, 4, 0, 1, .5, true);
+        }
+        stepped.step(steps);
+        jumped.jumpAhead(steps);
+        assertEquals(steps, jumped.getStepCount());
+        assertTrue(jumped.isEmitter(110 * size + 120));
+        assertArrayEquals(stepped.getCurrentRed(), jumped.getCurrentRed(), 1e-12);
+        assertArrayEquals(stepped.getCurrentGreen(), jumped.getCurrentGreen(), 1e-12);
+        assertArrayEquals(stepped.getCurrentBlue(), jumped.getCurrentBlue(), 1e-12);
+    }
+    
+    @Test
+    public void convergenceStopsEarlyWithoutChangingSteps() {
+        int width = 60;
+        int height = 40;
+        DataArray plain = new DataArray(width, height, .99);
+        DataArray measured = new DataArray(width, height, .99, 2);
+        for (DataArray da : new DataArray[] { plain, measured }) {
+            da.draw(30, 20, 10, 1, .5, 0, false);
+            da.draw(5, 5, 4, 0, 0, 1, true);
+        }
+        measured.setConvergenceThreshold(1e-5);
+        
+        int ran = measured.step(100000);
+        assertTrue(measured.isConverged());
+        assertTrue(ran < 100000);
+        assertTrue(measured.getResidual() <= 1e-5);
+        
+        // Measuring does not change the result.
+        plain.step(ran);
+        assertArrayEquals(plain.getCurrentRed(), measured.getCurrentRed(), 0);
+        assertArrayEquals(plain.getCurrentBlue(), measured.getCurrentBlue(), 0);
+        
+        // Drawing makes the simulation unconverged again.
+        measured.draw(50, 30, 4, 1, 1, 1, false);
+        assertFalse(measured.isConverged());
+    }
+    
+    @Test
+    public void measuredBoxKernelMatchesUnmeasured() {
+        int width = 70;
+        int height = 50;
+        Kernel kernel = new Kernel(Kernel.Shape.BOX, 8, .9, .7, .5);
+        DataArray plain = new DataArray(width, height, kernel, 2);
+        DataArray measured = new DataArray(width, height, kernel, 2);
+        for (DataArray da : new DataArray[] { plain, measured }) {
+            da.draw(30, 20, 16, 1, .5, 0, false);
+            da.draw(60, 40, 6, 0, .2, 1, true);
+        }
+        measured.setConvergenceThreshold(1e-12);
+        plain.step(20);
+        measured.step(19);
+        double[][] before = colors(measured);
+        measured.step(1);
+        double[][] after = colors(measured);
+        
+        // The bands run whole, so the running sums match bit for bit.
+        double[][] expected = colors(plain);
+        double change = 0;
+        for (int c = 0; c < 3; c++) {
+            assertArrayEquals(expected[c], after[c], 0);
+            for (int i = 0; i < after[c].length; i++) {
+                change = Math.max(change, Math.abs(after[c][i] - before[c][i]));
+            }
+        }
+        assertTrue(change > 0);
+        assertEquals(change, measured.getResidual(), 0);
+    }
+    
+    @Test
+    public void steadyStateMatchesConvergedStepping() {
+        int width = 40;
+        int height = 30;
+        DataArray stepped = new DataArray(width, height, .99);
+        DataArray solved = new DataArray(width, height, .99);
+        for (DataArray da : new DataArray[] { stepped, solved }) {
+            da.draw(10, 10, 4, 1, .5, 0, true);
+            da.draw(30, 20, 2, 0, .25, 1, true);
+            da.draw(20, 5, 6, 1, 1, 1, false);
+        }
+        stepped.setConvergenceThreshold(1e-13);
+        stepped.step(1000000);
+        assertTrue(stepped.isConverged());
+        
+        int cycles = solved.solveSteadyState(1e-13, 100);
+        assertTrue(cycles < 100);
+        
+        // Emitters are unchanged and a further step changes nothing.
+        assertEquals(1, solved.getRed(10 * width + 10), 0);
+        solved.setConvergenceThreshold(1e-13);
+        solved.step(1);
+        assertTrue(solved.isConverged());
+        assertArrayEquals(stepped.getCurrentRed(), solved.getCurrentRed(), 1e-10);
+        assertArrayEquals(stepped.getCurrentGreen(), solved.getCurrentGreen(), 1e-10);
+        assertArrayEquals(stepped.getCurrentBlue(), solved.getCurrentBlue(), 1e-10);
+    }
+    
+    @Test
+    public void mappedMatchesHeapAndResumes() throws IOException {
+        int width = 37;
+        int height = 23;
+        File file = new File(folder.getRoot(), "sim.map");
+        DataArray heap = new DataArray(width, height, .99);
+        DataArray mapped = new DataArray(width, height, .99, 2, file);
+        for (DataArray da : new DataArray[] { heap, mapped }) {
+            da.draw(5, 5, 4, 1, .5, 0, true);
+            da.draw(20, 12, 6, 0, .75, 1, false);
+            da.step(31);
+        }
+        mapped.flush();
+        
+        // A new DataArray on the same file continues where this one stopped.
+        DataArray resumed = new DataArray(width, height, .99, 1, file);
+        for (int i = 0; i < width * height; i++) {
+            assertEquals(heap.getRed(i), mapped.getRed(i), 0);
+            assertEquals(heap.getGreen(i), mapped.getGreen(i), 0);
+            assertEquals(heap.getBlue(i), mapped.getBlue(i), 0);
+            assertEquals(heap.getBlue(i), resumed.getBlue(i), 0);
+            assertEquals(heap.isEmitter(i), resumed.isEmitter(i));
+        }
+    }
+    
+    @Test(expected = IOException.class)
+    public void mappedRejectsOtherSize() throws IOException {
+        File file = new File(folder.getRoot(), "sim.map");
+        new DataArray(10, 10, .5, 1, file).flush();
+        new DataArray(10, 11, .5, 1, file);
+    }
+    
+    @Test(expected = UnsupportedOperationException.class)
+    public void arraysOnlyAvailableForDouble() {
+        new DataArray(4, 4, .5, 1, Backend.SCALAR, Precision.FLOAT).getCurrentRed();
+    }
+    
+    @Test
+    public void ensembleMembersMatchSeparateRuns() {
+        double[] rates = Ensemble.range(.5, .99, 5);
+        DataArray scene = new DataArray(37, 29, .9, 1);
+        scene.draw(8, 8, 6, 1, .4, .2, true);
+        scene.draw(25, 18, 10, .1, .8, .6, false);
+        scene.step(3);
+        
+        try (Ensemble ensemble = new Ensemble(scene, rates, 3)) {
+            assertEquals(5, ensemble.getSize());
+            assertEquals(.99, ensemble.getDiffusePercent(4), 1e-15);
+            assertEquals(40, ensemble.step(40));
+            for (int m = 0; m < rates.length; m++) {
+                DataArray alone = new DataArray(37, 29, rates[m], 1);
+                DataArray member = ensemble.getMember(m);
+                for (int i = 0; i < 37 * 29; i++) {
+                    alone.setCell(i, scene.getRed(i), scene.getGreen(i),
+                            scene.getBlue(i), scene.isEmitter(i));
+                }
+                alone.step(40);
+                assertEquals(43, member.getStepCount());
+                assertEquals(40, ensemble.getStepsRun(m));
+                assertTrue(ensemble.getStepNanos(m) > 0);
+                for (int i = 0; i < 37 * 29; i++) {
+                    assertEquals(alone.getRed(i), member.getRed(i), 0);
+                    assertEquals(alone.getGreen(i), member.getGreen(i), 0);
+                    assertEquals(alone.getBlue(i), member.getBlue(i), 0);
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void ensembleSharesEmittersUntilChanged() {
+        DataArray scene = new DataArray(16, 16, .9, 1);
+        scene.draw(4, 4, 2, 1, 1, 1, true);
+        try (Ensemble ensemble = new Ensemble(scene, new double[] { .5, .9 }, 2)) {
+            ensemble.getMember(0).setCell(10 * 16 + 10, 1, 0, 0, true);
+            ensemble.getMember(1).clear();
+            scene.setCell(3 * 16 + 3, 0, 0, 0, false);
+            
+            assertTrue(ensemble.getMember(0).isEmitter(10 * 16 + 10));
+            assertTrue(ensemble.getMember(0).isEmitter(3 * 16 + 3));
+            assertFalse(ensemble.getMember(1).isEmitter(3 * 16 + 3));
+            assertFalse(scene.isEmitter(10 * 16 + 10));
+            assertFalse(scene.isEmitter(3 * 16 + 3));
+            assertTrue(scene.isEmitter(3 * 16 + 4));
+        }
+    }
+    
+    @Test
+    public void ensembleRecordsConvergencePerMember() {
+        DataArray scene = new DataArray(24, 24, .9, 1);
+        scene.draw(12, 12, 8, 1, 1, 1, false);
+        try (Ensemble ensemble = new Ensemble(scene,
+                new double[] { .2, .9 }, 2)) {
+            ensemble.setConvergenceThreshold(1e-3);
+            int run = ensemble.step(5000);
+            assertTrue(ensemble.isConverged());
+            assertEquals(Math.max(ensemble.getStepsRun(0),
+                    ensemble.getStepsRun(1)), run);
+            
+            // Slower diffusion takes longer to settle.
+            assertTrue(ensemble.getConvergedStep(0)
+                    > ensemble.getConvergedStep(1));
+            for (int m = 0; m < 2; m++) {
+                assertEquals(ensemble.getMember(m).getStepCount(),
+                        ensemble.getConvergedStep(m));
+                assertTrue(ensemble.getResidual(m) <= 1e-3);
+            }
+            assertEquals(0, ensemble.step(10));
+        }
+    }
+    
+    // The colors of every cell, one array per channel.
+    private static double[][] colors(DataArray da) {
+        int cells = da.getWidth() * da.getHeight();
+        double[][] colors = new double[3][cells];
+        for (int i = 0; i < cells; i++) {
+            colors[0][i] = da.getRed(i);
+            colors[1][i] = da.getGreen(i);
+            colors[2][i] = da.getBlue(i);
+        }
+        return colors;
+    }
+    
+    // Sum of the red channel over the grid.
+    private static double totalRed(DataArray da) {
+        double total = 0;
+        for (int i = 0; i < da.getWidth() * da.getHeight(); i++) {
+            total += da.getRed(i);
+        }
+        return total;
+    }
+    
+    // Offsets of every cell of a square neighborhood, row-major.
+    private static int[] square(int radius) {
+        int side = 2 * radius + 1;
+        int[] offsets = new int[2 * side * side];
+        for (int i = 0; i < side * side; i++) {
+            offsets[2 * i] = i % side - radius;
+            offsets[2 * i + 1] = i / side - radius;
+        }
+        return offsets;
+    }
+    
+    // Normalized outer product of a row of weights with itself.
+    private static double[] binomial(double[] row) {
+        double sum = 0;
+        for (double w : row) {
+            sum += w;
+        }
+        double[] weights = new double[row.length * row.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = row[i / row.length] * row[i % row.length] / (sum * sum);
+        }
+        return weights;
+    }
+    
+    // Straightforward bounds-checked 8-neighbour stencil.
+    private static double[] referenceStep(double[] curr, boolean[] emitter,
+            int width, int height, double diff) {
+        double[] next = new double[curr.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int idx = y * width + x;
+                if (emitter[idx]) {
+                    next[idx] = curr[idx];
+                    continue;
+                }
+                double n = curr[idx] * (1 - diff);
+                int[][] order = { {-1, 0}, {-1, -1}, {-1, 1}, {1, 0}, {1, -1},
+                        {1, 1}, {0, -1}, {0, 1} };
+                for (int[] o : order) {
+                    int nx = x + o[0];
+                    int ny = y + o[1];
+                    if (nx >= 0 && ny >= 0 && nx < width && ny < height) {
+                        n += (curr[ny * width + nx] * diff) / 8;
+                    }
+                }
+                next[idx] = n;
+            }
+        }
+        return next;
+    }
+    
 }
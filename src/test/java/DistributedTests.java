@@ -0,0 +1,153 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import distributed.Coordinator;
+import distributed.LocalCluster;
+import distributed.Worker;
+import model.Backend;
+import model.ConstantSource;
+import model.DataArray;
+import model.Kernel;
+import model.Layout;
+import model.Precision;
+
+/**
+ * Responsible for testing distributed simulations.
+ * @author Graf
+ *
+ */
+public class DistributedTests {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    // A scene with emitters on strip edges and colors spread over every row.
+    private static DataArray scene() {
+        DataArray da = new DataArray(23, 17, .9, 1);
+        da.draw(4, 5, 3, 1, .5, .25, true);
+        da.draw(15, 11, 2, .2, 1, .6, true);
+        da.draw(11, 8, 6, .3, .1, .9, false);
+        da.setCell(16 * 23 + 22, 1, 1, 1, true);
+        return da;
+    }
+    
+    // Start workers on threads of this JVM.
+    private static List<Thread> startWorkers(Coordinator coordinator, int count) {
+        List<Thread> threads = new ArrayList<>();
+        for (int k = 0; k < count; k++) {
+            Worker worker = new Worker("localhost", coordinator.getPort(), 2);
+            Thread thread = new Thread(() -> {
+                try {
+                    worker.run();
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+    
+    @Test
+    public void stripsMatchSingleNodeBitForBit() throws Exception {
+        DataArray expected = scene();
+        DataArray gathered = scene();
+        List<Thread> threads;
+        try (Coordinator coordinator = new Coordinator(0, 3)) {
+            threads = startWorkers(coordinator, 3);
+            coordinator.start(scene());
+            for (int round = 0; round < 3; round++) {
+                coordinator.step(7);
+                expected.step(7);
+            }
+            assertEquals(21, coordinator.getStepCount());
+            
+            int[] argb = new int[23 * 17];
+            int[] expectedArgb = new int[23 * 17];
+            coordinator.gatherArgb(argb);
+            expected.toArgb(expectedArgb);
+            assertArrayEquals(expectedArgb, argb);
+            
+            coordinator.gather(gathered);
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+        for (int i = 0; i < 23 * 17; i++) {
+            assertEquals(expected.getRed(i), gathered.getRed(i), 0);
+            assertEquals(expected.getGreen(i), gathered.getGreen(i), 0);
+            assertEquals(expected.getBlue(i), gathered.getBlue(i), 0);
+            assertEquals(expected.isEmitter(i), gathered.isEmitter(i));
+        }
+    }
+    
+    @Test
+    public void workerProcessesMatchSingleNode() throws IOException {
+        DataArray expected = scene();
+        DataArray gathered = scene();
+        try (LocalCluster cluster = new LocalCluster(2, 1)) {
+            Coordinator coordinator = cluster.getCoordinator();
+            coordinator.start(scene());
+            coordinator.step(12);
+            coordinator.gather(gathered);
+        }
+        expected.step(12);
+        for (int i = 0; i < 23 * 17; i++) {
+            assertEquals(expected.getRed(i), gathered.getRed(i), 0);
+            assertEquals(expected.getGreen(i), gathered.getGreen(i), 0);
+            assertEquals(expected.getBlue(i), gathered.getBlue(i), 0);
+        }
+    }
+    
+    // Start must fail before any worker is awaited.
+    private static void assertRejected(DataArray da) throws IOException {
+        try (Coordinator coordinator = new Coordinator(0, 2)) {
+            coordinator.start(da);
+            fail("Expected the scene to be rejected.");
+        } catch (UnsupportedOperationException expected) {
+            assertNotNull(expected.getMessage());
+        }
+    }
+    
+    @Test
+    public void scenesWorkersCannotReproduceAreRejected() throws IOException {
+        assertRejected(new DataArray(8, 8, new Kernel(Kernel.Shape.FOUR_NEIGHBOR, .9, .9, .9), 1));
+        assertRejected(new DataArray(8, 8, .9, 1, Backend.SCALAR,
+                Precision.FLOAT));
+        assertRejected(new DataArray(8, 8, .9, 1, Backend.SCALAR,
+                Precision.DOUBLE, Layout.INTERLEAVED));
+        
+        DataArray sourced = new DataArray(8, 8, .9, 1);
+        sourced.drawSource(4, 4, 2,
+                sourced.addSource(new ConstantSource(1, 0, 0)));
+        assertRejected(sourced);
+        
+        assertRejected(new DataArray(8, 8, .9, 1,
+                new File(folder.getRoot(), "scene.grid")));
+    }
+    
+    @Test
+    public void rowsRoundTripKeepingEmitters() {
+        DataArray da = scene();
+        double[] row = new double[3 * 23];
+        da.getRow(5, row);
+        assertEquals(da.getRed(5 * 23 + 4), row[12], 0);
+        assertEquals(da.getBlue(5 * 23 + 4), row[14], 0);
+        for (int i = 0; i < row.length; i++) {
+            row[i] = i / 100.0;
+        }
+        da.setRow(5, row);
+        assertEquals(.12, da.getRed(5 * 23 + 4), 0);
+        assertTrue(da.isEmitter(5 * 23 + 4));
+    }
+}
@@ -0,0 +1,94 @@
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import export.FrameExporter;
+import export.PngSequenceExporter;
+import model.DataArray;
+
+/**
+ * Responsible for testing the FrameExporter classes.
+ * @author Graf
+ *
+ */
+public class FrameExporterTests {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    // An exporter whose encoder waits until it is released.
+    private static class HeldExporter extends FrameExporter {
+        
+        final CountDownLatch release = new CountDownLatch(1);
+        
+        HeldExporter(int queueDepth) {
+            super(4, 3, queueDepth, 1, "held");
+        }
+        
+        @Override
+        protected void encode(int[] argb, long step) throws IOException {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+    
+    @Test
+    public void callerWaitsOnlyWhenQueueIsFull() throws Exception {
+        DataArray da = new DataArray(4, 3, .5);
+        HeldExporter exporter = new HeldExporter(2);
+        exporter.export(da, 1);
+        exporter.export(da, 2);
+        
+        // The third frame has no free buffer until the encoder moves on.
+        Thread third = new Thread(() -> {
+            try {
+                exporter.export(da, 3);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        third.start();
+        third.join(200);
+        assertTrue(third.isAlive());
+        
+        exporter.release.countDown();
+        third.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(third.isAlive());
+        exporter.close();
+        assertEquals(3, exporter.getExportedFrames());
+    }
+    
+    @Test
+    public void pngFramesMatchTheSimulation() throws IOException {
+        DataArray da = new DataArray(20, 10, .9);
+        da.draw(5, 5, 4, 1, .5, .25, true);
+        File dir = folder.newFolder();
+        int[] expected = new int[20 * 10];
+        try (PngSequenceExporter exporter = new PngSequenceExporter(dir,
+                PngSequenceExporter.DEFAULT_PATTERN, 20, 10, 2, 2)) {
+            for (int step = 1; step <= 3; step++) {
+                da.step(1);
+                exporter.export(da, step);
+            }
+            da.toArgb(expected);
+        }
+        
+        BufferedImage image = ImageIO.read(new File(dir, "frame-000003.png"));
+        int[] actual = image.getRGB(0, 0, 20, 10, null, 0, 20);
+        assertArrayEquals(expected, actual);
+        assertTrue(new File(dir, "frame-000001.png").isFile());
+    }
+}
@@ -0,0 +1,37 @@
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import controllers.TripleBuffer;
+
+/**
+ * Responsible for testing the TripleBuffer class.
+ * @author Graf
+ *
+ */
+public class TripleBufferTests {
+
+    @Test
+    public void nothingToAcquireBeforePublish() {
+        TripleBuffer frames = new TripleBuffer(4);
+        assertFalse(frames.acquire());
+    }
+
+    @Test
+    public void consumerSeesLatestFrameOnce() {
+        TripleBuffer frames = new TripleBuffer(1);
+        for (int step = 1; step <= 3; step++) {
+            frames.getBackBuffer()[0] = step;
+            frames.publish(step);
+        }
+        assertTrue(frames.acquire());
+        assertEquals(3, frames.getFrontBuffer()[0]);
+        assertEquals(3, frames.getFrontStep());
+        assertFalse(frames.acquire());
+
+        // The producer never renders into the buffer being displayed.
+        assertNotSame(frames.getFrontBuffer(), frames.getBackBuffer());
+    }
+
+}
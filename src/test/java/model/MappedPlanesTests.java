@@ -0,0 +1,75 @@
+package model;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Responsible for testing the chunks of the MappedPlanes class, which lives
+ * in the model package so that chunks can be made a few rows small.
+ * @author Graf
+ *
+ */
+public class MappedPlanesTests {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void smallChunksMatchHeapAcrossBoundaries() throws IOException {
+        int width = 13;
+        int height = 11;
+        File file = new File(folder.getRoot(), "sim.map");
+        
+        // Three rows per chunk, so chunks end after rows 2, 5 and 8 and the
+        // last chunk holds two rows.
+        long chunkBytes = 3L * width * Double.BYTES;
+        Planes heap = new DoublePlanes(width, height, .9, Backend.SCALAR);
+        MappedPlanes mapped = new MappedPlanes(file, width, height, .9,
+                chunkBytes);
+        EmitterMask emitters = new EmitterMask(width * height);
+        for (int i = 0; i < width * height; i++) {
+            double red = (i * 37 % 101) / 100.0;
+            heap.set(i, red, 1 - red, i % 2);
+            mapped.set(i, red, 1 - red, i % 2);
+        }
+        
+        // Emitters on the last cell of one chunk and the first of the next.
+        emitters.set(3L * width - 1, true);
+        emitters.set(3L * width, true);
+        emitters.set(width * height - 1, true);
+        emitters.index();
+        
+        // Bands that start and end inside chunks.
+        for (int step = 0; step < 7; step++) {
+            for (Planes planes : new Planes[] { heap, mapped }) {
+                planes.diffuseRows(0, 4, emitters);
+                planes.diffuseRows(4, 10, emitters);
+                planes.diffuseRows(10, height, emitters);
+                planes.swap();
+            }
+        }
+        for (int i = 0; i < width * height; i++) {
+            assertEquals(heap.getRed(i), mapped.getRed(i), 0);
+            assertEquals(heap.getGreen(i), mapped.getGreen(i), 0);
+            assertEquals(heap.getBlue(i), mapped.getBlue(i), 0);
+        }
+        mapped.flush(emitters);
+        
+        // The layout does not depend on the chunks, so one-row chunks read
+        // the same file.
+        MappedPlanes resumed = new MappedPlanes(file, width, height, .9, 1);
+        assertTrue(resumed.isResumed());
+        EmitterMask loaded = new EmitterMask(width * height);
+        resumed.loadEmitters(loaded);
+        for (int i = 0; i < width * height; i++) {
+            assertEquals(heap.getRed(i), resumed.getRed(i), 0);
+            assertEquals(emitters.get(i), loaded.get(i));
+        }
+    }
+}